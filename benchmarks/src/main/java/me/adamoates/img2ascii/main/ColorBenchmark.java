@@ -0,0 +1,69 @@
+package me.adamoates.img2ascii.main;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.adamoates.img2ascii.main.Image2Ascii.RGB;
+
+/**
+ * Measures the per-color operations: RGB#grayscale() and mapping a color
+ * to an index in the ASCII table. Each invocation handles
+ * {@value #COLORS} random colors, and results are per color.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorBenchmark {
+
+	static final int COLORS = 4096;
+
+	private int[] colors;
+	private RGB[] rgbs;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(42);
+		this.colors = new int[COLORS];
+		this.rgbs = new RGB[COLORS];
+		for (int i = 0; i < COLORS; i++) {
+			this.colors[i] = random.nextInt() | 0xff000000;
+			this.rgbs[i] = new RGB(this.colors[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COLORS)
+	public int grayscale() {
+		int sum = 0;
+		for (int i = 0; i < COLORS; i++) {
+			RGB rgb = new RGB(this.colors[i]);
+			rgb.grayscale();
+			sum += rgb.r;
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COLORS)
+	public int rgbToAsciiTable() {
+		int sum = 0;
+		for (int i = 0; i < COLORS; i++) sum += Image2Ascii.rgbToAsciiTable(this.rgbs[i]);
+		return sum;
+	}
+}
@@ -0,0 +1,60 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.adamoates.img2ascii.main.Image2Ascii.AsciiImage;
+
+/**
+ * Measures converting a decoded image with the AsciiImage constructor, at
+ * several sizes and flag combinations, on one thread and split across the
+ * common ForkJoinPool.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertBenchmark {
+
+	@Param({ "160x120", "640x480", "1920x1080" })
+	public String size;
+
+	@Param({ "NONE", "INVERT", "GRAYSCALE", "INVERT+GRAYSCALE+SINGLE_CHAR" })
+	public String flags;
+
+	@Param({ "SEQUENTIAL", "COMMON" })
+	public String pool;
+
+	private BufferedImage image;
+	private ConversionOptions options;
+	private ConversionPool conversionPool;
+
+	@Setup
+	public void setup() {
+		int[] wh = SyntheticImages.size(this.size);
+		this.image = SyntheticImages.generate(wh[0], wh[1], BufferedImage.TYPE_INT_RGB);
+		this.options = SyntheticImages.options(this.flags);
+		this.conversionPool = this.pool.equals("COMMON") ? ConversionPool.COMMON : ConversionPool.SEQUENTIAL;
+	}
+
+	@Benchmark
+	public AsciiImage construct(PixelCounter counter) {
+		counter.pixels += (long) this.image.getWidth() * this.image.getHeight();
+		return new AsciiImage(this.image, this.options, this.conversionPool);
+	}
+}
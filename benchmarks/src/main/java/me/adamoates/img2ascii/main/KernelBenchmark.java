@@ -0,0 +1,82 @@
+package me.adamoates.img2ascii.main;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the scalar and vector luminance kernels on a row of
+ * {@value #PIXELS} random pixels. Results are per pixel. The vector kernel
+ * needs the library built with Java 17.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class KernelBenchmark {
+
+	static final int PIXELS = 4096;
+
+	@Param({ "scalar", "vector" })
+	public String kernel;
+
+	@Param({ "false", "true" })
+	public boolean invert;
+
+	private LuminanceKernel luminance;
+	private int[] src;
+	private char[] grayToChar;
+	private byte[] grayToIndex;
+	private char[] chars;
+	private int[] colors;
+	private int[] indexes;
+
+	@Setup
+	public void setup() {
+		this.luminance = this.kernel.equals("vector") ? LuminanceKernel.vector() : LuminanceKernel.SCALAR;
+		if (this.luminance == null) throw new IllegalStateException("The vector kernel is not available");
+		Random random = new Random(42);
+		this.src = new int[PIXELS];
+		for (int i = 0; i < PIXELS; i++) this.src[i] = random.nextInt() | 0xff000000;
+		char[] ramp = RampMapper.DEFAULT.getRamp();
+		this.grayToChar = new char[256];
+		this.grayToIndex = new byte[256];
+		for (int g = 0; g < 256; g++) {
+			int idx = (int) Math.round(g / 255.0 * (ramp.length - 1));
+			this.grayToIndex[g] = (byte) idx;
+			this.grayToChar[g] = ramp[idx];
+		}
+		this.chars = new char[PIXELS];
+		this.colors = new int[PIXELS];
+		this.indexes = new int[PIXELS];
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PIXELS)
+	public char[] mapRow() {
+		this.luminance.mapRow(this.src, 0, PIXELS, this.invert ? 0x00ffffff : 0, false, this.grayToChar, this.chars, this.colors, 0);
+		return this.chars;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PIXELS)
+	public int[] indexRow() {
+		this.luminance.indexRow(this.src, 0, PIXELS, this.invert ? 0x00ffffff : 0, this.grayToIndex, this.indexes, 0);
+		return this.indexes;
+	}
+}
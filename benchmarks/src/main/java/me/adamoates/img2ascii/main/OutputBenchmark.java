@@ -0,0 +1,95 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import me.adamoates.img2ascii.main.Image2Ascii.AsciiImage;
+
+/**
+ * Measures turning a converted image into output: text, HTML, and the
+ * rendered PNG that AsciiFrame#export(String) saves. The PNG is written to
+ * a stream that discards it, so disk speed is not measured; AsciiFrame
+ * itself needs a display and is not created. Pixels are those of the
+ * source image the output was converted from.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class OutputBenchmark {
+
+	@Param({ "160x120", "640x480", "1920x1080" })
+	public String size;
+
+	@Param({ "NONE", "BLACK_AND_WHITE+PACK" })
+	public String flags;
+
+	private AsciiImage ascii;
+	private AsciiRenderer renderer;
+	private long pixels;
+
+	@Setup
+	public void setup() {
+		int[] wh = SyntheticImages.size(this.size);
+		ConversionOptions options = SyntheticImages.options(this.flags);
+		BufferedImage image = SyntheticImages.generate(wh[0], wh[1], BufferedImage.TYPE_INT_RGB);
+		this.ascii = new AsciiImage(image, options, ConversionPool.SEQUENTIAL);
+		this.renderer = new AsciiRenderer(options);
+		this.pixels = (long) wh[0] * wh[1];
+		ImageIO.setUseCache(false);	// encode in memory, as when exporting to a file
+	}
+
+	@Benchmark
+	public String toText(PixelCounter counter) {
+		counter.pixels += this.pixels;
+		return this.ascii.toString();
+	}
+
+	@Benchmark
+	public String toHtml(PixelCounter counter) {
+		counter.pixels += this.pixels;
+		return this.ascii.toHtml();
+	}
+
+	@Benchmark
+	public BufferedImage render(PixelCounter counter) {
+		counter.pixels += this.pixels;
+		return this.renderer.render(this.ascii.getGrid());
+	}
+
+	@Benchmark
+	public void exportPng(PixelCounter counter, Blackhole bh) throws IOException {
+		counter.pixels += this.pixels;
+		this.renderer.export(this.ascii.getGrid(), new OutputStream() {
+			@Override
+			public void write(int b) {
+				bh.consume(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				bh.consume(len);
+			}
+		});
+	}
+}
@@ -0,0 +1,26 @@
+package me.adamoates.img2ascii.main;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the source pixels a benchmark converts. JMH reports the count as
+ * a "pixels" secondary result in pixels per unit of time, next to the
+ * operations per unit of time.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class PixelCounter {
+
+	/** Source pixels converted during this iteration */
+	public long pixels;
+
+	@Setup(Level.Iteration)
+	public void reset() {
+		this.pixels = 0;
+	}
+}
@@ -0,0 +1,70 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * Generates the images the benchmarks convert, so they run without any
+ * files. Images are seeded, so every run and every fork sees the same
+ * pixels.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+final class SyntheticImages {
+
+	private SyntheticImages() {}
+
+	/**
+	 * Generates a photo-like image: smooth color gradients with a ripple
+	 * pattern and some noise, so every brightness and most of the ramp is
+	 * used.
+	 * @param width Width in pixels
+	 * @param height Height in pixels
+	 * @param type A BufferedImage type, e.g. TYPE_INT_RGB or TYPE_3BYTE_BGR
+	 * @return The image
+	 */
+	static BufferedImage generate(int width, int height, int type) {
+		BufferedImage image = new BufferedImage(width, height, type);
+		Random random = new Random(width * 31L + height);
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				double ripple = Math.sin(x * 0.05) * Math.cos(y * 0.07);
+				int r = clamp(255.0 * x / width + 40 * ripple + random.nextInt(16));
+				int g = clamp(255.0 * y / height - 40 * ripple + random.nextInt(16));
+				int b = clamp(128 + 127 * ripple + random.nextInt(16));
+				row[x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+			image.setRGB(0, y, width, 1, row, 0, width);
+		}
+		return image;
+	}
+
+	/**
+	 * Parses a size parameter like <code>640x480</code>.
+	 * @param size Width and height separated by an x
+	 * @return The width and height
+	 */
+	static int[] size(String size) {
+		int x = size.indexOf('x');
+		return new int[] { Integer.parseInt(size.substring(0, x)), Integer.parseInt(size.substring(x + 1)) };
+	}
+
+	/**
+	 * Parses a flags parameter like <code>INVERT+GRAYSCALE</code>;
+	 * <code>NONE</code> is no flags.
+	 * @param flags Flag names separated by plus signs
+	 * @return The default options with those flags
+	 */
+	static ConversionOptions options(String flags) {
+		ConversionOptions options = ConversionOptions.DEFAULT;
+		if (flags.equals("NONE")) return options;
+		for (String flag : flags.split("\\+")) options = options.with(Flag.valueOf(flag));
+		return options;
+	}
+
+	private static int clamp(double v) {
+		return (int) Math.max(0, Math.min(255, v));
+	}
+}
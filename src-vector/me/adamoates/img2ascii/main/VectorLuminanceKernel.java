@@ -0,0 +1,86 @@
+package me.adamoates.img2ascii.main;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Computes gray levels in SIMD lanes. Each step loads a vector of packed
+ * pixels, applies INVERT, unpacks the channels, sums their weighted
+ * linear values with table gathers and turns the sum into a gray level,
+ * exactly like {@link RampMapper#luminance(int)} does one pixel at a time.
+ * <p>
+ * This class needs Java 17 and <code>--add-modules jdk.incubator.vector</code>,
+ * so it is compiled apart from the rest of the library and only ever
+ * loaded by {@link LuminanceKernel#vector()}.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+final class VectorLuminanceKernel extends LuminanceKernel {
+
+	// 512-bit gathers crash C2 on JDK 17, so lanes are capped at 256 bits
+	private static final VectorSpecies<Integer> SPECIES = (IntVector.SPECIES_PREFERRED.vectorBitSize() > 256) ? IntVector.SPECIES_256 : IntVector.SPECIES_PREFERRED;
+
+	// RampMapper.GRAY widened to ints, since gathers load whole ints
+	private static final int[] GRAY = new int[RampMapper.GRAY.length];
+
+	static {
+		for (int i = 0; i < GRAY.length; i++) GRAY[i] = RampMapper.GRAY[i] & 0xff;
+	}
+
+	VectorLuminanceKernel() {}
+
+	/**
+	 * Computes the gray levels of one vector of pixels.
+	 * @param rgb The pixels, already inverted if need be
+	 * @param index Scratch space for gather indexes, one int per lane
+	 * @return The gray levels
+	 */
+	private static IntVector luminance(IntVector rgb, int[] index) {
+		rgb.lanewise(VectorOperators.LSHR, 16).and(0xff).intoArray(index, 0);
+		IntVector sum = IntVector.fromArray(SPECIES, RampMapper.LINEAR_R, 0, index, 0);
+		rgb.lanewise(VectorOperators.LSHR, 8).and(0xff).intoArray(index, 0);
+		sum = sum.add(IntVector.fromArray(SPECIES, RampMapper.LINEAR_G, 0, index, 0));
+		rgb.and(0xff).intoArray(index, 0);
+		sum = sum.add(IntVector.fromArray(SPECIES, RampMapper.LINEAR_B, 0, index, 0));
+
+		sum.lanewise(VectorOperators.LSHR, RampMapper.BUCKET_SHIFT).intoArray(index, 0);
+		IntVector gray = IntVector.fromArray(SPECIES, GRAY, 0, index, 0);
+		// buckets are narrower than a gray level, so at most one step is needed
+		gray.intoArray(index, 0);
+		IntVector next = IntVector.fromArray(SPECIES, RampMapper.THRESHOLD, 1, index, 0);
+		return gray.add(next.sub(1).sub(sum).lanewise(VectorOperators.LSHR, 31));
+	}
+
+	@Override
+	void mapRow(int[] src, int srcOff, int len, int flip, boolean grayscale, char[] grayToChar, char[] chars, int[] colors, int dstOff) {
+		int lanes = SPECIES.length();
+		int[] index = new int[lanes];
+		int i = 0;
+		for (int bound = SPECIES.loopBound(len); i < bound; i += lanes) {
+			IntVector rgb = IntVector.fromArray(SPECIES, src, srcOff + i).lanewise(VectorOperators.XOR, flip);
+			IntVector gray = luminance(rgb, index);
+			(grayscale ? gray.mul(0x010101) : rgb).or(0xff000000).intoArray(colors, dstOff + i);
+			gray.intoArray(index, 0);
+			for (int k = 0; k < lanes; k++) chars[dstOff + i + k] = grayToChar[index[k]];
+		}
+		super.mapRow(src, srcOff + i, len - i, flip, grayscale, grayToChar, chars, colors, dstOff + i);
+	}
+
+	@Override
+	void indexRow(int[] src, int srcOff, int len, int flip, byte[] grayToIndex, int[] indexes, int dstOff) {
+		int lanes = SPECIES.length();
+		int[] index = new int[lanes];
+		int i = 0;
+		for (int bound = SPECIES.loopBound(len); i < bound; i += lanes) {
+			IntVector rgb = IntVector.fromArray(SPECIES, src, srcOff + i).lanewise(VectorOperators.XOR, flip);
+			luminance(rgb, index).intoArray(index, 0);
+			for (int k = 0; k < lanes; k++) indexes[dstOff + i + k] = grayToIndex[index[k]] & 0xff;
+		}
+		super.indexRow(src, srcOff + i, len - i, flip, grayToIndex, indexes, dstOff + i);
+	}
+
+	@Override
+	public String toString() {
+		return "vector (" + SPECIES.length() + " lanes)";
+	}
+}
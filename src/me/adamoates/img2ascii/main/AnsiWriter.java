@@ -0,0 +1,254 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a grid as colored terminal text using ANSI SGR escape
+ * sequences. The writer remembers the colors the terminal is set to and
+ * only emits a sequence when a visible cell needs a different one; the
+ * foreground and background are changed together in a single sequence.
+ * Cells with a background of their own, as Unicode blocks have, are written
+ * on that background.
+ * <p>
+ * For the 256 and 16 color levels, colors are mapped through a lookup table
+ * from the top 5 bits of each channel to the nearest palette index, built
+ * once per level.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class AnsiWriter {
+
+	/**
+	 * How many colors the terminal can show.
+	 */
+	public static enum ColorLevel {
+		/** 24-bit color: <code>ESC[38;2;r;g;bm</code> */
+		TRUECOLOR,
+		/** The xterm 256 color palette: <code>ESC[38;5;nm</code> */
+		XTERM_256,
+		/** The 16 standard colors: <code>ESC[30m</code>-<code>ESC[37m</code> and <code>ESC[90m</code>-<code>ESC[97m</code> */
+		ANSI_16
+	}
+
+	/** Colors characters only, in 24-bit color. */
+	public static final AnsiWriter TRUECOLOR = new AnsiWriter(ColorLevel.TRUECOLOR, false);
+	/** Colors characters only, in the xterm 256 color palette. */
+	public static final AnsiWriter XTERM_256 = new AnsiWriter(ColorLevel.XTERM_256, false);
+	/** Colors characters only, in the 16 standard colors. */
+	public static final AnsiWriter ANSI_16 = new AnsiWriter(ColorLevel.ANSI_16, false);
+
+	/** xterm's default values of the 16 standard colors. */
+	private static final int[] SYSTEM_COLORS = {
+			0x000000, 0xcd0000, 0x00cd00, 0xcdcd00, 0x0000ee, 0xcd00cd, 0x00cdcd, 0xe5e5e5,
+			0x7f7f7f, 0xff0000, 0x00ff00, 0xffff00, 0x5c5cff, 0xff00ff, 0x00ffff, 0xffffff
+	};
+
+	static final String RESET = "\u001b[0m";
+
+	private final ColorLevel level;
+	private final boolean background;
+
+	/**
+	 * Instantiates an AnsiWriter.
+	 * @param level How many colors the terminal can show
+	 * @param background Also set each cell's background to its color
+	 */
+	public AnsiWriter(ColorLevel level, boolean background) {
+		this.level = level;
+		this.background = background;
+	}
+
+	/**
+	 * Gets how many colors this writer uses.
+	 * @return The color level
+	 */
+	public ColorLevel getLevel() {
+		return this.level;
+	}
+
+	/**
+	 * Gets whether this writer sets the background of each cell.
+	 * @return If backgrounds are colored
+	 */
+	public boolean isBackground() {
+		return this.background;
+	}
+
+	/**
+	 * Writes a grid as colored lines. The terminal is reset at the end, and
+	 * also at the end of every line when backgrounds are colored so they do
+	 * not bleed past the last column. A cell's own background, if it is not
+	 * transparent, is used over its color.
+	 * @param grid The grid to write
+	 * @param out Where to write to; it is not flushed or closed
+	 * @throws IOException If writing fails
+	 */
+	public void write(GridView grid, Writer out) throws IOException {
+		int w = grid.getWidth(), h = grid.getHeight();
+		char[] chars = new char[w];
+		int[] colors = new int[w];
+		int[] backgrounds = grid.hasBackgrounds() ? new int[w] : null;
+		byte[] lut = this.lut();
+		char[] buf = new char[64];
+		int fg = -1, bg = -1;	// palette index or RGB the terminal is set to; -1 for its default
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, chars, colors, 0);
+			if (backgrounds != null) grid.copyRowBackgrounds(y, 0, w, backgrounds, 0);
+			for (int i = 0; i < w; i++) {
+				int c = code(colors[i], lut);
+				char ch = chars[i];
+				// a blank shows no foreground, so it need not change it
+				int wantFg = (ch == ' ' && !this.background) ? fg : c;
+				int wantBg = this.background ? c : -1;
+				if (backgrounds != null && (backgrounds[i] >>> 24) != 0) wantBg = code(backgrounds[i], lut);
+				int n = this.style(buf, 0, fg, bg, wantFg, wantBg);
+				fg = wantFg;
+				bg = wantBg;
+				buf[n++] = ch;
+				out.write(buf, 0, n);
+			}
+			if (bg != -1) {
+				out.write(RESET);
+				fg = bg = -1;
+			}
+			out.write('\n');
+		}
+		if (fg != -1 || bg != -1) out.write(RESET);
+	}
+
+	/**
+	 * Writes the SGR sequence that changes the terminal's colors, if they
+	 * need to change. A color of -1 is the terminal's default.
+	 * @param buf Where to write the sequence
+	 * @param n Position in <code>buf</code> to write at
+	 * @param fg The foreground the terminal is set to
+	 * @param bg The background the terminal is set to
+	 * @param wantFg The foreground needed
+	 * @param wantBg The background needed
+	 * @return The position after the sequence
+	 */
+	int style(char[] buf, int n, int fg, int bg, int wantFg, int wantBg) {
+		if (wantFg == fg && wantBg == bg) return n;
+		n = GridWriter.put(buf, n, "\u001b[");
+		if ((wantFg == -1 && fg != -1) || (wantBg == -1 && bg != -1)) {
+			// there is no short way back to a default color but resetting both
+			buf[n++] = '0';
+			fg = bg = -1;
+			if (wantFg != -1 || wantBg != -1) buf[n++] = ';';
+		}
+		if (wantFg != fg) n = this.color(buf, n, wantFg, false);
+		if (wantBg != bg) {
+			if (wantFg != fg) buf[n++] = ';';
+			n = this.color(buf, n, wantBg, true);
+		}
+		buf[n++] = 'm';
+		return n;
+	}
+
+	/**
+	 * Gets the lookup table from 15-bit color to palette index for this level.
+	 * @return The table, or null for truecolor
+	 */
+	byte[] lut() {
+		return lut(this.level);
+	}
+
+	/**
+	 * Gets what identifies a color at a level: the RGB for truecolor,
+	 * otherwise the palette index.
+	 * @param argb The color
+	 * @param lut The level's table from {@link #lut()}
+	 * @return The RGB or palette index
+	 */
+	static int code(int argb, byte[] lut) {
+		if (lut == null) return argb & 0x00ffffff;
+		return lut[((argb >> 9) & 0x7c00) | ((argb >> 6) & 0x03e0) | ((argb >> 3) & 0x001f)] & 0xff;
+	}
+
+	/**
+	 * Writes the SGR parameters that select a color.
+	 * @return The position after the parameters
+	 */
+	private int color(char[] buf, int n, int code, boolean background) {
+		switch (this.level) {
+		case TRUECOLOR:
+			n = GridWriter.put(buf, n, background ? "48;2;" : "38;2;");
+			n = GridWriter.putInt(buf, n, code >> 16);
+			buf[n++] = ';';
+			n = GridWriter.putInt(buf, n, (code >> 8) & 0xff);
+			buf[n++] = ';';
+			return GridWriter.putInt(buf, n, code & 0xff);
+		case XTERM_256:
+			n = GridWriter.put(buf, n, background ? "48;5;" : "38;5;");
+			return GridWriter.putInt(buf, n, code);
+		default:
+			return GridWriter.putInt(buf, n, (code < 8 ? 30 : 82) + code + (background ? 10 : 0));
+		}
+	}
+
+	/**
+	 * Gets the lookup table from 15-bit color to palette index for a level.
+	 * @return The table, or null for truecolor
+	 */
+	private static byte[] lut(ColorLevel level) {
+		switch (level) {
+		case XTERM_256:
+			return Xterm256.LUT;
+		case ANSI_16:
+			return Ansi16.LUT;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Builds a lookup table mapping the center of every 15-bit color to its
+	 * nearest palette entry.
+	 * @param palette Packed RGB colors; index <code>i</code> maps to <code>first + i</code>
+	 * @param first The palette index of the first color
+	 */
+	private static byte[] nearestTable(int[] palette, int first) {
+		byte[] lut = new byte[1 << 15];
+		for (int b = 0; b < lut.length; b++) {
+			int r = ((b >> 10) << 3) + 4, g = (((b >> 5) & 0x1f) << 3) + 4, bl = ((b & 0x1f) << 3) + 4;
+			int best = 0, bestDistance = Integer.MAX_VALUE;
+			for (int p = 0; p < palette.length; p++) {
+				int dr = r - ((palette[p] >> 16) & 0xff), dg = g - ((palette[p] >> 8) & 0xff), db = bl - (palette[p] & 0xff);
+				// weight channels roughly by how much they contribute to brightness
+				int distance = 3 * dr * dr + 4 * dg * dg + 2 * db * db;
+				if (distance < bestDistance) {
+					best = p;
+					bestDistance = distance;
+				}
+			}
+			lut[b] = (byte) (first + best);
+		}
+		return lut;
+	}
+
+	/**
+	 * The 6x6x6 color cube and gray ramp of the xterm 256 color palette.
+	 * The 16 standard colors are left out because terminal themes redefine them.
+	 */
+	private static final class Xterm256 {
+		static final byte[] LUT;
+
+		static {
+			int[] levels = { 0, 95, 135, 175, 215, 255 };
+			int[] palette = new int[240];
+			for (int i = 0; i < 216; i++) palette[i] = levels[i / 36] << 16 | levels[i / 6 % 6] << 8 | levels[i % 6];
+			for (int i = 0; i < 24; i++) {
+				int v = 8 + 10 * i;
+				palette[216 + i] = v << 16 | v << 8 | v;
+			}
+			LUT = nearestTable(palette, 16);
+		}
+	}
+
+	/**
+	 * The 16 standard colors, as xterm shows them by default.
+	 */
+	private static final class Ansi16 {
+		static final byte[] LUT = nearestTable(SYSTEM_COLORS, 0);
+	}
+}
@@ -0,0 +1,147 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import me.adamoates.img2ascii.main.Image2Ascii.AsciiImage;
+
+/**
+ * Converts images with a fixed set of ConversionOptions. An AsciiConverter
+ * holds no mutable state and never reads the global flags, so one instance
+ * can be shared by any number of threads, and converters with different
+ * options can run side by side without locking.
+ * <p>
+ * A converter given a {@link ConversionCache} looks encoded results up in
+ * it before converting, so the same image is only converted once.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class AsciiConverter {
+
+	private final ConversionOptions options;
+	private final ConversionPool pool;
+	private final StreamingConverter streaming;
+	private final AsciiRenderer renderer;
+	private final ConversionCache cache;
+
+	/**
+	 * Instantiates an AsciiConverter that splits large images across the
+	 * common ForkJoinPool.
+	 * @param options How to convert and render images
+	 */
+	public AsciiConverter(ConversionOptions options) {
+		this(options, ConversionPool.COMMON, StreamingConverter.DEFAULT);
+	}
+
+	/**
+	 * Instantiates an AsciiConverter.
+	 * @param options How to convert and render images
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @param streaming Decodes image files in strips
+	 */
+	public AsciiConverter(ConversionOptions options, ConversionPool pool, StreamingConverter streaming) {
+		this(options, pool, streaming, null);
+	}
+
+	/**
+	 * Instantiates an AsciiConverter whose encoded results are cached.
+	 * @param options How to convert and render images
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @param streaming Decodes image files in strips
+	 * @param cache Where encoded results are looked up and kept, or null;
+	 * results it converts use its own pool
+	 */
+	public AsciiConverter(ConversionOptions options, ConversionPool pool, StreamingConverter streaming, ConversionCache cache) {
+		this.options = options;
+		this.pool = pool;
+		this.streaming = streaming;
+		this.renderer = new AsciiRenderer(options);
+		this.cache = cache;
+	}
+
+	/**
+	 * Gets the options this converter converts with.
+	 * @return The options
+	 */
+	public ConversionOptions getOptions() {
+		return this.options;
+	}
+
+	/**
+	 * Gets a renderer for this converter's font size, pack spacing and flags.
+	 * @return The renderer, which may be shared between threads
+	 */
+	public AsciiRenderer getRenderer() {
+		return this.renderer;
+	}
+
+	/**
+	 * Converts a decoded image.
+	 * @param bimg The image
+	 * @return The converted image
+	 */
+	public AsciiImage convert(BufferedImage bimg) {
+		return new AsciiImage(bimg, this.options, this.pool);
+	}
+
+	/**
+	 * Converts an image file, decoding it in strips.
+	 * @param file The image file
+	 * @return The converted image
+	 * @throws IOException If the file cannot be read or decoded
+	 */
+	public AsciiImage convert(File file) throws IOException {
+		return new AsciiImage(this.streaming.convert(file, this.options, this.pool), this.options);
+	}
+
+	/**
+	 * Converts an encoded image read from a stream, decoding it in strips.
+	 * The stream is not closed.
+	 * @param stream The encoded image
+	 * @return The converted image
+	 * @throws IOException If the stream cannot be read or decoded
+	 */
+	public AsciiImage convert(InputStream stream) throws IOException {
+		return new AsciiImage(this.streaming.convert(stream, this.options, this.pool), this.options);
+	}
+
+	/**
+	 * Converts and encodes a decoded image, from the cache if it is there.
+	 * @param bimg The image
+	 * @param format How to encode the result
+	 * @return The encoded result; do not modify it
+	 * @throws IOException If the result cannot be encoded
+	 */
+	public byte[] encode(BufferedImage bimg, ConversionCache.Format format) throws IOException {
+		if (this.cache != null) return this.cache.get(bimg, this.options, format);
+		return ConversionCache.encode(this.convert(bimg).getGrid(), this.options, format);
+	}
+
+	/**
+	 * Converts and encodes an image file, from the cache if it is there.
+	 * @param file The image file
+	 * @param format How to encode the result
+	 * @return The encoded result; do not modify it
+	 * @throws IOException If the file cannot be read or decoded, or the result cannot be encoded
+	 */
+	public byte[] encode(File file, ConversionCache.Format format) throws IOException {
+		if (this.cache != null) return this.cache.get(file, this.options, format);
+		return ConversionCache.encode(this.streaming.convert(file, this.options, this.pool), this.options, format);
+	}
+
+	/**
+	 * Converts and encodes an encoded image, from the cache if it is there.
+	 * @param source The encoded image
+	 * @param format How to encode the result
+	 * @return The encoded result; do not modify it
+	 * @throws IOException If the image cannot be decoded or the result cannot be encoded
+	 */
+	public byte[] encode(byte[] source, ConversionCache.Format format) throws IOException {
+		if (this.cache != null) return this.cache.get(source, this.options, format);
+		try (InputStream in = new ByteArrayInputStream(source)) {
+			return ConversionCache.encode(this.streaming.convert(in, this.options, this.pool), this.options, format);
+		}
+	}
+}
@@ -4,14 +4,13 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
 import java.awt.Toolkit;
-import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
-import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 
@@ -21,13 +20,14 @@ import me.adamoates.img2ascii.main.Image2Ascii.RGB;
 public class AsciiFrame extends JFrame {
 	
 	private static final long serialVersionUID = 1L;
-	private static final int PACKED_SIZE = 10;
-	private ArrayList<ArrayList<Character>> lines;
-	private ArrayList<ArrayList<RGB>> colors;
-	private int currentLine = 1;
-	private int currentCharacter = 1;
-	private int fontSize = 10;
+	private AsciiGrid grid;
+	private final ConversionOptions options;
+	private int fontSize;
+	private Font font;
+	private Color color;
+	private final char[] glyph = new char[1];
 	private Graphics2D g;
+	private TilePyramid pyramid;
 	private double zoom = 1.0;
 	private int width;
 	private int height;
@@ -39,7 +39,7 @@ public class AsciiFrame extends JFrame {
 	 * @param colors
 	 */
 	public AsciiFrame(ArrayList<ArrayList<Character>> lines, ArrayList<ArrayList<RGB>> colors) {
-		this(lines, colors, "Image2Ascii");
+		this(AsciiGrid.fromLists(lines, colors));
 	}
 	
 	/**
@@ -50,6 +50,45 @@ public class AsciiFrame extends JFrame {
 	 * @param title
 	 */
 	public AsciiFrame(ArrayList<ArrayList<Character>> lines, ArrayList<ArrayList<RGB>> colors, String title) {
+		this(AsciiGrid.fromLists(lines, colors), title);
+	}
+	
+	/**
+	 * Instantiates an AsciiFrame from the grid of an AsciiImage object.
+	 * @param grid
+	 */
+	public AsciiFrame(AsciiGrid grid) {
+		this(grid, "Image2Ascii");
+	}
+	
+	/**
+	 * Instantiates an AsciiFrame from the grid of an AsciiImage object
+	 * and sets the title so specified String.
+	 * @param grid
+	 * @param title
+	 */
+	public AsciiFrame(AsciiGrid grid, String title) {
+		this(grid, title, ConversionOptions.fromGlobalFlags());
+	}
+	
+	/**
+	 * Instantiates an AsciiFrame from the grid of an AsciiImage object,
+	 * drawn with the font size, pack spacing and flags of the specified options.
+	 * @param grid
+	 * @param options
+	 */
+	public AsciiFrame(AsciiGrid grid, ConversionOptions options) {
+		this(grid, "Image2Ascii", options);
+	}
+	
+	/**
+	 * Instantiates an AsciiFrame from the grid of an AsciiImage object,
+	 * drawn with the specified options, and sets the title so specified String.
+	 * @param grid
+	 * @param title
+	 * @param options
+	 */
+	public AsciiFrame(AsciiGrid grid, String title, ConversionOptions options) {
 		super();
 		super.setTitle(title);
 		
@@ -60,15 +99,16 @@ public class AsciiFrame extends JFrame {
 		
 		super.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		
-		this.lines = lines;
-		this.colors = colors;
-		this.fontSize = 16;	// this should make
+		this.grid = grid;
+		this.options = options;
+		this.fontSize = options.getFontSize();
+		this.font = new Font(Font.MONOSPACED, Font.PLAIN, this.fontSize);
 		
 		this.toggleVisibility();
 		
 		this.g = (Graphics2D) super.getGraphics();
-		this.width = (int) (this.lines.get(0).size() * 1.0 * (this.fontSize / 2) * this.zoom);
-		this.height = (int) (this.lines.size() * 1.0 * this.fontSize * this.zoom);
+		this.width = (int) (this.grid.getWidth() * 1.0 * (this.fontSize / 2) * this.zoom);
+		this.height = (int) (this.grid.getHeight() * 1.0 * this.fontSize * this.zoom);
 	}
 	
 	/**
@@ -84,31 +124,38 @@ public class AsciiFrame extends JFrame {
 	 * @param h
 	 */
 	private void cleanSlate(int w, int h) {
-		this.g.setColor(new Color(220, 220, 210));
+		this.g.setColor(AsciiRenderer.BACKGROUND);
 		this.g.fillRect(0, 0, w, h);
 	}
 	
 	/**
-	 * Draws the ASCII contents to this AsciiFrame's buffer
+	 * Gets a renderer for this AsciiFrame's options.
+	 * @return The renderer this AsciiFrame draws with
+	 */
+	private AsciiRenderer renderer() {
+		return new AsciiRenderer(this.options);
+	}
+	
+	/**
+	 * Gets the tiles this AsciiFrame draws from, creating them the first
+	 * time they are needed. They are kept across zooms and repaints.
+	 * @return The rendered tiles of the grid
+	 */
+	public synchronized TilePyramid getPyramid() {
+		if (this.pyramid == null) this.pyramid = new TilePyramid(this.grid, this.renderer());
+		return this.pyramid;
+	}
+	
+	/**
+	 * Draws the ASCII contents to this AsciiFrame's buffer at the current
+	 * zoom. Only tiles not drawn before are rasterized.
 	 */
 	public void drawAscii() {
 		this.cleanSlate();
-		
-		for (int i = 0; i < this.lines.size(); i++) {
-			int y = this.fontSize * this.currentLine++;
-			if (Image2Ascii.flags.contains(Image2Ascii.Flag.PACK)) y -= this.currentLine * PACKED_SIZE;
-			this.currentCharacter = 1;
-			for (int j = 0; j < lines.get(i).size(); j++) {
-				int x = (this.fontSize / 2) * this.currentCharacter++;
-				if (Image2Ascii.flags.contains(Image2Ascii.Flag.PACK)) x -= this.currentCharacter * PACKED_SIZE / 2;
-				char ch = lines.get(i).get(j);
-				RGB rgb = colors.get(i).get(j);
-				this.drawCharacter(ch, rgb, x, y);
-			}
-		}
-		
-		this.currentLine = 1;
-		this.currentCharacter = 1;
+		this.g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		TilePyramid pyramid = this.getPyramid();
+		Rectangle view = new Rectangle(0, 0, (int) Math.ceil(pyramid.getWidth() * this.zoom), (int) Math.ceil(pyramid.getHeight() * this.zoom));
+		pyramid.draw(this.g, view, this.zoom);
 	}
 	
 	/**
@@ -117,31 +164,50 @@ public class AsciiFrame extends JFrame {
 	 * @param rgb Color of character
 	 * @param x X location of character
 	 * @param y Y location of character
+	 * @deprecated Draws through Graphics2D one character at a time; render
+	 * whole grids with {@link AsciiRenderer}, which draws from a shared
+	 * {@link GlyphAtlas}
 	 */
+	@Deprecated
 	public void drawCharacter(char ch, RGB rgb, int x, int y) {
-		Font f = new Font("monospace", Font.PLAIN, this.fontSize);
-		Color c = new Color(rgb.r, rgb.g, rgb.b);
-		this.g.setFont(f);
-		if (!(Image2Ascii.flags.contains(Flag.BLACK_AND_WHITE))) g.setColor(c);
-		this.g.drawString(Character.toString(ch), x, y);
+		this.drawCharacter(ch, rgb.toInt(), x, y);
+	}
+	
+	/**
+	 * Draws a single character to this AsciiImage's Graphics2D object
+	 * with the frame's font, allocating a Color only when it changes.
+	 * @param ch Character to draw 
+	 * @param rgb Packed RGB color of character
+	 * @param x X location of character
+	 * @param y Y location of character
+	 * @deprecated Draws through Graphics2D one character at a time; render
+	 * whole grids with {@link AsciiRenderer}, which draws from a shared
+	 * {@link GlyphAtlas}
+	 */
+	@Deprecated
+	public void drawCharacter(char ch, int rgb, int x, int y) {
+		this.g.setFont(this.font);
+		if (!(this.options.hasFlag(Flag.BLACK_AND_WHITE))) {
+			if (this.color == null || this.color.getRGB() != (0xff000000 | rgb)) this.color = new Color(rgb);
+			this.g.setColor(this.color);
+		}
+		this.glyph[0] = ch;
+		this.g.drawChars(this.glyph, 0, 1, x, y);
 	}
 	
 	/**
-	 * Zooms to specified value; default is 1.0.
+	 * Zooms to specified value; default is 1.0. The view is composed from
+	 * cached tiles of the nearest power-of-two level, so zooming back and
+	 * forth does not rasterize the grid again.
 	 * @param x
 	 */
 	public void zoom(double x) {
 		this.zoom = x;
-		this.width = (int) (this.lines.get(0).size() * 1.0 * (this.fontSize / 2) * this.zoom);
-		this.height = (int) (this.lines.size() * 1.0 * this.fontSize * this.zoom);
-		if (Image2Ascii.flags.contains(Image2Ascii.Flag.PACK)) this.height = (int) (this.lines.size() * 1.0 * (this.fontSize-PACKED_SIZE) * this.zoom);
-		if (Image2Ascii.flags.contains(Image2Ascii.Flag.PACK)) this.width = (int) (this.lines.get(0).size() * 1.0 * ((this.fontSize / 2) - PACKED_SIZE/2) * this.zoom);
+		TilePyramid pyramid = this.getPyramid();
+		this.width = (int) (pyramid.getWidth() * this.zoom);
+		this.height = (int) (pyramid.getHeight() * this.zoom);
 		super.setSize(this.width, this.height);
 		this.center();
-		
-		AffineTransform at = new AffineTransform();
-		at.scale(this.zoom, this.zoom);
-		this.g.setTransform(at);
 		this.drawAscii();
 	}
 	
@@ -151,25 +217,13 @@ public class AsciiFrame extends JFrame {
 	 * @return If file successfully wrote
 	 */
 	public boolean export(String path) {
-		int w = (int) (this.width / this.zoom);
-		int h = (int) (this.height / this.zoom);
-		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_BGR);
- 		Graphics2D tmp = this.g;
-
 		try {
-			Graphics2D graphic = image.createGraphics();
-			this.g = graphic;
-			this.cleanSlate(w, h);
-			this.drawAscii();
-	        File output = new File(path);
-	        ImageIO.write(image, "png", output);
-	    } catch(IOException e) {
-	    	System.err.println("Err: Failed to export image.");
-	    	e.printStackTrace();
-	        return false;
-	    } finally {
-	    	this.g = tmp;
-	    }
+			this.renderer().export(this.grid, new File(path));
+		} catch(IOException e) {
+			System.err.println("Err: Failed to export image.");
+			e.printStackTrace();
+			return false;
+		}
 		return true;
 	}
 	
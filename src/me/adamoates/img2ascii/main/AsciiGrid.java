@@ -0,0 +1,282 @@
+package me.adamoates.img2ascii.main;
+
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
+
+import me.adamoates.img2ascii.main.Image2Ascii.RGB;
+
+/**
+ * Compact storage for the characters and colors of a converted image.
+ * Cells are kept row-major in a flat <code>char[]</code> and a flat
+ * <code>int[]</code> of packed ARGB values, so a cell costs 6 bytes instead
+ * of a boxed Character plus an RGB object.
+ * <p>
+ * Grids converted to Unicode blocks also keep a background color for each
+ * cell in a third <code>int[]</code>. Grids without one behave as if every
+ * background were 0, transparent, which leaves the background to whatever
+ * the grid is written to.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class AsciiGrid implements GridView {
+	private final int width;
+	private final int height;
+	private final char[] chars;
+	private final int[] colors;
+	private final int[] backgrounds;
+
+	/**
+	 * Instantiates an empty grid of the specified size. Every cell starts out
+	 * as a space colored opaque black.
+	 * @param width Number of characters per row
+	 * @param height Number of rows
+	 */
+	public AsciiGrid(int width, int height) {
+		this(width, height, false);
+	}
+
+	/**
+	 * Instantiates an empty grid of the specified size, with or without a
+	 * background color for each cell. Every cell starts out as a space
+	 * colored opaque black on a transparent background.
+	 * @param width Number of characters per row
+	 * @param height Number of rows
+	 * @param backgrounds Keep a background color for each cell
+	 */
+	public AsciiGrid(int width, int height, boolean backgrounds) {
+		if (width < 0 || height < 0) throw new IllegalArgumentException("Grid size must not be negative: " + width + "x" + height);
+		this.width = width;
+		this.height = height;
+		this.chars = new char[Math.multiplyExact(width, height)];
+		this.colors = new int[this.chars.length];
+		Arrays.fill(this.chars, ' ');
+		Arrays.fill(this.colors, 0xff000000);
+		this.backgrounds = backgrounds ? new int[this.chars.length] : null;
+	}
+
+	/**
+	 * Builds a grid from the nested lists used by older versions of AsciiImage.
+	 * Rows shorter than the first row are padded with spaces.
+	 * @param lines The characters of each row
+	 * @param colors The colors of each row
+	 * @return A grid holding a copy of the specified cells
+	 */
+	public static AsciiGrid fromLists(ArrayList<ArrayList<Character>> lines, ArrayList<ArrayList<RGB>> colors) {
+		int h = lines.size();
+		int w = (h == 0) ? 0 : lines.get(0).size();
+		AsciiGrid grid = new AsciiGrid(w, h);
+		for (int y = 0; y < h; y++) {
+			ArrayList<Character> line = lines.get(y);
+			ArrayList<RGB> clrs = colors.get(y);
+			for (int x = 0; x < w && x < line.size(); x++) {
+				grid.set(x, y, line.get(x), clrs.get(x).toInt());
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 * Copies a region of another grid, such as a MappedGrid, onto the heap.
+	 * @param grid The grid to copy from
+	 * @param x The first column to copy
+	 * @param y The first row to copy
+	 * @param width Number of columns to copy
+	 * @param height Number of rows to copy
+	 * @return A grid holding a copy of the region
+	 */
+	public static AsciiGrid copyOf(GridView grid, int x, int y, int width, int height) {
+		Objects.checkFromIndexSize(x, width, grid.getWidth());
+		Objects.checkFromIndexSize(y, height, grid.getHeight());
+		AsciiGrid copy = new AsciiGrid(width, height, grid.hasBackgrounds());
+		for (int row = 0; row < height; row++) {
+			grid.copyRow(y + row, x, width, copy.chars, copy.colors, row * width);
+			if (copy.backgrounds != null) grid.copyRowBackgrounds(y + row, x, width, copy.backgrounds, row * width);
+		}
+		return copy;
+	}
+
+	/**
+	 * Gets the number of characters per row.
+	 * @return The grid width
+	 */
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Gets the number of rows.
+	 * @return The grid height
+	 */
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Gets the row-major offset of a cell in the backing arrays.
+	 * @param x The X location of the cell
+	 * @param y The Y location of the cell
+	 * @return <code>y * width + x</code>
+	 */
+	public int index(int x, int y) {
+		Objects.checkIndex(x, this.width);
+		Objects.checkIndex(y, this.height);
+		return y * this.width + x;
+	}
+
+	/**
+	 * Gets the character from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The character found at x and y
+	 */
+	@Override
+	public char get(int x, int y) {
+		return this.chars[this.index(x, y)];
+	}
+
+	/**
+	 * Gets the packed ARGB color from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The color found at x and y
+	 */
+	@Override
+	public int getRgb(int x, int y) {
+		return this.colors[this.index(x, y)];
+	}
+
+	/**
+	 * Gets whether this grid keeps a background color for each cell.
+	 * @return If cells have backgrounds
+	 */
+	@Override
+	public boolean hasBackgrounds() {
+		return this.backgrounds != null;
+	}
+
+	/**
+	 * Gets the packed ARGB background color from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The background found at x and y, or 0 if the grid has none
+	 */
+	@Override
+	public int getBackground(int x, int y) {
+		int i = this.index(x, y);
+		return (this.backgrounds != null) ? this.backgrounds[i] : 0;
+	}
+
+	/**
+	 * Sets the background color of a cell.
+	 * @param x The X location to write to
+	 * @param y The Y location to write to
+	 * @param argb The packed ARGB background
+	 * @throws IllegalStateException If the grid has no backgrounds
+	 */
+	public void setBackground(int x, int y, int argb) {
+		if (this.backgrounds == null) throw new IllegalStateException("Grid has no backgrounds");
+		this.backgrounds[this.index(x, y)] = argb;
+	}
+
+	/**
+	 * Sets the character and color of a cell.
+	 * @param x The X location to write to
+	 * @param y The Y location to write to
+	 * @param ch The character
+	 * @param argb The packed ARGB color
+	 */
+	public void set(int x, int y, char ch, int argb) {
+		int i = this.index(x, y);
+		this.chars[i] = ch;
+		this.colors[i] = argb;
+	}
+
+	/**
+	 * Gets a read-only view of the characters in a row. The view shares
+	 * storage with the grid; no characters are copied.
+	 * @param y The row to view
+	 * @return The characters of row <code>y</code>
+	 */
+	@Override
+	public CharBuffer getRow(int y) {
+		Objects.checkIndex(y, this.height);
+		return CharBuffer.wrap(this.chars, y * this.width, this.width).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Gets a read-only view of the colors in a row. The view shares
+	 * storage with the grid; no colors are copied.
+	 * @param y The row to view
+	 * @return The packed ARGB colors of row <code>y</code>
+	 */
+	@Override
+	public IntBuffer getRowColors(int y) {
+		Objects.checkIndex(y, this.height);
+		return IntBuffer.wrap(this.colors, y * this.width, this.width).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copies part of a row into arrays.
+	 * @param y The row to copy from
+	 * @param x The first column to copy
+	 * @param length The number of cells to copy
+	 * @param chars Receives the characters, or null to skip them
+	 * @param colors Receives the packed ARGB colors, or null to skip them
+	 * @param offset Where in <code>chars</code> and <code>colors</code> the first cell goes
+	 */
+	@Override
+	public void copyRow(int y, int x, int length, char[] chars, int[] colors, int offset) {
+		Objects.checkIndex(y, this.height);
+		Objects.checkFromIndexSize(x, length, this.width);
+		int i = y * this.width + x;
+		if (chars != null) System.arraycopy(this.chars, i, chars, offset, length);
+		if (colors != null) System.arraycopy(this.colors, i, colors, offset, length);
+	}
+
+	/**
+	 * Copies the background colors of part of a row into an array.
+	 * @param y The row to copy from
+	 * @param x The first column to copy
+	 * @param length The number of cells to copy
+	 * @param backgrounds Receives the packed ARGB backgrounds, 0 if the grid has none
+	 * @param offset Where in <code>backgrounds</code> the first cell goes
+	 */
+	@Override
+	public void copyRowBackgrounds(int y, int x, int length, int[] backgrounds, int offset) {
+		Objects.checkIndex(y, this.height);
+		Objects.checkFromIndexSize(x, length, this.width);
+		if (this.backgrounds != null) System.arraycopy(this.backgrounds, y * this.width + x, backgrounds, offset, length);
+		else Arrays.fill(backgrounds, offset, offset + length, 0);
+	}
+
+	/**
+	 * Gets the backing character array. Intended for bulk readers and writers
+	 * inside this package; callers must not resize or replace it.
+	 * @return The row-major characters
+	 */
+	char[] chars() {
+		return this.chars;
+	}
+
+	/**
+	 * Gets the backing color array. Intended for bulk readers and writers
+	 * inside this package; callers must not resize or replace it.
+	 * @return The row-major packed ARGB colors
+	 */
+	int[] colors() {
+		return this.colors;
+	}
+
+	/**
+	 * Gets the backing background array. Intended for bulk readers and
+	 * writers inside this package; callers must not resize or replace it.
+	 * @return The row-major packed ARGB backgrounds, or null if the grid has none
+	 */
+	int[] backgrounds() {
+		return this.backgrounds;
+	}
+}
@@ -0,0 +1,287 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import javax.imageio.ImageIO;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * Draws the characters of a grid into an off-screen BufferedImage.
+ * No window or other Swing component is involved, so rendering works with
+ * <code>java.awt.headless=true</code>. Characters are blended straight into
+ * the image's pixels from the masks of a shared {@link GlyphAtlas}.
+ * <p>
+ * Characters are laid out exactly like AsciiFrame lays them out: each cell
+ * is half the font size wide and the font size tall, or tighter when packed.
+ * <p>
+ * Cells with a background of their own are filled with it before any
+ * character is drawn. Half, quadrant and full blocks are filled as
+ * rectangles of their cell instead of drawn from the font, so neighboring
+ * blocks meet without gaps whatever the font's metrics.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class AsciiRenderer {
+
+	/** Font size AsciiFrame and AsciiImage render with. */
+	public static final int DEFAULT_FONT_SIZE = 16;
+	/** How many pixels PACK removes from each line, and half as many from each character. */
+	public static final int PACKED_SIZE = 10;
+	/** The color behind the characters. */
+	public static final Color BACKGROUND = new Color(220, 220, 210);
+
+	private final int fontSize;
+	private final int packedSize;
+	private final boolean pack;
+	private final boolean blackAndWhite;
+	private final GlyphAtlas atlas;
+
+	/**
+	 * Instantiates an AsciiRenderer.
+	 * @param fontSize Size of the characters in pixels
+	 * @param pack Squeeze characters and lines closer together, like Flag.PACK
+	 * @param blackAndWhite Draw every character black, like Flag.BLACK_AND_WHITE
+	 */
+	public AsciiRenderer(int fontSize, boolean pack, boolean blackAndWhite) {
+		this(fontSize, PACKED_SIZE, pack, blackAndWhite);
+	}
+
+	/**
+	 * Instantiates an AsciiRenderer with the font size, pack spacing and
+	 * flags of a set of conversion options. The glyphs of the options' ramp
+	 * are drawn from a prebuilt atlas.
+	 * @param options Decide the font size, pack spacing, ramp, PACK and BLACK_AND_WHITE
+	 */
+	public AsciiRenderer(ConversionOptions options) {
+		this(options.getFontSize(), options.getPackedSize(), options.hasFlag(Flag.PACK), options.hasFlag(Flag.BLACK_AND_WHITE), options.getRamp().getRamp());
+	}
+
+	/**
+	 * Instantiates an AsciiRenderer.
+	 * @param fontSize Size of the characters in pixels
+	 * @param packedSize How many pixels packing removes from each line, and half as many from each character
+	 * @param pack Squeeze characters and lines closer together, like Flag.PACK
+	 * @param blackAndWhite Draw every character black, like Flag.BLACK_AND_WHITE
+	 */
+	public AsciiRenderer(int fontSize, int packedSize, boolean pack, boolean blackAndWhite) {
+		this(fontSize, packedSize, pack, blackAndWhite, RampMapper.DEFAULT.getRamp());
+	}
+
+	/**
+	 * Instantiates an AsciiRenderer whose atlas is prebuilt for a ramp.
+	 * @param ramp The characters most likely to be drawn
+	 */
+	private AsciiRenderer(int fontSize, int packedSize, boolean pack, boolean blackAndWhite, char[] ramp) {
+		if (fontSize < 2) throw new IllegalArgumentException("Font size must be at least 2: " + fontSize);
+		if (packedSize < 0) throw new IllegalArgumentException("Pack spacing must not be negative: " + packedSize);
+		this.fontSize = fontSize;
+		this.packedSize = packedSize;
+		this.pack = pack;
+		this.blackAndWhite = blackAndWhite;
+		this.atlas = GlyphAtlas.get(new Font(Font.MONOSPACED, Font.PLAIN, fontSize), ramp);
+	}
+
+	/**
+	 * Gets the font size characters are drawn at.
+	 * @return The font size in pixels
+	 */
+	public int getFontSize() {
+		return this.fontSize;
+	}
+
+	/**
+	 * Gets the width of a rendered grid.
+	 * @param grid The grid to measure
+	 * @return The width in pixels
+	 */
+	public int getWidth(GridView grid) {
+		return grid.getWidth() * this.columnWidth();
+	}
+
+	/**
+	 * Gets the height of a rendered grid.
+	 * @param grid The grid to measure
+	 * @return The height in pixels
+	 */
+	public int getHeight(GridView grid) {
+		return grid.getHeight() * this.lineHeight();
+	}
+
+	/**
+	 * Gets how far apart characters are drawn horizontally.
+	 * @return The column pitch in pixels
+	 */
+	public int columnWidth() {
+		return Math.max(1, this.pack ? this.fontSize / 2 - this.packedSize / 2 : this.fontSize / 2);
+	}
+
+	/**
+	 * Gets how far apart lines are drawn.
+	 * @return The line pitch in pixels
+	 */
+	public int lineHeight() {
+		return Math.max(1, this.pack ? this.fontSize - this.packedSize : this.fontSize);
+	}
+
+	/**
+	 * Gets the X location a column's character is drawn at.
+	 * @param col The column
+	 * @return The left edge of the character in pixels
+	 */
+	public int charX(int col) {
+		int x = this.columnWidth() * (col + 1);
+		if (this.pack) x -= this.packedSize / 2;
+		return x;
+	}
+
+	/**
+	 * Gets the Y location of a row's baseline.
+	 * @param row The row
+	 * @return The baseline in pixels
+	 */
+	public int baselineY(int row) {
+		int y = this.lineHeight() * (row + 1);
+		if (this.pack) y -= this.packedSize;
+		return y;
+	}
+
+	/**
+	 * Renders a whole grid.
+	 * @param grid The grid to render
+	 * @return An opaque image of the grid
+	 */
+	public BufferedImage render(GridView grid) {
+		return this.render(grid, new Rectangle(0, 0, this.getWidth(grid), this.getHeight(grid)));
+	}
+
+	/**
+	 * Renders part of a grid. Pixel (0, 0) of the result is pixel
+	 * (<code>region.x</code>, <code>region.y</code>) of the whole rendering.
+	 * @param grid The grid to render
+	 * @param region The area of the whole rendering to draw, in pixels
+	 * @return An opaque image of the region
+	 */
+	public BufferedImage render(GridView grid, Rectangle region) {
+		ConversionMetrics.Span span = ConversionMetrics.begin(ConversionMetrics.Stage.RENDER);
+		BufferedImage image = new BufferedImage(Math.max(1, region.width), Math.max(1, region.height), BufferedImage.TYPE_INT_RGB);
+		int iw = image.getWidth(), ih = image.getHeight();
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+		Arrays.fill(pixels, BACKGROUND.getRGB() & 0x00ffffff);
+
+		int w = grid.getWidth(), h = grid.getHeight();
+		// glyphs are a font size tall and may be wider than their cell, most of all when packed
+		int rowMargin = this.fontSize / this.lineHeight() + 2, colMargin = this.fontSize / this.columnWidth() + 2;
+		int row0 = Math.max(0, Math.floorDiv(region.y, this.lineHeight()) - rowMargin);
+		int row1 = Math.min(h, Math.floorDiv(region.y + region.height, this.lineHeight()) + rowMargin);
+		int col0 = Math.max(0, Math.floorDiv(region.x, this.columnWidth()) - colMargin);
+		int col1 = Math.min(w, Math.floorDiv(region.x + region.width, this.columnWidth()) + colMargin);
+
+		char[] chars = new char[Math.max(0, col1 - col0)];
+		int[] colors = new int[chars.length];
+		int cw = this.columnWidth(), lh = this.lineHeight();
+		if (grid.hasBackgrounds() && !this.blackAndWhite) {
+			// all backgrounds first, so none covers a glyph reaching into its cell
+			for (int row = row0; row < row1; row++) {
+				int y = this.baselineY(row) - lh - region.y;
+				grid.copyRowBackgrounds(row, col0, chars.length, colors, 0);
+				for (int col = col0, i = 0; col < col1; col++, i++) {
+					if ((colors[i] >>> 24) != 0) fill(pixels, iw, ih, this.charX(col) - region.x, y, cw, lh, colors[i] & 0x00ffffff);
+				}
+			}
+		}
+		for (int row = row0; row < row1; row++) {
+			int y = this.baselineY(row) - region.y;
+			grid.copyRow(row, col0, chars.length, chars, colors, 0);
+			for (int col = col0, i = 0; col < col1; col++, i++) {
+				int rgb = this.blackAndWhite ? 0 : colors[i] & 0x00ffffff;
+				int x = this.charX(col) - region.x, quadrants = UnicodeMapper.quadrants(chars[i]);
+				if (quadrants < 0) {
+					this.atlas.draw(chars[i], rgb, pixels, iw, ih, x, y);
+					continue;
+				}
+				int top = y - lh, left = cw / 2, upper = lh / 2;
+				if ((quadrants & 1) != 0) fill(pixels, iw, ih, x, top, left, upper, rgb);
+				if ((quadrants & 2) != 0) fill(pixels, iw, ih, x + left, top, cw - left, upper, rgb);
+				if ((quadrants & 4) != 0) fill(pixels, iw, ih, x, top + upper, left, lh - upper, rgb);
+				if ((quadrants & 8) != 0) fill(pixels, iw, ih, x + left, top + upper, cw - left, lh - upper, rgb);
+			}
+		}
+		if (span != null) span.end(iw, ih, w, Math.max(0, row1 - row0), this.flags(), pixels.length, (long) pixels.length * Integer.BYTES);
+		return image;
+	}
+
+	/**
+	 * Fills a rectangle of an image's pixels, clipped to the image.
+	 */
+	private static void fill(int[] pixels, int iw, int ih, int x, int y, int w, int h, int rgb) {
+		int x0 = Math.max(0, x), x1 = Math.min(iw, x + w);
+		if (x0 >= x1) return;
+		for (int py = Math.max(0, y); py < Math.min(ih, y + h); py++) Arrays.fill(pixels, py * iw + x0, py * iw + x1, rgb);
+	}
+
+	/**
+	 * Draws the part of a grid inside a region onto a Graphics2D, background
+	 * included.
+	 * @param grid The grid to draw
+	 * @param g Where to draw; coordinates are those of the whole rendering
+	 * @param region The area to draw, in pixels
+	 */
+	public void draw(GridView grid, Graphics2D g, Rectangle region) {
+		g.drawImage(this.render(grid, region), region.x, region.y, null);
+	}
+
+	/**
+	 * Renders a grid and saves it as a PNG image.
+	 * @param grid The grid to render
+	 * @param file The location on disk to write to
+	 * @throws IOException If the image cannot be written
+	 */
+	public void export(GridView grid, File file) throws IOException {
+		BufferedImage image = this.render(grid);
+		ConversionMetrics.Span span = ConversionMetrics.begin(ConversionMetrics.Stage.ENCODE);
+		if (!ImageIO.write(image, "png", file)) throw new IOException("No PNG writer installed");
+		if (span != null) this.encoded(span, grid, image, file.length());
+	}
+
+	/**
+	 * Renders a grid and writes it to a stream as a PNG image. The stream is
+	 * not closed.
+	 * @param grid The grid to render
+	 * @param out Where to write to
+	 * @throws IOException If the image cannot be written
+	 */
+	public void export(GridView grid, OutputStream out) throws IOException {
+		BufferedImage image = this.render(grid);
+		ConversionMetrics.Span span = ConversionMetrics.begin(ConversionMetrics.Stage.ENCODE);
+		CountingOutputStream counter = (span != null) ? new CountingOutputStream(out) : null;
+		if (!ImageIO.write(image, "png", (counter != null) ? counter : out)) throw new IOException("No PNG writer installed");
+		if (span != null) this.encoded(span, grid, image, counter.count);
+	}
+
+	/**
+	 * Reports encoding a rendered grid.
+	 */
+	private void encoded(ConversionMetrics.Span span, GridView grid, BufferedImage image, long bytes) {
+		span.end(image.getWidth(), image.getHeight(), grid.getWidth(), grid.getHeight(), this.flags(), (long) image.getWidth() * image.getHeight(), bytes);
+	}
+
+	/**
+	 * Gets the flags this renderer draws like.
+	 */
+	private EnumSet<Flag> flags() {
+		EnumSet<Flag> flags = EnumSet.noneOf(Flag.class);
+		if (this.pack) flags.add(Flag.PACK);
+		if (this.blackAndWhite) flags.add(Flag.BLACK_AND_WHITE);
+		return flags;
+	}
+}
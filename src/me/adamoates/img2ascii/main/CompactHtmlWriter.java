@@ -0,0 +1,400 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Writes a grid as small HTML. Colors are quantized to a palette and
+ * each palette entry gets a short CSS class, so a cell costs its character
+ * instead of a whole inline style. Neighboring cells whose palette colors are
+ * within a tolerance share one element, and whitespace never starts a new
+ * one because its color cannot be seen.
+ * <p>
+ * Alternatively the grid can be written as a <code>&lt;canvas&gt;</code> and
+ * a script that draws it from a base64 payload of character and run-length
+ * encoded color indexes, which keeps the DOM to two nodes.
+ * <p>
+ * Only foreground colors are quantized; cell backgrounds, as grids of
+ * Unicode blocks have, are not written. {@link GridWriter#writeHtml} keeps them.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class CompactHtmlWriter {
+
+	/** Default number of palette colors. */
+	public static final int DEFAULT_PALETTE_SIZE = 64;
+	/** Default per-channel difference under which neighboring colors share an element. */
+	public static final int DEFAULT_TOLERANCE = 12;
+
+	/** Writes styled elements with the default palette size and tolerance. */
+	public static final CompactHtmlWriter DEFAULT = new CompactHtmlWriter(DEFAULT_PALETTE_SIZE, DEFAULT_TOLERANCE, false);
+
+	private static final int BUCKETS = 1 << 15;	// 5 bits per channel
+
+	private final int paletteSize;
+	private final int tolerance;
+	private final boolean canvas;
+
+	/**
+	 * Instantiates a CompactHtmlWriter.
+	 * @param paletteSize The most colors to quantize to, 1-256
+	 * @param tolerance Largest difference in any channel, 0-255, between the
+	 * palette colors of cells that may share an element; 0 merges only equal colors
+	 * @param canvas Write a canvas and a script that draws it instead of styled text
+	 */
+	public CompactHtmlWriter(int paletteSize, int tolerance, boolean canvas) {
+		if (paletteSize < 1 || paletteSize > 256) throw new IllegalArgumentException("Palette size must be 1-256: " + paletteSize);
+		if (tolerance < 0 || tolerance > 255) throw new IllegalArgumentException("Tolerance must be 0-255: " + tolerance);
+		this.paletteSize = paletteSize;
+		this.tolerance = tolerance;
+		this.canvas = canvas;
+	}
+
+	/**
+	 * Gets the most colors this writer quantizes to.
+	 * @return The palette size
+	 */
+	public int getPaletteSize() {
+		return this.paletteSize;
+	}
+
+	/**
+	 * Gets the largest channel difference between colors that share an element.
+	 * @return The tolerance
+	 */
+	public int getTolerance() {
+		return this.tolerance;
+	}
+
+	/**
+	 * Gets whether this writer draws on a canvas instead of writing styled text.
+	 * @return If a canvas is written
+	 */
+	public boolean isCanvas() {
+		return this.canvas;
+	}
+
+	/**
+	 * Writes a grid as compact HTML.
+	 * @param grid The grid to write
+	 * @param out Where to write to; it is not flushed or closed
+	 * @throws IOException If writing fails
+	 */
+	public void write(GridView grid, Writer out) throws IOException {
+		int w = grid.getWidth(), h = grid.getHeight();
+		int[] colors = new int[w];
+		int[] histogram = new int[BUCKETS];
+		long[] sumR = new long[BUCKETS], sumG = new long[BUCKETS], sumB = new long[BUCKETS];
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, null, colors, 0);
+			for (int rgb : colors) {
+				int b = bucket(rgb);
+				histogram[b]++;
+				sumR[b] += (rgb >> 16) & 0xff;
+				sumG[b] += (rgb >> 8) & 0xff;
+				sumB[b] += rgb & 0xff;
+			}
+		}
+		int[] palette = medianCut(histogram, sumR, sumG, sumB, this.paletteSize);
+		byte[] lut = nearest(histogram, palette);
+
+		if (this.canvas) {
+			char[] table = characterTable(grid);
+			if (table != null) {
+				this.writeCanvas(grid, lut, palette, table, out);
+				return;
+			}
+		}
+		this.writeStyled(grid, lut, palette, out);
+	}
+
+	/**
+	 * Resolves the cells of a row to the palette index of the element each
+	 * ends up in.
+	 * @param run The element of the cell before the row, or -1 for none
+	 * @param runs Receives the element of each cell
+	 * @return The element of the last cell in the row
+	 */
+	private int resolve(char[] chars, int[] colors, byte[] lut, int[] palette, int run, byte[] runs) {
+		for (int i = 0; i < chars.length; i++) {
+			int p = lut[bucket(colors[i])] & 0xff;
+			if (run < 0 || (!Character.isWhitespace(chars[i]) && p != run && !this.near(palette[p], palette[run]))) run = p;
+			runs[i] = (byte) run;
+		}
+		return run;
+	}
+
+	/**
+	 * Writes one element per run, styled by class. The rows are read twice:
+	 * once to find the classes used and once to write them.
+	 */
+	private void writeStyled(GridView grid, byte[] lut, int[] palette, Writer out) throws IOException {
+		int w = grid.getWidth(), h = grid.getHeight();
+		char[] chars = new char[w];
+		int[] colors = new int[w];
+		byte[] runs = new byte[w];
+		boolean[] used = new boolean[palette.length];
+		int run = -1;
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, chars, colors, 0);
+			run = this.resolve(chars, colors, lut, palette, run, runs);
+			for (byte r : runs) used[r & 0xff] = true;
+		}
+		StringBuilder css = new StringBuilder("<style>pre.i2a{font-size:6px;font-family:monospace;line-height:1}pre.i2a i{font-style:normal}");
+		for (int p = 0; p < palette.length; p++) {
+			if (!used[p]) continue;
+			css.append("pre.i2a .").append(className(p)).append("{color:");
+			hex(css, palette[p]);
+			css.append('}');
+		}
+		out.write(css.append("</style><pre class=\"i2a\">").toString());
+
+		char[] buf = new char[32];
+		int last = -1;
+		run = -1;
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, chars, colors, 0);
+			run = this.resolve(chars, colors, lut, palette, run, runs);
+			for (int i = 0; i < w; i++) {
+				int n = 0;
+				if ((runs[i] & 0xff) != last) {
+					if (last != -1) n = GridWriter.put(buf, n, "</i>");
+					last = runs[i] & 0xff;
+					n = GridWriter.put(buf, n, "<i class=");
+					n = GridWriter.put(buf, n, className(last));
+					buf[n++] = '>';
+				}
+				char ch = chars[i];
+				if (ch == '<') n = GridWriter.put(buf, n, "&lt;");
+				else if (ch == '>') n = GridWriter.put(buf, n, "&gt;");
+				else if (ch == '&') n = GridWriter.put(buf, n, "&amp;");
+				else buf[n++] = ch;
+				if (i == w - 1) buf[n++] = '\n';
+				out.write(buf, 0, n);
+			}
+		}
+		out.write(last != -1 ? "</i></pre>" : "</pre>");
+	}
+
+	/**
+	 * Writes a canvas and a script that draws the grid onto it. The payload
+	 * holds one character table index per cell, then (run length - 1, palette
+	 * index) byte pairs.
+	 */
+	private void writeCanvas(GridView grid, byte[] lut, int[] palette, char[] table, Writer out) throws IOException {
+		int w = grid.getWidth(), h = grid.getHeight();
+		char[] chars = new char[w];
+		int[] colors = new int[w];
+		byte[] runs = new byte[w];
+		char[] index = new char[Character.MAX_VALUE + 1];
+		for (int t = 0; t < table.length; t++) index[table[t]] = (char) t;
+		byte[] payload = new byte[Math.multiplyExact(Math.multiplyExact(w, h), 3)];
+		int n = 0;
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, chars, null, 0);
+			for (char ch : chars) payload[n++] = (byte) index[ch];
+		}
+		int run = -1, current = -1, length = 0;
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, chars, colors, 0);
+			run = this.resolve(chars, colors, lut, palette, run, runs);
+			for (byte r : runs) {
+				if (length > 0 && r == current && length < 256) {
+					length++;
+					continue;
+				}
+				if (length > 0) {
+					payload[n++] = (byte) (length - 1);
+					payload[n++] = (byte) current;
+				}
+				current = r;
+				length = 1;
+			}
+		}
+		if (length > 0) {
+			payload[n++] = (byte) (length - 1);
+			payload[n++] = (byte) current;
+		}
+
+		StringBuilder js = new StringBuilder("<canvas></canvas><script>(function(){var d=atob(\"");
+		js.append(Base64.getEncoder().encodeToString(Arrays.copyOf(payload, n)));
+		js.append("\"),W=").append(grid.getWidth()).append(",H=").append(grid.getHeight()).append(",P=[");
+		for (int p = 0; p < palette.length; p++) {
+			if (p > 0) js.append(',');
+			js.append('"');
+			hex(js, palette[p]);
+			js.append('"');
+		}
+		js.append("],T=\"");
+		for (char ch : table) {
+			if (ch < 0x20 || ch > 0x7e || ch == '"' || ch == '\\' || ch == '<') js.append(String.format("\\u%04x", (int) ch));
+			else js.append(ch);
+		}
+		js.append("\",c=document.currentScript.previousSibling,g=c.getContext(\"2d\"),f=\"6px monospace\";")
+			.append("g.font=f;var cw=g.measureText(\"M\").width;c.width=Math.ceil(W*cw);c.height=H*6;")
+			.append("g.font=f;g.textBaseline=\"top\";for(var i=0,k=W*H,r;k<d.length;){r=d.charCodeAt(k++)+1;g.fillStyle=P[d.charCodeAt(k++)];")
+			.append("for(;r>0;r--,i++)g.fillText(T[d.charCodeAt(i)],i%W*cw,(i/W|0)*6);}})();</script>");
+		out.write(js.toString());
+	}
+
+	/**
+	 * Checks whether two colors differ by at most the tolerance in every channel.
+	 */
+	private boolean near(int a, int b) {
+		return Math.abs(((a >> 16) & 0xff) - ((b >> 16) & 0xff)) <= this.tolerance
+			&& Math.abs(((a >> 8) & 0xff) - ((b >> 8) & 0xff)) <= this.tolerance
+			&& Math.abs((a & 0xff) - (b & 0xff)) <= this.tolerance;
+	}
+
+	/**
+	 * Gets the histogram bucket of a color: the top 5 bits of each channel.
+	 */
+	private static int bucket(int rgb) {
+		return ((rgb >> 9) & 0x7c00) | ((rgb >> 6) & 0x03e0) | ((rgb >> 3) & 0x001f);
+	}
+
+	/**
+	 * Chooses a palette by median cut over the occupied histogram buckets.
+	 * The box whose widest channel spans the most is split at the median
+	 * cell, until there are enough boxes or none can be split. Each palette
+	 * color is the mean of the exact colors in its box.
+	 * @return The palette colors as packed RGB
+	 */
+	private static int[] medianCut(int[] histogram, long[] sumR, long[] sumG, long[] sumB, int size) {
+		int occupied = 0;
+		for (int count : histogram) if (count > 0) occupied++;
+		if (occupied == 0) return new int[] { 0 };
+		int[] buckets = new int[occupied];
+		for (int b = 0, i = 0; b < BUCKETS; b++) if (histogram[b] > 0) buckets[i++] = b;
+
+		int[] start = new int[size], end = new int[size], span = new int[size], axis = new int[size];
+		end[0] = occupied;
+		measure(buckets, 0, occupied, span, axis, 0);
+		int boxes = 1;
+		while (boxes < size) {
+			int best = -1;
+			for (int box = 0; box < boxes; box++) if (span[box] > 0 && (best < 0 || span[box] > span[best])) best = box;
+			if (best < 0) break;	// every box is a single bucket
+
+			// sort the box along the channel, then cut where half its cells fall on each side
+			int s = start[best], e = end[best], shift = axis[best];
+			int[] keys = new int[e - s];
+			for (int i = s; i < e; i++) keys[i - s] = ((buckets[i] >> shift) & 0x1f) << 15 | buckets[i];
+			Arrays.sort(keys);
+			long total = 0;
+			for (int i = s; i < e; i++) {
+				buckets[i] = keys[i - s] & 0x7fff;
+				total += histogram[buckets[i]];
+			}
+			long seen = 0;
+			int cut = s + 1;
+			for (int i = s; i < e - 1; i++) {
+				seen += histogram[buckets[i]];
+				cut = i + 1;
+				if (seen * 2 >= total) break;
+			}
+			start[boxes] = cut;
+			end[boxes] = e;
+			end[best] = cut;
+			measure(buckets, s, cut, span, axis, best);
+			measure(buckets, cut, e, span, axis, boxes);
+			boxes++;
+		}
+
+		int[] palette = new int[boxes];
+		for (int box = 0; box < boxes; box++) {
+			long r = 0, g = 0, b = 0, count = 0;
+			for (int i = start[box]; i < end[box]; i++) {
+				r += sumR[buckets[i]];
+				g += sumG[buckets[i]];
+				b += sumB[buckets[i]];
+				count += histogram[buckets[i]];
+			}
+			palette[box] = (int) ((r + count / 2) / count) << 16 | (int) ((g + count / 2) / count) << 8 | (int) ((b + count / 2) / count);
+		}
+		return palette;
+	}
+
+	/**
+	 * Finds the channel a box spans the most of, as the shift of its 5 bits
+	 * in a bucket, and how many levels it spans.
+	 */
+	private static void measure(int[] buckets, int start, int end, int[] span, int[] axis, int box) {
+		span[box] = 0;
+		axis[box] = 0;
+		for (int shift = 0; shift <= 10; shift += 5) {
+			int lo = 31, hi = 0;
+			for (int i = start; i < end; i++) {
+				int c = (buckets[i] >> shift) & 0x1f;
+				lo = Math.min(lo, c);
+				hi = Math.max(hi, c);
+			}
+			if (hi - lo > span[box]) {
+				span[box] = hi - lo;
+				axis[box] = shift;
+			}
+		}
+	}
+
+	/**
+	 * Maps every occupied bucket to its nearest palette color.
+	 * @return Palette indexes by bucket
+	 */
+	private static byte[] nearest(int[] histogram, int[] palette) {
+		byte[] lut = new byte[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) {
+			if (histogram[b] == 0) continue;
+			// the center of the bucket
+			int r = ((b >> 10) << 3) + 4, g = (((b >> 5) & 0x1f) << 3) + 4, bl = ((b & 0x1f) << 3) + 4;
+			int best = 0, bestDistance = Integer.MAX_VALUE;
+			for (int p = 0; p < palette.length; p++) {
+				int dr = r - ((palette[p] >> 16) & 0xff), dg = g - ((palette[p] >> 8) & 0xff), db = bl - (palette[p] & 0xff);
+				int distance = dr * dr + dg * dg + db * db;
+				if (distance < bestDistance) {
+					best = p;
+					bestDistance = distance;
+				}
+			}
+			lut[b] = (byte) best;
+		}
+		return lut;
+	}
+
+	/**
+	 * Lists the distinct characters of a grid.
+	 * @return The characters, or null if there are more than 256
+	 */
+	private static char[] characterTable(GridView grid) {
+		boolean[] seen = new boolean[Character.MAX_VALUE + 1];
+		char[] table = new char[256];
+		char[] chars = new char[grid.getWidth()];
+		int n = 0;
+		for (int y = 0; y < grid.getHeight(); y++) {
+			grid.copyRow(y, 0, chars.length, chars, null, 0);
+			for (char ch : chars) {
+				if (seen[ch]) continue;
+				if (n == table.length) return null;
+				seen[ch] = true;
+				table[n++] = ch;
+			}
+		}
+		return Arrays.copyOf(table, n);
+	}
+
+	/**
+	 * Gets the CSS class name of a palette index: a-z, then aa-zz.
+	 */
+	private static String className(int p) {
+		if (p < 26) return String.valueOf((char) ('a' + p));
+		return new String(new char[] { (char) ('a' + p / 26 - 1), (char) ('a' + p % 26) });
+	}
+
+	/**
+	 * Appends a color as #rrggbb.
+	 */
+	private static void hex(StringBuilder sb, int rgb) {
+		sb.append('#');
+		for (int shift = 20; shift >= 0; shift -= 4) sb.append(Character.forDigit((rgb >> shift) & 0xf, 16));
+	}
+}
@@ -0,0 +1,478 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Caches encoded conversion results by content. The key is a SHA-256 hash of
+ * the source image's bytes or pixels, the conversion options and the output
+ * format, so the same image converted the same way is only converted once,
+ * whatever it is called.
+ * <p>
+ * Results live in a size-bounded in-memory LRU tier and, optionally, in a
+ * directory that survives restarts. Threads asking for a result that is
+ * already being converted wait for that conversion instead of starting
+ * another one.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class ConversionCache {
+
+	/** Changes whenever conversion output changes, so stale disk entries are never read. */
+	private static final String VERSION = "1";
+
+	/**
+	 * The encodings results are cached in.
+	 */
+	public static enum Format {
+		/** Plain characters, UTF-8 */
+		TEXT,
+		/** HTML with a span per color run, UTF-8 */
+		HTML,
+		/** HTML quantized by {@link CompactHtmlWriter#DEFAULT}, UTF-8 */
+		COMPACT_HTML,
+		/** ANSI 24-bit color text, UTF-8 */
+		ANSI_TRUECOLOR,
+		/** ANSI xterm 256 color text, UTF-8 */
+		ANSI_256,
+		/** ANSI 16 color text, UTF-8 */
+		ANSI_16,
+		/** A PNG rendering */
+		PNG
+	}
+
+	private final long maxMemoryBytes;
+	private final Path directory;
+	private final long maxDiskBytes;
+	private final ConversionPool pool;
+
+	// access ordered, so iteration starts at the least recently used entry
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryBytes = 0;
+	private final AtomicLong diskBytes = new AtomicLong();
+	private final ConcurrentHashMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder diskHits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder collapsed = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LongAdder diskEvictions = new LongAdder();
+
+	/**
+	 * Instantiates a ConversionCache that only keeps results in memory.
+	 * @param maxMemoryBytes The most bytes of results to keep in memory
+	 */
+	public ConversionCache(long maxMemoryBytes) {
+		this(maxMemoryBytes, null, 0, ConversionPool.COMMON);
+	}
+
+	/**
+	 * Instantiates a ConversionCache.
+	 * @param maxMemoryBytes The most bytes of results to keep in memory
+	 * @param directory Where to keep results across restarts; null for memory only
+	 * @param maxDiskBytes The most bytes of results to keep in <code>directory</code>
+	 * @param pool Decides whether and where rows of a missed result are converted in parallel
+	 * @throws UncheckedIOException If the directory cannot be created or read
+	 */
+	public ConversionCache(long maxMemoryBytes, File directory, long maxDiskBytes, ConversionPool pool) {
+		if (maxMemoryBytes < 0 || maxDiskBytes < 0) throw new IllegalArgumentException("Cache sizes must not be negative");
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.directory = (directory == null) ? null : directory.toPath();
+		this.maxDiskBytes = maxDiskBytes;
+		this.pool = pool;
+		if (this.directory != null) {
+			try {
+				Files.createDirectories(this.directory);
+				try (Stream<Path> files = Files.list(this.directory)) {
+					this.diskBytes.set(files.mapToLong(ConversionCache::size).sum());
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the converted result of an encoded image, converting it only if it
+	 * is not cached.
+	 * @param source The encoded image
+	 * @param options How to convert and render the image
+	 * @param format How the result is encoded
+	 * @return The encoded result; do not modify it
+	 * @throws IOException If the image cannot be decoded or the result cannot be encoded
+	 */
+	public byte[] get(byte[] source, ConversionOptions options, Format format) throws IOException {
+		MessageDigest digest = sha256();
+		digest.update((byte) 'B');
+		digest.update(source);
+		return this.get(digest, options, format, () -> {
+			try (InputStream in = new ByteArrayInputStream(source)) {
+				return StreamingConverter.DEFAULT.convert(in, options, this.pool);
+			}
+		});
+	}
+
+	/**
+	 * Gets the converted result of an image file, converting it only if it is
+	 * not cached. The file is read once to hash it, and again if it has to be
+	 * converted.
+	 * @param file The image file
+	 * @param options How to convert and render the image
+	 * @param format How the result is encoded
+	 * @return The encoded result; do not modify it
+	 * @throws IOException If the file cannot be read or decoded, or the result cannot be encoded
+	 */
+	public byte[] get(File file, ConversionOptions options, Format format) throws IOException {
+		MessageDigest digest = sha256();
+		digest.update((byte) 'B');
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			byte[] buf = new byte[1 << 16];
+			for (int n; (n = in.read(buf)) > 0; ) digest.update(buf, 0, n);
+		}
+		return this.get(digest, options, format, () -> StreamingConverter.DEFAULT.convert(file, options, this.pool));
+	}
+
+	/**
+	 * Gets the converted result of a decoded image, converting it only if it
+	 * is not cached. The image is keyed by its size and pixels, so images that
+	 * look the same share results however they are stored.
+	 * @param bimg The image
+	 * @param options How to convert and render the image
+	 * @param format How the result is encoded
+	 * @return The encoded result; do not modify it
+	 * @throws IOException If the result cannot be encoded
+	 */
+	public byte[] get(BufferedImage bimg, ConversionOptions options, Format format) throws IOException {
+		MessageDigest digest = sha256();
+		digest.update((byte) 'P');
+		RasterReader pixels = new RasterReader(bimg);
+		int w = pixels.getWidth(), h = pixels.getHeight();
+		int[] row = new int[w];
+		byte[] bytes = new byte[Math.max(8, w * 4)];
+		putInt(bytes, 0, w);
+		putInt(bytes, 4, h);
+		digest.update(bytes, 0, 8);
+		for (int y = 0; y < h; y++) {
+			pixels.readRow(y, row, 0);
+			for (int x = 0; x < w; x++) putInt(bytes, x * 4, row[x]);
+			digest.update(bytes, 0, w * 4);
+		}
+		return this.get(digest, options, format, () -> Image2Ascii.AsciiImage.convert(bimg, options, this.pool));
+	}
+
+	/**
+	 * Gets the number of results found in memory.
+	 * @return Memory hits
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Gets the number of results found on disk after missing in memory.
+	 * @return Disk hits
+	 */
+	public long getDiskHits() {
+		return this.diskHits.sum();
+	}
+
+	/**
+	 * Gets the number of results that had to be converted.
+	 * @return Misses
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * Gets the number of requests that waited for a conversion another thread
+	 * had already started, instead of converting themselves.
+	 * @return Collapsed requests
+	 */
+	public long getCollapsed() {
+		return this.collapsed.sum();
+	}
+
+	/**
+	 * Gets the number of results dropped from memory to stay under its limit.
+	 * @return Memory evictions
+	 */
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+
+	/**
+	 * Gets the number of results deleted from disk to stay under its limit.
+	 * @return Disk evictions
+	 */
+	public long getDiskEvictions() {
+		return this.diskEvictions.sum();
+	}
+
+	/**
+	 * Gets the number of bytes of results held in memory.
+	 * @return Bytes in the memory tier
+	 */
+	public synchronized long getMemoryBytes() {
+		return this.memoryBytes;
+	}
+
+	/**
+	 * Gets the number of bytes of results on disk, as counted when the cache
+	 * was created and changed by its own writes and evictions since.
+	 * @return Bytes in the disk tier
+	 */
+	public long getDiskBytes() {
+		return this.diskBytes.get();
+	}
+
+	/**
+	 * Drops every result held in memory. Results on disk are kept.
+	 */
+	public synchronized void clear() {
+		this.memory.clear();
+		this.memoryBytes = 0;
+	}
+
+	/**
+	 * Converts a source into a grid, for {@link ConversionCache#get}.
+	 */
+	private interface Conversion {
+		AsciiGrid convert() throws IOException;
+	}
+
+	/**
+	 * Looks a result up in memory, then on disk, then converts it. Only one
+	 * thread converts a key at a time; the others wait for its result.
+	 */
+	private byte[] get(MessageDigest digest, ConversionOptions options, Format format, Conversion conversion) throws IOException {
+		digest.update((VERSION + "|" + options.key() + "|" + format).getBytes(StandardCharsets.UTF_8));
+		String key = hex(digest.digest());
+
+		byte[] result = this.fromMemory(key);
+		if (result != null) {
+			this.hits.increment();
+			return result;
+		}
+
+		CompletableFuture<byte[]> mine = new CompletableFuture<>();
+		CompletableFuture<byte[]> running = this.inFlight.putIfAbsent(key, mine);
+		if (running != null) {
+			this.collapsed.increment();
+			return join(running);
+		}
+		try {
+			result = this.fromMemory(key);	// finished while this thread looked
+			if (result != null) {
+				this.hits.increment();
+				mine.complete(result);
+				return result;
+			}
+			result = this.fromDisk(key);
+			if (result != null) {
+				this.diskHits.increment();
+			} else {
+				this.misses.increment();
+				result = encode(conversion.convert(), options, format);
+				this.toDisk(key, result);
+			}
+			this.toMemory(key, result);
+			mine.complete(result);
+			return result;
+		} catch (IOException | RuntimeException | Error e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.inFlight.remove(key, mine);
+		}
+	}
+
+	private synchronized byte[] fromMemory(String key) {
+		return this.memory.get(key);
+	}
+
+	private synchronized void toMemory(String key, byte[] result) {
+		if (result.length > this.maxMemoryBytes) return;
+		byte[] old = this.memory.put(key, result);
+		if (old != null) this.memoryBytes -= old.length;
+		this.memoryBytes += result.length;
+		for (Iterator<byte[]> it = this.memory.values().iterator(); this.memoryBytes > this.maxMemoryBytes && it.hasNext(); ) {
+			this.memoryBytes -= it.next().length;
+			it.remove();
+			this.evictions.increment();
+		}
+	}
+
+	private byte[] fromDisk(String key) throws IOException {
+		if (this.directory == null) return null;
+		Path file = this.directory.resolve(key);
+		try {
+			byte[] result = Files.readAllBytes(file);
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));	// for LRU eviction
+			return result;
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes a result to disk, then deletes the least recently used results
+	 * if the directory has grown past its limit.
+	 */
+	private void toDisk(String key, byte[] result) throws IOException {
+		if (this.directory == null || result.length > this.maxDiskBytes) return;
+		// write aside and move into place, so readers never see part of a result
+		Path file = this.directory.resolve(key);
+		Path temp = Files.createTempFile(this.directory, key, ".tmp");
+		long replaced;
+		try {
+			Files.write(temp, result);
+			replaced = size(file);	// another process may have written the same key
+			try {
+				Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		if (this.diskBytes.addAndGet(result.length - replaced) > this.maxDiskBytes) this.trimDisk();
+	}
+
+	private synchronized void trimDisk() throws IOException {
+		Map<Path, Long> files = new LinkedHashMap<>();
+		try (Stream<Path> list = Files.list(this.directory)) {
+			list.filter(p -> !p.getFileName().toString().endsWith(".tmp"))
+				.sorted((a, b) -> Long.compare(modified(a), modified(b)))
+				.forEachOrdered(p -> files.put(p, size(p)));
+		}
+		long total = files.values().stream().mapToLong(Long::longValue).sum();
+		long target = this.maxDiskBytes - this.maxDiskBytes / 10;	// leave room so not every write trims
+		for (Map.Entry<Path, Long> file : files.entrySet()) {
+			if (total <= target) break;
+			if (Files.deleteIfExists(file.getKey())) {
+				total -= file.getValue();
+				this.diskEvictions.increment();
+			}
+		}
+		this.diskBytes.set(total);
+	}
+
+	/**
+	 * Encodes a grid in a format.
+	 */
+	static byte[] encode(AsciiGrid grid, ConversionOptions options, Format format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (format == Format.PNG) {
+			new AsciiRenderer(options).export(grid, out);
+			return out.toByteArray();
+		}
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		switch (format) {
+		case TEXT:
+			GridWriter.writeText(grid, writer);
+			break;
+		case HTML:
+			GridWriter.writeHtml(grid, writer);
+			break;
+		case COMPACT_HTML:
+			CompactHtmlWriter.DEFAULT.write(grid, writer);
+			break;
+		case ANSI_TRUECOLOR:
+			AnsiWriter.TRUECOLOR.write(grid, writer);
+			break;
+		case ANSI_256:
+			AnsiWriter.XTERM_256.write(grid, writer);
+			break;
+		default:
+			AnsiWriter.ANSI_16.write(grid, writer);
+			break;
+		}
+		writer.flush();
+		return out.toByteArray();
+	}
+
+	private static byte[] join(CompletableFuture<byte[]> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting for another thread's conversion");
+		} catch (CancellationException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof IOException) throw (IOException) t;
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new IOException(t);
+		}
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("Every Java runtime has SHA-256", e);
+		}
+	}
+
+	private static void putInt(byte[] bytes, int off, int v) {
+		bytes[off] = (byte) (v >>> 24);
+		bytes[off + 1] = (byte) (v >>> 16);
+		bytes[off + 2] = (byte) (v >>> 8);
+		bytes[off + 3] = (byte) v;
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+			chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+		}
+		return new String(chars);
+	}
+
+	private static long size(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;	// deleted meanwhile
+		}
+	}
+
+	private static long modified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package me.adamoates.img2ascii.main;
+
+import java.util.Set;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * Reports how long each stage of converting and rendering takes, as JDK
+ * Flight Recorder events and to a pluggable Listener.
+ * <p>
+ * Every stage emits a <code>me.adamoates.img2ascii.*</code> event carrying
+ * the size of the image and grid, the flags and the pixels and bytes
+ * handled. Record them with e.g.
+ * <code>-XX:StartFlightRecording:filename=img2ascii.jfr</code>. A Listener
+ * gets the same stages as plain numbers, to feed your own histograms.
+ * <p>
+ * When no Listener is set and Flight Recorder has not been started, a stage
+ * costs two field reads and allocates nothing.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public final class ConversionMetrics {
+
+	/**
+	 * The stages of a conversion.
+	 */
+	public static enum Stage {
+		/** Decoding image data into pixels */
+		DECODE,
+		/** Resampling pixels down to one color per character */
+		RESIZE,
+		/** Mapping colors to characters and output colors */
+		MAP,
+		/** Drawing characters into an image */
+		RENDER,
+		/** Writing text, HTML or PNG output */
+		ENCODE
+	}
+
+	/**
+	 * Receives the duration of every stage. It is called on the converting
+	 * threads, often several at once, so it must be thread-safe and quick.
+	 */
+	public static interface Listener {
+		/**
+		 * Called when a stage finishes.
+		 * @param stage The stage
+		 * @param nanos How long it took in nanoseconds
+		 * @param pixels How many pixels or characters it handled
+		 * @param bytes How many bytes it read or produced; characters for text written to a Writer
+		 */
+		void stage(Stage stage, long nanos, long pixels, long bytes);
+	}
+
+	private static volatile Listener listener = null;
+
+	private ConversionMetrics() {}
+
+	/**
+	 * Sets the listener every stage is reported to.
+	 * @param listener The listener, or null to stop reporting
+	 */
+	public static void setListener(Listener listener) {
+		ConversionMetrics.listener = listener;
+	}
+
+	/**
+	 * Gets the listener every stage is reported to.
+	 * @return The listener, or null if there is none
+	 */
+	public static Listener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Starts timing a stage.
+	 * @param stage The stage
+	 * @return The running stage, or null if nothing is listening
+	 */
+	static Span begin(Stage stage) {
+		Listener l = listener;
+		StageEvent event = null;
+		if (FlightRecorder.isInitialized()) {	// no recording can be running before this
+			event = newEvent(stage);
+			if (event.isEnabled()) event.begin();
+			else event = null;
+		}
+		if (l == null && event == null) return null;
+		return new Span(stage, event, l);
+	}
+
+	private static StageEvent newEvent(Stage stage) {
+		switch (stage) {
+		case DECODE: return new DecodeEvent();
+		case RESIZE: return new ResizeEvent();
+		case MAP: return new MapEvent();
+		case RENDER: return new RenderEvent();
+		default: return new EncodeEvent();
+		}
+	}
+
+	/**
+	 * A stage being timed.
+	 */
+	static final class Span {
+		private final Stage stage;
+		private final StageEvent event;
+		private final Listener listener;
+		private final long start = System.nanoTime();
+
+		private Span(Stage stage, StageEvent event, Listener listener) {
+			this.stage = stage;
+			this.event = event;
+			this.listener = listener;
+		}
+
+		/**
+		 * Stops timing and reports the stage.
+		 * @param width Width of the image the stage reads or draws, or 0
+		 * @param height Height of the image the stage reads or draws, or 0
+		 * @param columns Width of the grid
+		 * @param rows Number of grid rows the stage handled
+		 * @param flags The flags in effect
+		 * @param pixels Pixels or characters handled
+		 * @param bytes Bytes read or produced; characters for text written to a Writer
+		 */
+		void end(int width, int height, int columns, int rows, Set<Flag> flags, long pixels, long bytes) {
+			long nanos = System.nanoTime() - this.start;
+			if (this.event != null) {
+				this.event.end();
+				if (this.event.shouldCommit()) {
+					this.event.width = width;
+					this.event.height = height;
+					this.event.columns = columns;
+					this.event.rows = rows;
+					this.event.flags = flags.toString();
+					this.event.pixels = pixels;
+					this.event.bytes = bytes;
+					this.event.commit();
+				}
+			}
+			if (this.listener != null) this.listener.stage(this.stage, nanos, pixels, bytes);
+		}
+	}
+
+	/**
+	 * The fields every stage event has.
+	 */
+	@Category("Image2Ascii")
+	abstract static class StageEvent extends Event {
+		@Label("Image Width")
+		@Description("Width of the image the stage reads or draws")
+		int width;
+
+		@Label("Image Height")
+		@Description("Height of the image the stage reads or draws")
+		int height;
+
+		@Label("Columns")
+		@Description("Width of the grid")
+		int columns;
+
+		@Label("Rows")
+		@Description("Number of grid rows the stage handled")
+		int rows;
+
+		@Label("Flags")
+		String flags;
+
+		@Label("Pixels")
+		@Description("Pixels or characters handled")
+		long pixels;
+
+		@Label("Bytes")
+		@Description("Bytes read or produced; characters for text written to a Writer")
+		@DataAmount
+		long bytes;
+	}
+
+	@Name("me.adamoates.img2ascii.Decode")
+	@Label("Decode")
+	@Description("Decoding a strip of an image file")
+	static final class DecodeEvent extends StageEvent {}
+
+	@Name("me.adamoates.img2ascii.Resize")
+	@Label("Resize")
+	@Description("Resampling a band of pixels to one color per character")
+	static final class ResizeEvent extends StageEvent {}
+
+	@Name("me.adamoates.img2ascii.Map")
+	@Label("Map")
+	@Description("Mapping a band of colors to characters")
+	static final class MapEvent extends StageEvent {}
+
+	@Name("me.adamoates.img2ascii.Render")
+	@Label("Render")
+	@Description("Drawing characters into an image")
+	static final class RenderEvent extends StageEvent {}
+
+	@Name("me.adamoates.img2ascii.Encode")
+	@Label("Encode")
+	@Description("Writing text, HTML or PNG output")
+	static final class EncodeEvent extends StageEvent {}
+}
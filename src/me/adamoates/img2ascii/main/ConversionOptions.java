@@ -0,0 +1,295 @@
+package me.adamoates.img2ascii.main;
+
+import java.util.Collection;
+import java.util.EnumSet;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * Everything that decides how an image is converted and rendered: flags,
+ * ramp, scale, aspect correction, resampling, shape matching, Unicode
+ * output, font size and pack spacing.
+ * <p>
+ * ConversionOptions are immutable. Each <code>with</code> method returns a
+ * copy with one setting changed, so one instance can be shared by any
+ * number of threads and conversions cannot see each other's settings.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public final class ConversionOptions {
+
+	/** No flags, the default ramp, normal scale, adjusted for stretching, AREA resampling. */
+	public static final ConversionOptions DEFAULT = new ConversionOptions(EnumSet.noneOf(Flag.class), RampMapper.DEFAULT, 1.0, 1.0, true,
+			Resampler.Mode.AREA, null, null, AsciiRenderer.DEFAULT_FONT_SIZE, AsciiRenderer.PACKED_SIZE);
+
+	private final EnumSet<Flag> flags;
+	private final RampMapper ramp;
+	private final double scalex;
+	private final double scaley;
+	private final boolean adjust_for_stretching;
+	private final Resampler.Mode resampling;
+	private final ShapeMatcher.Layout shape;
+	private final UnicodeMapper.Mode unicode;
+	private final int fontSize;
+	private final int packedSize;
+
+	private ConversionOptions(EnumSet<Flag> flags, RampMapper ramp, double scalex, double scaley, boolean adjust_for_stretching,
+			Resampler.Mode resampling, ShapeMatcher.Layout shape, UnicodeMapper.Mode unicode, int fontSize, int packedSize) {
+		if (!(scalex > 0) || !(scaley > 0)) throw new IllegalArgumentException("Scale must be positive: " + scalex + ", " + scaley);
+		if (fontSize < 2) throw new IllegalArgumentException("Font size must be at least 2: " + fontSize);
+		if (packedSize < 0) throw new IllegalArgumentException("Pack spacing must not be negative: " + packedSize);
+		this.flags = flags;
+		this.ramp = ramp;
+		this.scalex = scalex;
+		this.scaley = scaley;
+		this.adjust_for_stretching = adjust_for_stretching;
+		this.resampling = resampling;
+		this.shape = shape;
+		this.unicode = unicode;
+		this.fontSize = fontSize;
+		this.packedSize = packedSize;
+	}
+
+	/**
+	 * Gets the default options with the flags currently in
+	 * {@link Image2Ascii#flags}. Later changes to the global flags do not
+	 * affect the result.
+	 * @return A snapshot of the global flags
+	 */
+	public static ConversionOptions fromGlobalFlags() {
+		return DEFAULT.withFlags(Image2Ascii.flags);
+	}
+
+	/**
+	 * Checks whether a flag is set.
+	 * @param flag The flag
+	 * @return If it is set
+	 */
+	public boolean hasFlag(Flag flag) {
+		return this.flags.contains(flag);
+	}
+
+	/**
+	 * Gets the flags that are set.
+	 * @return A copy of the flags
+	 */
+	public EnumSet<Flag> getFlags() {
+		return EnumSet.copyOf(this.flags);
+	}
+
+	/**
+	 * Gets the ramp pixel brightness is mapped with.
+	 * @return The ramp
+	 */
+	public RampMapper getRamp() {
+		return this.ramp;
+	}
+
+	/**
+	 * Gets how much the X dimension is scaled.
+	 * @return The X scale
+	 */
+	public double getScaleX() {
+		return this.scalex;
+	}
+
+	/**
+	 * Gets how much the Y dimension is scaled.
+	 * @return The Y scale
+	 */
+	public double getScaleY() {
+		return this.scaley;
+	}
+
+	/**
+	 * Gets whether rows are dropped to make up for characters being taller
+	 * than they are wide.
+	 * @return If converting adjusts for vertical stretching
+	 */
+	public boolean isAdjustForStretching() {
+		return this.adjust_for_stretching;
+	}
+
+	/**
+	 * Gets how each character's color is computed from the pixels.
+	 * @return The resampling mode
+	 */
+	public Resampler.Mode getResampling() {
+		return this.resampling;
+	}
+
+	/**
+	 * Gets how characters are matched to the shapes in each cell.
+	 * @return The sub-cell layout matched against, or null if characters are
+	 * chosen by brightness alone
+	 */
+	public ShapeMatcher.Layout getShapeMatching() {
+		return this.shape;
+	}
+
+	/**
+	 * Gets which Unicode block or Braille characters cells are drawn with.
+	 * @return The Unicode mode, or null if cells get characters of the ramp
+	 */
+	public UnicodeMapper.Mode getUnicode() {
+		return this.unicode;
+	}
+
+	/**
+	 * Gets the font size characters are rendered at.
+	 * @return The font size in pixels
+	 */
+	public int getFontSize() {
+		return this.fontSize;
+	}
+
+	/**
+	 * Gets how many pixels PACK removes from each line, and half as many from
+	 * each character.
+	 * @return The pack spacing in pixels
+	 */
+	public int getPackedSize() {
+		return this.packedSize;
+	}
+
+	/**
+	 * Gets these options with exactly the specified flags set.
+	 * @param flags The flags to set
+	 * @return The new options
+	 */
+	public ConversionOptions withFlags(Collection<Flag> flags) {
+		EnumSet<Flag> copy = EnumSet.noneOf(Flag.class);
+		copy.addAll(flags);
+		return new ConversionOptions(copy, this.ramp, this.scalex, this.scaley, this.adjust_for_stretching, this.resampling, this.shape, this.unicode, this.fontSize, this.packedSize);
+	}
+
+	/**
+	 * Gets these options with a flag set.
+	 * @param flag The flag to set
+	 * @return The new options
+	 */
+	public ConversionOptions with(Flag flag) {
+		EnumSet<Flag> copy = EnumSet.copyOf(this.flags);
+		copy.add(flag);
+		return this.withFlags(copy);
+	}
+
+	/**
+	 * Gets these options with a flag cleared.
+	 * @param flag The flag to clear
+	 * @return The new options
+	 */
+	public ConversionOptions without(Flag flag) {
+		EnumSet<Flag> copy = EnumSet.copyOf(this.flags);
+		copy.remove(flag);
+		return this.withFlags(copy);
+	}
+
+	/**
+	 * Gets these options with another ramp.
+	 * @param ramp Maps pixel brightness to characters
+	 * @return The new options
+	 */
+	public ConversionOptions withRamp(RampMapper ramp) {
+		return new ConversionOptions(this.flags, ramp, this.scalex, this.scaley, this.adjust_for_stretching, this.resampling, this.shape, this.unicode, this.fontSize, this.packedSize);
+	}
+
+	/**
+	 * Gets these options with both dimensions scaled the same.
+	 * @param scale How much to scale the X and Y dimensions
+	 * @return The new options
+	 */
+	public ConversionOptions withScale(double scale) {
+		return this.withScale(scale, scale);
+	}
+
+	/**
+	 * Gets these options with another scale.
+	 * @param scalex How much to scale the X dimension
+	 * @param scaley How much to scale the Y dimension
+	 * @return The new options
+	 */
+	public ConversionOptions withScale(double scalex, double scaley) {
+		return new ConversionOptions(this.flags, this.ramp, scalex, scaley, this.adjust_for_stretching, this.resampling, this.shape, this.unicode, this.fontSize, this.packedSize);
+	}
+
+	/**
+	 * Gets these options with or without the adjustment for vertical stretching.
+	 * @param adjust_for_stretching Adjust for vertical stretching?
+	 * @return The new options
+	 */
+	public ConversionOptions withAdjustForStretching(boolean adjust_for_stretching) {
+		return new ConversionOptions(this.flags, this.ramp, this.scalex, this.scaley, adjust_for_stretching, this.resampling, this.shape, this.unicode, this.fontSize, this.packedSize);
+	}
+
+	/**
+	 * Gets these options with another resampling mode.
+	 * @param resampling How each character's color is computed from the pixels
+	 * @return The new options
+	 */
+	public ConversionOptions withResampling(Resampler.Mode resampling) {
+		return new ConversionOptions(this.flags, this.ramp, this.scalex, this.scaley, this.adjust_for_stretching, resampling, this.shape, this.unicode, this.fontSize, this.packedSize);
+	}
+
+	/**
+	 * Gets these options with or without shape matching. With a layout, each
+	 * cell is sampled as a grid of sub-cells and gets the character of the
+	 * ramp whose glyph is shaped most like them; cells with little contrast
+	 * still get their character by brightness.
+	 * @param shape The sub-cell layout to match against, or null to choose by brightness alone
+	 * @return The new options
+	 * @see ShapeMatcher
+	 */
+	public ConversionOptions withShapeMatching(ShapeMatcher.Layout shape) {
+		return new ConversionOptions(this.flags, this.ramp, this.scalex, this.scaley, this.adjust_for_stretching, this.resampling, shape, this.unicode, this.fontSize, this.packedSize);
+	}
+
+	/**
+	 * Gets these options with or without Unicode output. With a mode, each
+	 * cell is sampled as a small grid of pixels and drawn as the block or
+	 * Braille character showing which of them are dark, with a foreground
+	 * and a background color; the ramp and shape matching are not used.
+	 * @param unicode The characters to draw cells with, or null for characters of the ramp
+	 * @return The new options
+	 * @see UnicodeMapper
+	 */
+	public ConversionOptions withUnicode(UnicodeMapper.Mode unicode) {
+		return new ConversionOptions(this.flags, this.ramp, this.scalex, this.scaley, this.adjust_for_stretching, this.resampling, this.shape, unicode, this.fontSize, this.packedSize);
+	}
+
+	/**
+	 * Gets these options with another font size.
+	 * @param fontSize Size of the rendered characters in pixels
+	 * @return The new options
+	 */
+	public ConversionOptions withFontSize(int fontSize) {
+		return new ConversionOptions(this.flags, this.ramp, this.scalex, this.scaley, this.adjust_for_stretching, this.resampling, this.shape, this.unicode, fontSize, this.packedSize);
+	}
+
+	/**
+	 * Gets these options with another pack spacing.
+	 * @param packedSize Pixels PACK removes from each line, and half as many from each character
+	 * @return The new options
+	 */
+	public ConversionOptions withPackedSize(int packedSize) {
+		return new ConversionOptions(this.flags, this.ramp, this.scalex, this.scaley, this.adjust_for_stretching, this.resampling, this.shape, this.unicode, this.fontSize, packedSize);
+	}
+
+	/**
+	 * Gets a string that differs whenever two options would convert or
+	 * render differently, ramp included.
+	 * @return A key for caching results
+	 */
+	String key() {
+		return this.flags + "|" + new String(this.ramp.getRamp()) + "|" + Double.doubleToLongBits(this.scalex) + "|" + Double.doubleToLongBits(this.scaley)
+				+ "|" + this.adjust_for_stretching + "|" + this.resampling + "|" + this.shape + "|" + this.unicode + "|" + this.fontSize + "|" + this.packedSize;
+	}
+
+	@Override
+	public String toString() {
+		return "ConversionOptions" + this.flags + " scale " + this.scalex + "x" + this.scaley
+				+ (this.adjust_for_stretching ? " adjusted" : "") + " " + this.resampling
+				+ ((this.shape != null) ? " shape " + this.shape : "")
+				+ ((this.unicode != null) ? " unicode " + this.unicode : "")
+				+ " font " + this.fontSize + " pack " + this.packedSize;
+	}
+}
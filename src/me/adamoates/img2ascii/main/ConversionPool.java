@@ -0,0 +1,138 @@
+package me.adamoates.img2ascii.main;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Splits the rows of a conversion into bands and converts them on several
+ * threads. Each band writes a disjoint range of cells, so the result is the
+ * same as converting row by row on one thread.
+ * <p>
+ * The calling thread takes part in the work: bands are claimed from a shared
+ * counter by the caller and by the helper tasks alike, so a conversion
+ * finishes even when the executor is busy or is the pool the caller itself
+ * runs on.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class ConversionPool {
+
+	/** Default minimum number of pixels worth handing to another thread. */
+	public static final int DEFAULT_BAND_PIXELS = 1 << 16;
+
+	/** Converts on the common ForkJoinPool once an image has two bands' worth of pixels. */
+	public static final ConversionPool COMMON = new ConversionPool(ForkJoinPool.commonPool(), ForkJoinPool.getCommonPoolParallelism() + 1, DEFAULT_BAND_PIXELS);
+
+	/** Always converts on the calling thread. */
+	public static final ConversionPool SEQUENTIAL = new ConversionPool(null, 1, Integer.MAX_VALUE);
+
+	/**
+	 * A range of rows to convert.
+	 */
+	public interface RowBand {
+		/**
+		 * Converts rows <code>y0</code> (inclusive) to <code>y1</code> (exclusive).
+		 * @param y0 The first row
+		 * @param y1 One past the last row
+		 */
+		void convert(int y0, int y1);
+	}
+
+	private final Executor executor;
+	private final int parallelism;
+	private final int bandPixels;
+
+	/**
+	 * Instantiates a ConversionPool.
+	 * @param executor Runs the helper tasks; <code>null</code> to always convert on the calling thread
+	 * @param parallelism The most threads, including the caller, to use for one conversion
+	 * @param bandPixels The fewest pixels in a band; images smaller than two bands are not split
+	 */
+	public ConversionPool(Executor executor, int parallelism, int bandPixels) {
+		if (parallelism < 1) throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+		if (bandPixels < 1) throw new IllegalArgumentException("Band size must be at least 1 pixel: " + bandPixels);
+		this.executor = executor;
+		this.parallelism = parallelism;
+		this.bandPixels = bandPixels;
+	}
+
+	/**
+	 * Instantiates a ConversionPool that uses every thread of a ForkJoinPool.
+	 * @param pool Runs the helper tasks
+	 * @param bandPixels The fewest pixels in a band; images smaller than two bands are not split
+	 */
+	public ConversionPool(ForkJoinPool pool, int bandPixels) {
+		this(pool, pool.getParallelism() + 1, bandPixels);
+	}
+
+	/**
+	 * Converts all rows of an image, splitting them into bands when the image
+	 * is large enough. Returns once every row is converted.
+	 * @param width Pixels per row
+	 * @param height Number of rows
+	 * @param band Converts a range of rows
+	 */
+	public void convert(int width, int height, RowBand band) {
+		this.convert(height, (long) width * height, band);
+	}
+
+	/**
+	 * Converts all rows of an image, splitting them into bands when there is
+	 * enough work. Use this when the work per row is not the output width,
+	 * e.g. when every output row averages many source rows.
+	 * @param height Number of rows
+	 * @param pixels Number of pixels read to convert every row
+	 * @param band Converts a range of rows
+	 */
+	public void convert(int height, long pixels, RowBand band) {
+		int bands = (int) Math.min(Math.min(pixels / this.bandPixels, height), this.parallelism * 4L);
+		if (this.executor == null || this.parallelism == 1 || bands < 2) {
+			band.convert(0, height);
+			return;
+		}
+
+		AtomicInteger next = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(bands);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Runnable worker = () -> {
+			for (int b; (b = next.getAndIncrement()) < bands; ) {
+				try {
+					if (failure.get() == null) band.convert(b * height / bands, (b + 1) * height / bands);
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+
+		for (int i = 1; i < Math.min(this.parallelism, bands); i++) {
+			try {
+				this.executor.execute(worker);
+			} catch (RejectedExecutionException e) {
+				break;	// the caller picks up whatever the helpers don't
+			}
+		}
+		worker.run();
+
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;	// bands already claimed must finish before the grid is used
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+
+		Throwable t = failure.get();
+		if (t instanceof RuntimeException) throw (RuntimeException) t;
+		if (t instanceof Error) throw (Error) t;
+		if (t != null) throw new CompletionException(t);
+	}
+}
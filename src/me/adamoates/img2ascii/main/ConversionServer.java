@@ -0,0 +1,631 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * Converts images over HTTP, using only the JDK's built-in server.
+ * <p>
+ * <code>POST /convert</code> takes the encoded image as the request body
+ * and streams back the result. Options go in the query string:
+ * <ul>
+ * <li><code>format</code>: txt (default), html, compact, ansi, ansi256, ansi16 or png</li>
+ * <li><code>scale</code>, or <code>scalex</code> and <code>scaley</code></li>
+ * <li><code>flags</code>: comma separated, e.g. <code>invert,grayscale</code></li>
+ * <li><code>adjust</code>: false to not adjust for vertical stretching</li>
+ * <li><code>resampling</code>: area, box, nearest, ...</li>
+ * <li><code>shape</code>: 2x4 or 4x4 to choose characters by the shape of each cell</li>
+ * <li><code>unicode</code>: half-blocks, quadrants or braille to draw cells with Unicode characters</li>
+ * <li><code>font</code>: the font size of PNG output</li>
+ * </ul>
+ * e.g. <code>curl --data-binary @cat.jpg 'localhost:8080/convert?format=ansi&amp;scale=0.2'</code>.
+ * <code>GET /metrics</code> returns request counts, the requests in flight
+ * and queued, and latency percentiles, in the Prometheus text format.
+ * <p>
+ * Each request runs on its own virtual thread when the runtime has them.
+ * At most <code>maxConcurrent</code> requests convert at once and at most
+ * <code>maxQueued</code> wait for a turn. Further requests are turned away
+ * at once with 429 Too Many Requests, and requests that wait longer than
+ * the queue timeout get 503 Service Unavailable, so overload costs neither
+ * memory nor threads. Uploads, source images and rendered PNGs are capped
+ * in size and refused with 413 when too large.
+ * <p>
+ * Given a {@link ConversionCache}, the server reads each upload whole and
+ * answers from the cache, so an image uploaded again with the same options
+ * is not converted again.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class ConversionServer {
+
+	/** Default most requests converting at once. */
+	public static final int DEFAULT_MAX_CONCURRENT = Runtime.getRuntime().availableProcessors();
+	/** Default most requests waiting to convert. */
+	public static final int DEFAULT_MAX_QUEUED = 4 * DEFAULT_MAX_CONCURRENT;
+	/** Default longest a request waits to convert, in milliseconds. */
+	public static final long DEFAULT_QUEUE_TIMEOUT = 10_000;
+	/** Default largest upload: 32 MB. */
+	public static final long DEFAULT_MAX_UPLOAD_BYTES = 32L << 20;
+	/** Default most pixels in a source image or a rendered PNG: 64 megapixels. */
+	public static final long DEFAULT_MAX_PIXELS = 64L << 20;
+
+	/** Latencies kept for percentiles; the newest replace the oldest. */
+	private static final int LATENCY_SAMPLES = 4096;
+
+	private static enum Format {
+		TXT("text/plain; charset=utf-8", ConversionCache.Format.TEXT),
+		HTML("text/html; charset=utf-8", ConversionCache.Format.HTML),
+		COMPACT("text/html; charset=utf-8", ConversionCache.Format.COMPACT_HTML),
+		ANSI("text/plain; charset=utf-8", ConversionCache.Format.ANSI_TRUECOLOR),
+		ANSI256("text/plain; charset=utf-8", ConversionCache.Format.ANSI_256),
+		ANSI16("text/plain; charset=utf-8", ConversionCache.Format.ANSI_16),
+		PNG("image/png", ConversionCache.Format.PNG);
+
+		final String contentType;
+		final ConversionCache.Format cached;
+
+		Format(String contentType, ConversionCache.Format cached) {
+			this.contentType = contentType;
+			this.cached = cached;
+		}
+	}
+
+	/**
+	 * A request that cannot be served, with the status to answer it with.
+	 */
+	private static final class HttpError extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int status;
+
+		HttpError(int status, String message) {
+			super(message);
+			this.status = status;
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final ConversionOptions defaults;
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final long queueTimeout;
+	private final long maxUploadBytes;
+	private final long maxPixels;
+	private final ConversionCache cache;
+
+	private final Semaphore admission;
+	private final Semaphore slots;
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder converted = new LongAdder();
+	private final LongAdder tooManyRequests = new LongAdder();
+	private final LongAdder unavailable = new LongAdder();
+	private final LongAdder clientErrors = new LongAdder();
+	private final LongAdder serverErrors = new LongAdder();
+	private final LongAdder pixels = new LongAdder();
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+	private long latencyCount = 0;
+
+	/**
+	 * Instantiates a ConversionServer with the default limits. It does not
+	 * listen until started.
+	 * @param address Where to listen; port 0 picks a free port
+	 * @param defaults The options requests start from
+	 * @throws IOException If the address cannot be bound
+	 */
+	public ConversionServer(InetSocketAddress address, ConversionOptions defaults) throws IOException {
+		this(address, defaults, DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_QUEUED, DEFAULT_QUEUE_TIMEOUT, DEFAULT_MAX_UPLOAD_BYTES, DEFAULT_MAX_PIXELS);
+	}
+
+	/**
+	 * Instantiates a ConversionServer. It does not listen until started.
+	 * @param address Where to listen; port 0 picks a free port
+	 * @param defaults The options requests start from
+	 * @param maxConcurrent Most requests converting at once
+	 * @param maxQueued Most requests waiting to convert; more get 429
+	 * @param queueTimeout Longest a request waits to convert in milliseconds; longer gets 503
+	 * @param maxUploadBytes Largest upload; larger gets 413
+	 * @param maxPixels Most pixels in a source image or rendered PNG; more gets 413
+	 * @throws IOException If the address cannot be bound
+	 */
+	public ConversionServer(InetSocketAddress address, ConversionOptions defaults, int maxConcurrent, int maxQueued, long queueTimeout,
+			long maxUploadBytes, long maxPixels) throws IOException {
+		this(address, defaults, maxConcurrent, maxQueued, queueTimeout, maxUploadBytes, maxPixels, null);
+	}
+
+	/**
+	 * Instantiates a ConversionServer that answers from a cache. It does not
+	 * listen until started.
+	 * @param address Where to listen; port 0 picks a free port
+	 * @param defaults The options requests start from
+	 * @param maxConcurrent Most requests converting at once
+	 * @param maxQueued Most requests waiting to convert; more get 429
+	 * @param queueTimeout Longest a request waits to convert in milliseconds; longer gets 503
+	 * @param maxUploadBytes Largest upload; larger gets 413
+	 * @param maxPixels Most pixels in a source image or rendered PNG; more gets 413
+	 * @param cache Where results are looked up before converting, or null to
+	 * always convert; requests are already converted side by side, so its
+	 * pool is best {@link ConversionPool#SEQUENTIAL}
+	 * @throws IOException If the address cannot be bound
+	 */
+	public ConversionServer(InetSocketAddress address, ConversionOptions defaults, int maxConcurrent, int maxQueued, long queueTimeout,
+			long maxUploadBytes, long maxPixels, ConversionCache cache) throws IOException {
+		if (maxConcurrent < 1) throw new IllegalArgumentException("Need at least 1 concurrent request: " + maxConcurrent);
+		if (maxQueued < 0) throw new IllegalArgumentException("Queue size must not be negative: " + maxQueued);
+		this.defaults = defaults;
+		this.maxConcurrent = maxConcurrent;
+		this.maxQueued = maxQueued;
+		this.queueTimeout = queueTimeout;
+		this.maxUploadBytes = maxUploadBytes;
+		this.maxPixels = maxPixels;
+		this.cache = cache;
+		this.admission = new Semaphore(maxConcurrent + maxQueued);
+		this.slots = new Semaphore(maxConcurrent, true);
+		this.executor = newExecutor();
+		this.server = HttpServer.create(address, 0);
+		this.server.setExecutor(this.executor);
+		this.server.createContext("/convert", this::convert);
+		this.server.createContext("/metrics", this::metrics);
+	}
+
+	/**
+	 * Starts listening.
+	 */
+	public void start() {
+		this.server.start();
+	}
+
+	/**
+	 * Stops listening and waits for requests in progress to finish.
+	 * @param seconds The longest to wait
+	 */
+	public void stop(int seconds) {
+		this.server.stop(seconds);
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Gets the address the server listens on.
+	 * @return The address, with the actual port
+	 */
+	public InetSocketAddress getAddress() {
+		return this.server.getAddress();
+	}
+
+	/**
+	 * Gets the number of requests converting right now.
+	 * @return Requests in flight
+	 */
+	public int getInFlight() {
+		return this.inFlight.get();
+	}
+
+	/**
+	 * Gets the number of requests waiting to convert right now.
+	 * @return Queued requests
+	 */
+	public int getQueued() {
+		return this.queued.get();
+	}
+
+	/**
+	 * Gets an executor that starts a virtual thread per request when the
+	 * runtime has them, or else a new platform thread. The admission queue,
+	 * not the executor, bounds how many requests are running.
+	 */
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	/**
+	 * Handles <code>/convert</code>.
+	 */
+	private void convert(HttpExchange exchange) throws IOException {
+		long started = System.nanoTime();
+		this.requests.increment();
+		try {
+			if (!exchange.getRequestMethod().equals("POST")) {
+				exchange.getResponseHeaders().set("Allow", "POST");
+				this.fail(exchange, new HttpError(405, "Use POST with the image as the body"));
+				return;
+			}
+			// refuse before reading the body, so overload costs no memory
+			if (!this.admission.tryAcquire()) {
+				this.tooManyRequests.increment();
+				exchange.getResponseHeaders().set("Retry-After", "1");
+				this.fail(exchange, new HttpError(429, "Too many requests waiting"));
+				return;
+			}
+			try {
+				this.admitted(exchange, started);
+			} finally {
+				this.admission.release();
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Waits for a turn to convert, then converts.
+	 */
+	private void admitted(HttpExchange exchange, long started) throws IOException {
+		boolean turn;
+		this.queued.incrementAndGet();
+		try {
+			turn = this.slots.tryAcquire(this.queueTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			turn = false;
+		} finally {
+			this.queued.decrementAndGet();
+		}
+		if (!turn) {
+			this.unavailable.increment();
+			exchange.getResponseHeaders().set("Retry-After", "1");
+			this.fail(exchange, new HttpError(503, "Timed out waiting to convert"));
+			return;
+		}
+
+		this.inFlight.incrementAndGet();
+		try {
+			this.respond(exchange);
+			this.converted.increment();
+		} catch (HttpError e) {
+			this.fail(exchange, e);
+		} catch (IOException | RuntimeException e) {
+			this.serverErrors.increment();
+			if (exchange.getResponseCode() < 0) this.fail(exchange, new HttpError(500, e.toString()));
+		} finally {
+			this.inFlight.decrementAndGet();
+			this.slots.release();
+			this.recordLatency(System.nanoTime() - started);
+		}
+	}
+
+	/**
+	 * Converts the uploaded image and streams the result.
+	 */
+	private void respond(HttpExchange exchange) throws IOException, HttpError {
+		Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+		Format format;
+		ConversionOptions options;
+		try {
+			format = parse(Format.class, "format", query.getOrDefault("format", "txt"));
+			options = this.options(query);
+		} catch (IllegalArgumentException e) {
+			throw new HttpError(400, e.getMessage());
+		}
+
+		String length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (length != null) {
+			long bytes;
+			try {
+				bytes = Long.parseLong(length.trim());
+			} catch (NumberFormatException e) {
+				throw new HttpError(400, "Malformed Content-Length: " + length);
+			}
+			if (bytes > this.maxUploadBytes) throw new HttpError(413, "Uploads are limited to " + this.maxUploadBytes + " bytes");
+		}
+		if (this.cache != null) {
+			this.respondCached(exchange, format, options);
+			return;
+		}
+
+		AsciiGrid grid;
+		try (ImageInputStream in = ImageIO.createImageInputStream(new LimitedInputStream(exchange.getRequestBody(), this.maxUploadBytes))) {
+			ImageReader reader;
+			try {
+				reader = StreamingConverter.openReader(in);
+			} catch (IOException e) {
+				throw new HttpError(tooLarge(e) ? 413 : 415, e.getMessage());
+			}
+			try {
+				long size = (long) reader.getWidth(0) * reader.getHeight(0);
+				if (size > this.maxPixels) throw new HttpError(413, "Images are limited to " + this.maxPixels + " pixels");
+				// requests are the unit of parallelism, so each converts on its own thread
+				grid = StreamingConverter.DEFAULT.convert(reader, options, ConversionPool.SEQUENTIAL);
+				this.pixels.add(size);
+			} catch (IllegalArgumentException e) {
+				throw new HttpError(400, e.getMessage());
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException e) {
+			if (tooLarge(e)) throw new HttpError(413, "Uploads are limited to " + this.maxUploadBytes + " bytes");
+			throw new HttpError(422, "Cannot decode the image: " + e.getMessage());
+		}
+
+		AsciiRenderer renderer = (format == Format.PNG) ? new AsciiRenderer(options) : null;
+		if (renderer != null && (long) renderer.getWidth(grid) * renderer.getHeight(grid) > this.maxPixels) {
+			throw new HttpError(413, "Renderings are limited to " + this.maxPixels + " pixels; lower the scale or font size");
+		}
+
+		exchange.getResponseHeaders().set("Content-Type", format.contentType);
+		exchange.sendResponseHeaders(200, 0);	// chunked, so output streams as it is encoded
+		OutputStream body = exchange.getResponseBody();
+		if (renderer != null) {
+			renderer.export(grid, body);
+		} else {
+			Writer out = GridWriter.newWriter(body, StandardCharsets.UTF_8);
+			switch (format) {
+			case TXT: GridWriter.writeText(grid, out); break;
+			case HTML: GridWriter.writeHtml(grid, out); break;
+			case COMPACT: CompactHtmlWriter.DEFAULT.write(grid, out); break;
+			case ANSI: AnsiWriter.TRUECOLOR.write(grid, out); break;
+			case ANSI256: AnsiWriter.XTERM_256.write(grid, out); break;
+			default: AnsiWriter.ANSI_16.write(grid, out); break;
+			}
+			out.flush();
+		}
+		body.close();
+	}
+
+	/**
+	 * Answers from the cache, converting the uploaded image only if its
+	 * result is not cached. The image's header is read first so oversized
+	 * images are refused before they are converted.
+	 */
+	private void respondCached(HttpExchange exchange, Format format, ConversionOptions options) throws IOException, HttpError {
+		byte[] source;
+		try {
+			source = new LimitedInputStream(exchange.getRequestBody(), this.maxUploadBytes).readAllBytes();
+		} catch (IOException e) {
+			if (tooLarge(e)) throw new HttpError(413, "Uploads are limited to " + this.maxUploadBytes + " bytes");
+			throw e;
+		}
+
+		int width, height;
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(source))) {
+			ImageReader reader;
+			try {
+				reader = StreamingConverter.openReader(in);
+			} catch (IOException e) {
+				throw new HttpError(415, e.getMessage());
+			}
+			try {
+				width = reader.getWidth(0);
+				height = reader.getHeight(0);
+			} finally {
+				reader.dispose();
+			}
+		} catch (IOException e) {
+			throw new HttpError(422, "Cannot decode the image: " + e.getMessage());
+		}
+		long size = (long) width * height;
+		if (size > this.maxPixels) throw new HttpError(413, "Images are limited to " + this.maxPixels + " pixels");
+		if (format == Format.PNG) {
+			AsciiRenderer renderer = new AsciiRenderer(options);
+			long w = (long) Image2Ascii.AsciiImage.gridWidth(width, options.getScaleX()) * renderer.columnWidth();
+			long h = (long) Image2Ascii.AsciiImage.gridHeight(height, options.getScaleY(), options.isAdjustForStretching()) * renderer.lineHeight();
+			if (w * h > this.maxPixels) throw new HttpError(413, "Renderings are limited to " + this.maxPixels + " pixels; lower the scale or font size");
+		}
+
+		byte[] result;
+		try {
+			result = this.cache.get(source, options, format.cached);
+		} catch (IllegalArgumentException e) {
+			throw new HttpError(400, e.getMessage());
+		} catch (IOException e) {
+			throw new HttpError(422, "Cannot decode the image: " + e.getMessage());
+		}
+		this.pixels.add(size);
+
+		exchange.getResponseHeaders().set("Content-Type", format.contentType);
+		exchange.sendResponseHeaders(200, result.length);
+		OutputStream body = exchange.getResponseBody();
+		body.write(result);
+		body.close();
+	}
+
+	/**
+	 * Gets the options a query string asks for.
+	 * @throws IllegalArgumentException If a parameter is malformed
+	 */
+	private ConversionOptions options(Map<String, String> query) {
+		ConversionOptions options = this.defaults;
+		try {
+			if (query.containsKey("scale")) options = options.withScale(Double.parseDouble(query.get("scale")));
+			if (query.containsKey("scalex") || query.containsKey("scaley")) {
+				options = options.withScale(Double.parseDouble(query.getOrDefault("scalex", Double.toString(options.getScaleX()))),
+						Double.parseDouble(query.getOrDefault("scaley", Double.toString(options.getScaleY()))));
+			}
+			if (query.containsKey("font")) options = options.withFontSize(Integer.parseInt(query.get("font")));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Not a number: " + e.getMessage());
+		}
+		if (query.containsKey("flags")) {
+			for (String flag : query.get("flags").split(",")) {
+				if (!flag.isEmpty()) options = options.with(parse(Flag.class, "flag", flag.trim().replace('-', '_')));
+			}
+		}
+		if (query.containsKey("adjust")) options = options.withAdjustForStretching(!query.get("adjust").equals("false"));
+		if (query.containsKey("resampling")) options = options.withResampling(parse(Resampler.Mode.class, "resampling", query.get("resampling")));
+		if (query.containsKey("unicode")) options = options.withUnicode(parse(UnicodeMapper.Mode.class, "unicode", query.get("unicode").replace('-', '_')));
+		if (query.containsKey("shape")) options = options.withShapeMatching(parse(ShapeMatcher.Layout.class, "shape", "cells_" + query.get("shape")));
+		return options;
+	}
+
+	/**
+	 * Parses an enum constant regardless of case.
+	 * @throws IllegalArgumentException If there is no such constant
+	 */
+	private static <E extends Enum<E>> E parse(Class<E> type, String what, String name) {
+		try {
+			return Enum.valueOf(type, name.toUpperCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Unknown " + what + " " + name + "; expected one of "
+					+ Arrays.toString(type.getEnumConstants()).toLowerCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * Parses a raw query string. Parameters without a value map to "true".
+	 */
+	private static Map<String, String> query(String raw) {
+		Map<String, String> query = new HashMap<>();
+		if (raw == null) return query;
+		for (String param : raw.split("&")) {
+			if (param.isEmpty()) continue;
+			int eq = param.indexOf('=');
+			String name = URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), StandardCharsets.UTF_8);
+			query.put(name.toLowerCase(Locale.ROOT), eq < 0 ? "true" : URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+		}
+		return query;
+	}
+
+	/**
+	 * Answers a request with an error status and a one line message.
+	 */
+	private void fail(HttpExchange exchange, HttpError e) throws IOException {
+		if (e.status != 429 && e.status != 503) {
+			if (e.status < 500) this.clientErrors.increment();
+			else this.serverErrors.increment();
+		}
+		byte[] message = (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(e.status, message.length);
+		exchange.getResponseBody().write(message);
+	}
+
+	private synchronized void recordLatency(long nanos) {
+		this.latencies[(int) (this.latencyCount++ % LATENCY_SAMPLES)] = nanos;
+	}
+
+	/**
+	 * Handles <code>/metrics</code>.
+	 */
+	private void metrics(HttpExchange exchange) throws IOException {
+		long[] sorted;
+		long count;
+		synchronized (this) {
+			count = this.latencyCount;
+			sorted = Arrays.copyOf(this.latencies, (int) Math.min(count, LATENCY_SAMPLES));
+		}
+		Arrays.sort(sorted);
+
+		StringBuilder sb = new StringBuilder();
+		metric(sb, "img2ascii_requests_total", "counter", "Conversion requests received", this.requests.sum());
+		metric(sb, "img2ascii_converted_total", "counter", "Conversions answered with 200", this.converted.sum());
+		metric(sb, "img2ascii_rejected_busy_total", "counter", "Requests refused with 429 because the queue was full", this.tooManyRequests.sum());
+		metric(sb, "img2ascii_rejected_timeout_total", "counter", "Requests refused with 503 after waiting too long", this.unavailable.sum());
+		metric(sb, "img2ascii_client_errors_total", "counter", "Requests refused with another 4xx status", this.clientErrors.sum());
+		metric(sb, "img2ascii_server_errors_total", "counter", "Requests that failed with a 5xx status", this.serverErrors.sum());
+		metric(sb, "img2ascii_pixels_total", "counter", "Source pixels converted", this.pixels.sum());
+		metric(sb, "img2ascii_in_flight", "gauge", "Requests converting now", this.inFlight.get());
+		metric(sb, "img2ascii_queued", "gauge", "Requests waiting to convert now", this.queued.get());
+		metric(sb, "img2ascii_max_concurrent", "gauge", "Most requests converting at once", this.maxConcurrent);
+		metric(sb, "img2ascii_max_queued", "gauge", "Most requests waiting to convert", this.maxQueued);
+		if (this.cache != null) {
+			metric(sb, "img2ascii_cache_hits_total", "counter", "Results found in the memory cache", this.cache.getHits());
+			metric(sb, "img2ascii_cache_disk_hits_total", "counter", "Results found in the disk cache", this.cache.getDiskHits());
+			metric(sb, "img2ascii_cache_misses_total", "counter", "Results that had to be converted", this.cache.getMisses());
+		}
+		sb.append("# HELP img2ascii_latency_seconds Time from receiving to answering admitted requests, over the last ")
+			.append(LATENCY_SAMPLES).append(" requests\n");
+		sb.append("# TYPE img2ascii_latency_seconds summary\n");
+		for (double q : new double[] { 0.5, 0.9, 0.99, 1.0 }) {
+			double seconds = sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(q * sorted.length) - 1)] / 1e9;
+			sb.append("img2ascii_latency_seconds{quantile=\"").append(q).append("\"} ").append(seconds).append('\n');
+		}
+		sb.append("img2ascii_latency_seconds_count ").append(count).append('\n');
+
+		byte[] body = sb.toString().getBytes(StandardCharsets.UTF_8);
+		try {
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			exchange.getResponseBody().write(body);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void metric(StringBuilder sb, String name, String type, String help, long value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		sb.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Checks whether a failure to read an upload was because it was too
+	 * large. Image readers often wrap the exception in their own.
+	 */
+	private static boolean tooLarge(Throwable t) {
+		for (; t != null; t = t.getCause()) if (t instanceof LimitExceededException) return true;
+		return false;
+	}
+
+	/**
+	 * Thrown when an upload is larger than allowed.
+	 */
+	private static final class LimitExceededException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		LimitExceededException(long limit) {
+			super("Uploads are limited to " + limit + " bytes");
+		}
+	}
+
+	/**
+	 * Fails once more than a set number of bytes have been read, for
+	 * uploads without a Content-Length.
+	 */
+	private static final class LimitedInputStream extends FilterInputStream {
+		private final long limit;
+		private long read = 0;
+
+		LimitedInputStream(InputStream in, long limit) {
+			super(in);
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = this.in.read();
+			if (b >= 0) this.count(1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = this.in.read(b, off, len);
+			if (n > 0) this.count(n);
+			return n;
+		}
+
+		private void count(int n) throws LimitExceededException {
+			this.read += n;
+			if (this.read > this.limit) throw new LimitExceededException(this.limit);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes that pass through to another stream.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+final class CountingOutputStream extends FilterOutputStream {
+
+	/** Bytes written so far */
+	long count;
+
+	/**
+	 * Instantiates a CountingOutputStream.
+	 * @param out Where the bytes go
+	 */
+	CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		this.out.write(b);
+		this.count++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		this.out.write(b, off, len);
+		this.count += len;
+	}
+}
@@ -0,0 +1,142 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Converts the frames of an animation concurrently while keeping them in
+ * order. Three stages overlap: a decoder thread reads and composites frames,
+ * the executor converts them, and the calling thread hands the results to a
+ * FrameSink in frame order.
+ * <p>
+ * The stages are joined by a bounded queue of pending conversions, so the
+ * decoder waits once <code>inFlight</code> frames are ahead of the sink. At
+ * most that many decoded frames and grids are held at once, however long
+ * the animation is.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class FramePipeline {
+
+	/** Default number of frames converted ahead of the sink. */
+	public static final int DEFAULT_IN_FLIGHT = ForkJoinPool.getCommonPoolParallelism() + 1;
+
+	/** Converts on the common ForkJoinPool. */
+	public static final FramePipeline DEFAULT = new FramePipeline(ForkJoinPool.commonPool(), DEFAULT_IN_FLIGHT);
+
+	/**
+	 * A frame queued for conversion, or the end of the animation when
+	 * <code>grid</code> is null.
+	 */
+	private static final class Pending {
+		final CompletableFuture<AsciiGrid> grid;
+		final int delay;
+
+		Pending(CompletableFuture<AsciiGrid> grid, int delay) {
+			this.grid = grid;
+			this.delay = delay;
+		}
+	}
+
+	private final Executor executor;
+	private final int inFlight;
+
+	/**
+	 * Instantiates a FramePipeline.
+	 * @param executor Converts the frames
+	 * @param inFlight The most frames decoded but not yet handed to the sink
+	 */
+	public FramePipeline(Executor executor, int inFlight) {
+		if (inFlight < 1) throw new IllegalArgumentException("Need at least 1 frame in flight: " + inFlight);
+		this.executor = executor;
+		this.inFlight = inFlight;
+	}
+
+	/**
+	 * Converts every frame and hands the grids to a sink, in order. The sink
+	 * is finished after the last frame. Each frame is converted on one
+	 * thread; the frames themselves are what run in parallel.
+	 * @param frames The frames to convert; they are read to the end but not closed
+	 * @param sink Receives the converted frames
+	 * @param options How to convert the frames
+	 * @return The number of frames converted
+	 * @throws IOException If a frame cannot be decoded or the sink cannot write
+	 */
+	public int convert(FrameReader frames, FrameSink sink, ConversionOptions options) throws IOException {
+		BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(this.inFlight);
+		Thread decoder = new Thread(() -> {
+			CompletableFuture<AsciiGrid> failure = null;
+			try {
+				for (FrameReader.Frame frame; (frame = frames.next()) != null; ) {
+					FrameReader.Frame f = frame;
+					queue.put(new Pending(CompletableFuture.supplyAsync(
+						() -> Image2Ascii.AsciiImage.convert(f.getImage(), options, ConversionPool.SEQUENTIAL), this.executor), f.getDelay()));
+				}
+			} catch (InterruptedException e) {
+				return;	// the sink failed and nobody is listening
+			} catch (Throwable t) {
+				failure = new CompletableFuture<>();
+				failure.completeExceptionally(t);
+			}
+			try {
+				if (failure != null) queue.put(new Pending(failure, 0));
+				queue.put(new Pending(null, 0));
+			} catch (InterruptedException e) {
+				// the sink failed and nobody is listening
+			}
+		}, "image2ascii-decoder");
+		decoder.setDaemon(true);
+		decoder.start();
+
+		int count = 0;
+		boolean done = false;
+		try {
+			while (true) {
+				Pending pending = queue.take();
+				if (pending.grid == null) break;
+				sink.frame(join(pending.grid), pending.delay);
+				count++;
+			}
+			sink.finish();
+			done = true;
+			return count;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted after " + count + " frames");
+		} finally {
+			if (!done) decoder.interrupt();
+			boolean interrupted = false;
+			while (true) {
+				try {
+					decoder.join();	// frames must not be read after this returns
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Waits for a conversion and unwraps its failure.
+	 */
+	private static AsciiGrid join(CompletableFuture<AsciiGrid> grid) throws IOException {
+		try {
+			return grid.join();
+		} catch (CompletionException e) {
+			Throwable t = e.getCause();
+			if (t instanceof IOException) throw (IOException) t;
+			if (t instanceof UncheckedIOException) throw ((UncheckedIOException) t).getCause();
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw e;
+		}
+	}
+}
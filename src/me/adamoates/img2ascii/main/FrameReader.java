@@ -0,0 +1,231 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Node;
+
+/**
+ * Reads the frames of an animated or multi-image file one at a time, in
+ * order. GIF frames are composited onto the logical screen the way a viewer
+ * shows them: each frame is drawn at its offset over what the previous
+ * frames left, after the previous frame's disposal method is applied.
+ * Frames of other formats are returned as they are decoded.
+ * <p>
+ * Only the logical screen, a copy saved for "restore to previous", and the
+ * frame being decoded are held, so memory does not grow with the number of
+ * frames.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class FrameReader implements Closeable {
+
+	private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+	private static final String GIF_STREAM_FORMAT = "javax_imageio_gif_stream_1.0";
+
+	/**
+	 * One displayed frame.
+	 */
+	public static final class Frame {
+		private final int index;
+		private final BufferedImage image;
+		private final int delay;
+
+		Frame(int index, BufferedImage image, int delay) {
+			this.index = index;
+			this.image = image;
+			this.delay = delay;
+		}
+
+		/**
+		 * Gets the position of the frame in the file.
+		 * @return The index, starting at 0
+		 */
+		public int getIndex() {
+			return this.index;
+		}
+
+		/**
+		 * Gets the frame as it is displayed. The image is not reused by later frames.
+		 * @return The composited frame
+		 */
+		public BufferedImage getImage() {
+			return this.image;
+		}
+
+		/**
+		 * Gets how long the frame is shown before the next one.
+		 * @return The delay in milliseconds; 0 if the file does not say
+		 */
+		public int getDelay() {
+			return this.delay;
+		}
+	}
+
+	private final ImageInputStream in;
+	private final boolean closeStream;
+	private final ImageReader reader;
+	private final int count;
+	private int next = 0;
+
+	private BufferedImage screen;		// the logical screen of a GIF
+	private BufferedImage previous;		// screen before the last frame, for restoreToPrevious
+	private String disposal = "none";	// disposal of the last frame
+	private int lastX, lastY, lastW, lastH;	// area of the last frame
+
+	/**
+	 * Opens an image file.
+	 * @param file The image file
+	 * @throws IOException If the file cannot be read or no reader understands it
+	 */
+	public FrameReader(File file) throws IOException {
+		this(open(file), true);
+	}
+
+	/**
+	 * Reads frames from a stream. The stream is not closed by {@link #close()}.
+	 * @param in The encoded frames
+	 * @throws IOException If no reader understands the stream
+	 */
+	public FrameReader(ImageInputStream in) throws IOException {
+		this(in, false);
+	}
+
+	private FrameReader(ImageInputStream in, boolean closeStream) throws IOException {
+		this.in = in;
+		this.closeStream = closeStream;
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) {
+			if (closeStream) in.close();
+			throw new IOException("No ImageReader understands this image format");
+		}
+		this.reader = readers.next();
+		// seek forward only: earlier frames are never revisited, so the stream need not cache them
+		this.reader.setInput(in, true, false);
+		this.count = this.reader.getNumImages(false);	// -1 when only known by reading to the end
+	}
+
+	private static ImageInputStream open(File file) throws IOException {
+		if (!file.canRead()) throw new FileNotFoundException(file.getPath());
+		ImageInputStream in = ImageIO.createImageInputStream(file);
+		if (in == null) throw new IOException("Cannot open " + file.getPath());
+		return in;
+	}
+
+	/**
+	 * Decodes the next frame.
+	 * @return The frame, or null after the last one
+	 * @throws IOException If the frame cannot be decoded
+	 */
+	public Frame next() throws IOException {
+		if (this.count >= 0 && this.next >= this.count) return null;
+		IIOImage decoded;
+		try {
+			decoded = this.reader.readAll(this.next, null);
+		} catch (IndexOutOfBoundsException e) {
+			return null;	// the frame count was not known up front
+		}
+		int index = this.next++;
+		BufferedImage image = (BufferedImage) decoded.getRenderedImage();
+		IIOMetadata metadata = decoded.getMetadata();
+		if (metadata == null || !GIF_IMAGE_FORMAT.equals(metadata.getNativeMetadataFormatName())) {
+			return new Frame(index, image, 0);
+		}
+
+		Node root = metadata.getAsTree(GIF_IMAGE_FORMAT);
+		Node descriptor = child(root, "ImageDescriptor");
+		Node control = child(root, "GraphicControlExtension");
+		int x = intAttribute(descriptor, "imageLeftPosition"), y = intAttribute(descriptor, "imageTopPosition");
+		if (this.screen == null) this.screen = this.newScreen(image, x, y);
+
+		Graphics2D g = this.screen.createGraphics();
+		try {
+			// undo the last frame as its disposal method says
+			if ("restoreToBackgroundColor".equals(this.disposal)) {
+				g.setComposite(AlphaComposite.Clear);
+				g.fillRect(this.lastX, this.lastY, this.lastW, this.lastH);
+			} else if ("restoreToPrevious".equals(this.disposal) && this.previous != null) {
+				g.setComposite(AlphaComposite.Src);
+				g.drawImage(this.previous, 0, 0, null);
+			}
+			this.disposal = (control != null) ? attribute(control, "disposalMethod") : "none";
+			if ("restoreToPrevious".equals(this.disposal)) this.previous = copy(this.screen);
+			g.setComposite(AlphaComposite.SrcOver);
+			g.drawImage(image, x, y, null);
+		} finally {
+			g.dispose();
+		}
+		this.lastX = x;
+		this.lastY = y;
+		this.lastW = image.getWidth();
+		this.lastH = image.getHeight();
+
+		int delay = (control != null) ? intAttribute(control, "delayTime") * 10 : 0;
+		return new Frame(index, copy(this.screen), delay);
+	}
+
+	/**
+	 * Creates the logical screen, sized by the stream metadata or else by the
+	 * first frame.
+	 */
+	private BufferedImage newScreen(BufferedImage first, int x, int y) throws IOException {
+		int width = first.getWidth() + x, height = first.getHeight() + y;
+		IIOMetadata stream = this.reader.getStreamMetadata();
+		if (stream != null && GIF_STREAM_FORMAT.equals(stream.getNativeMetadataFormatName())) {
+			Node screen = child(stream.getAsTree(GIF_STREAM_FORMAT), "LogicalScreenDescriptor");
+			if (screen != null) {
+				width = Math.max(1, intAttribute(screen, "logicalScreenWidth"));
+				height = Math.max(1, intAttribute(screen, "logicalScreenHeight"));
+			}
+		}
+		return new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+	}
+
+	/**
+	 * Releases the reader, and the stream if this FrameReader opened it.
+	 */
+	@Override
+	public void close() throws IOException {
+		this.reader.dispose();
+		this.screen = this.previous = null;
+		if (this.closeStream) this.in.close();
+	}
+
+	private static BufferedImage copy(BufferedImage image) {
+		BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		copy.setData(image.getRaster());
+		return copy;
+	}
+
+	private static Node child(Node node, String name) {
+		if (node == null) return null;
+		for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (name.equals(child.getNodeName())) return child;
+		}
+		return null;
+	}
+
+	private static String attribute(Node node, String name) {
+		Node attribute = (node == null) ? null : node.getAttributes().getNamedItem(name);
+		return (attribute == null) ? "" : attribute.getNodeValue();
+	}
+
+	private static int intAttribute(Node node, String name) {
+		try {
+			return Integer.parseInt(attribute(node, name));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
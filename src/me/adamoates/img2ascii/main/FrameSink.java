@@ -0,0 +1,26 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.IOException;
+
+/**
+ * Receives the converted frames of an animation, in order.
+ * @author Adam Oates adam.oates@criptext.com
+ * @see FramePipeline
+ */
+public interface FrameSink {
+
+	/**
+	 * Accepts the next frame.
+	 * @param grid The converted frame
+	 * @param delay How long the frame is shown, in milliseconds; 0 if unknown
+	 * @throws IOException If the frame cannot be written
+	 */
+	void frame(AsciiGrid grid, int delay) throws IOException;
+
+	/**
+	 * Called once after the last frame. Whatever the sink writes to is
+	 * flushed but not closed.
+	 * @throws IOException If the end of the sequence cannot be written
+	 */
+	void finish() throws IOException;
+}
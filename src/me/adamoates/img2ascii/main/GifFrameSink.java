@@ -0,0 +1,91 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOInvalidTreeException;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Renders every frame of an animation with an AsciiRenderer and writes the
+ * renderings as an animated GIF that loops forever.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class GifFrameSink implements FrameSink {
+
+	private static final String GIF_IMAGE_FORMAT = "javax_imageio_gif_image_1.0";
+
+	private final ImageOutputStream out;
+	private final AsciiRenderer renderer;
+	private ImageWriter writer;
+
+	/**
+	 * Instantiates a GifFrameSink.
+	 * @param out Where to write the GIF; it is flushed but not closed
+	 * @param renderer Draws each frame
+	 */
+	public GifFrameSink(ImageOutputStream out, AsciiRenderer renderer) {
+		this.out = out;
+		this.renderer = renderer;
+	}
+
+	@Override
+	public void frame(AsciiGrid grid, int delay) throws IOException {
+		boolean first = (this.writer == null);
+		if (first) {
+			Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("gif");
+			if (!writers.hasNext()) throw new IOException("No GIF writer installed");
+			this.writer = writers.next();
+			this.writer.setOutput(this.out);
+			this.writer.prepareWriteSequence(null);
+		}
+		BufferedImage image = this.renderer.render(grid);
+		IIOMetadata metadata = this.writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+		metadata.mergeTree(GIF_IMAGE_FORMAT, frameMetadata(delay, first));
+		this.writer.writeToSequence(new IIOImage(image, null, metadata), null);
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (this.writer == null) return;
+		try {
+			this.writer.endWriteSequence();
+			this.out.flush();
+		} finally {
+			this.writer.dispose();
+			this.writer = null;
+		}
+	}
+
+	/**
+	 * Builds the metadata that sets a frame's delay and, on the first frame,
+	 * makes the animation loop.
+	 */
+	private static IIOMetadataNode frameMetadata(int delay, boolean first) throws IIOInvalidTreeException {
+		IIOMetadataNode root = new IIOMetadataNode(GIF_IMAGE_FORMAT);
+		IIOMetadataNode control = new IIOMetadataNode("GraphicControlExtension");
+		control.setAttribute("disposalMethod", "none");
+		control.setAttribute("userInputFlag", "FALSE");
+		control.setAttribute("transparentColorFlag", "FALSE");
+		control.setAttribute("delayTime", Integer.toString(Math.min(0xffff, (delay + 5) / 10)));	// hundredths of a second
+		control.setAttribute("transparentColorIndex", "0");
+		root.appendChild(control);
+		if (first) {
+			IIOMetadataNode extensions = new IIOMetadataNode("ApplicationExtensions");
+			IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+			loop.setAttribute("applicationID", "NETSCAPE");
+			loop.setAttribute("authenticationCode", "2.0");
+			loop.setUserObject(new byte[] { 1, 0, 0 });	// loop forever
+			extensions.appendChild(loop);
+			root.appendChild(extensions);
+		}
+		return root;
+	}
+}
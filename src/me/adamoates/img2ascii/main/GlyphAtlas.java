@@ -0,0 +1,210 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Coverage masks of rasterized glyphs, so characters can be drawn by tinting
+ * and blending a cached mask instead of going through text layout for every
+ * cell.
+ * <p>
+ * Atlases are shared: {@link #get(Font, char[])} hands out one atlas per font
+ * and ramp from a small LRU cache. The ramp's glyphs are rasterized up front;
+ * any other character is rasterized the first time it is drawn.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class GlyphAtlas {
+
+	/** Most atlases kept in the shared cache. */
+	public static final int MAX_ATLASES = 16;
+	/** Most glyphs outside Latin-1 one atlas caches; others are rasterized on every use. */
+	public static final int MAX_EXTRA_GLYPHS = 1024;
+
+	private static final Map<String, GlyphAtlas> CACHE = new LinkedHashMap<String, GlyphAtlas>(MAX_ATLASES, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, GlyphAtlas> eldest) {
+			return this.size() > MAX_ATLASES;
+		}
+	};
+
+	/**
+	 * The coverage mask of one character, positioned relative to the point
+	 * the character is drawn at.
+	 */
+	static final class Glyph {
+		final int left;		// X of the mask's first column, relative to the pen position
+		final int top;		// Y of the mask's first row, relative to the baseline
+		final int width;
+		final int height;
+		final byte[] coverage;
+
+		Glyph(int left, int top, int width, int height, byte[] coverage) {
+			this.left = left;
+			this.top = top;
+			this.width = width;
+			this.height = height;
+			this.coverage = coverage;
+		}
+	}
+
+	private final Font font;
+	private final int boxWidth, boxHeight, penX, penY;
+	private final Glyph[] latin1 = new Glyph[256];
+	private final ConcurrentHashMap<Character, Glyph> extra = new ConcurrentHashMap<>();
+
+	/**
+	 * Instantiates a GlyphAtlas and rasterizes the ramp's glyphs.
+	 * @param font The font to rasterize with
+	 * @param ramp Characters to rasterize up front
+	 */
+	public GlyphAtlas(Font font, char[] ramp) {
+		this.font = font;
+		BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = scratch.createGraphics();
+		FontMetrics fm = g.getFontMetrics(font);
+		g.dispose();
+		// leave room for glyphs that overhang their advance or the ascent
+		this.penX = font.getSize();
+		this.penY = fm.getMaxAscent() + font.getSize() / 2;
+		this.boxWidth = fm.getMaxAdvance() + 2 * font.getSize();
+		this.boxHeight = this.penY + fm.getMaxDescent() + font.getSize() / 2;
+		for (char ch : ramp) this.glyph(ch);
+	}
+
+	/**
+	 * Gets the shared atlas for a font and ramp, creating it if necessary.
+	 * @param font The font to rasterize with
+	 * @param ramp Characters to rasterize up front
+	 * @return The cached atlas
+	 */
+	public static GlyphAtlas get(Font font, char[] ramp) {
+		String key = font.getFontName() + '\u0000' + font.getStyle() + '\u0000' + font.getSize2D() + '\u0000' + new String(ramp);
+		synchronized (CACHE) {
+			GlyphAtlas atlas = CACHE.get(key);
+			if (atlas != null) return atlas;
+		}
+		GlyphAtlas atlas = new GlyphAtlas(font, ramp);	// rasterize outside the lock
+		synchronized (CACHE) {
+			GlyphAtlas raced = CACHE.putIfAbsent(key, atlas);
+			return (raced != null) ? raced : atlas;
+		}
+	}
+
+	/**
+	 * Gets the number of atlases in the shared cache.
+	 * @return The cache size
+	 */
+	public static int cacheSize() {
+		synchronized (CACHE) {
+			return CACHE.size();
+		}
+	}
+
+	/**
+	 * Gets the font this atlas rasterizes with.
+	 * @return The font
+	 */
+	public Font getFont() {
+		return this.font;
+	}
+
+	/**
+	 * Gets the mask of a character, rasterizing it if it is not cached.
+	 * @param ch The character
+	 * @return Its coverage mask
+	 */
+	Glyph glyph(char ch) {
+		if (ch < 256) {
+			Glyph glyph = this.latin1[ch];
+			// racing threads rasterize the same immutable glyph; either result is fine
+			if (glyph == null) this.latin1[ch] = glyph = this.rasterize(ch);
+			return glyph;
+		}
+		Glyph glyph = this.extra.get(ch);
+		if (glyph != null) return glyph;
+		glyph = this.rasterize(ch);
+		if (this.extra.size() < MAX_EXTRA_GLYPHS) this.extra.putIfAbsent(ch, glyph);
+		return glyph;
+	}
+
+	/**
+	 * Draws a character into an RGB pixel array by blending the color into
+	 * the pixels its mask covers. Pixels outside the array are clipped.
+	 * @param ch The character
+	 * @param rgb The color to draw in
+	 * @param dst Packed RGB pixels, row after row
+	 * @param width Width of <code>dst</code> in pixels
+	 * @param height Height of <code>dst</code> in pixels
+	 * @param x The pen position
+	 * @param baseline The baseline
+	 */
+	public void draw(char ch, int rgb, int[] dst, int width, int height, int x, int baseline) {
+		Glyph glyph = this.glyph(ch);
+		int left = x + glyph.left, top = baseline + glyph.top;
+		int c0 = Math.max(0, -left), c1 = Math.min(glyph.width, width - left);
+		int r0 = Math.max(0, -top), r1 = Math.min(glyph.height, height - top);
+		int sr = (rgb >> 16) & 0xff, sg = (rgb >> 8) & 0xff, sb = rgb & 0xff;
+		byte[] coverage = glyph.coverage;
+		for (int r = r0; r < r1; r++) {
+			int m = r * glyph.width, d = (top + r) * width + left;
+			for (int c = c0; c < c1; c++) {
+				int a = coverage[m + c] & 0xff;
+				if (a == 0) continue;
+				if (a == 0xff) {
+					dst[d + c] = rgb;
+					continue;
+				}
+				int p = dst[d + c];
+				int pr = (p >> 16) & 0xff, pg = (p >> 8) & 0xff, pb = p & 0xff;
+				pr += ((sr - pr) * a + 127) / 255;
+				pg += ((sg - pg) * a + 127) / 255;
+				pb += ((sb - pb) * a + 127) / 255;
+				dst[d + c] = (pr << 16) | (pg << 8) | pb;
+			}
+		}
+	}
+
+	/**
+	 * Rasterizes a character and crops its mask to the pixels it covers.
+	 */
+	private Glyph rasterize(char ch) {
+		BufferedImage box = new BufferedImage(this.boxWidth, this.boxHeight, BufferedImage.TYPE_BYTE_GRAY);
+		Graphics2D g = box.createGraphics();
+		try {
+			g.setFont(this.font);
+			g.setColor(Color.WHITE);
+			g.drawChars(new char[] { ch }, 0, 1, this.penX, this.penY);
+		} finally {
+			g.dispose();
+		}
+		byte[] pixels = ((DataBufferByte) box.getRaster().getDataBuffer()).getData();
+		int stride = this.boxWidth;
+
+		int minX = this.boxWidth, minY = this.boxHeight, maxX = -1, maxY = -1;
+		for (int y = 0; y < this.boxHeight; y++) {
+			for (int x = 0; x < this.boxWidth; x++) {
+				if (pixels[y * stride + x] != 0) {
+					minX = Math.min(minX, x);
+					maxX = Math.max(maxX, x);
+					minY = Math.min(minY, y);
+					maxY = Math.max(maxY, y);
+				}
+			}
+		}
+		if (maxX < 0) return new Glyph(0, 0, 0, 0, new byte[0]);	// blank, e.g. a space
+
+		int w = maxX - minX + 1, h = maxY - minY + 1;
+		byte[] coverage = new byte[w * h];
+		for (int y = 0; y < h; y++) System.arraycopy(pixels, (minY + y) * stride + minX, coverage, y * w, w);
+		return new Glyph(minX - this.penX, minY - this.penY, w, h, coverage);
+	}
+}
@@ -0,0 +1,94 @@
+package me.adamoates.img2ascii.main;
+
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Read-only access to the characters and colors of a converted image.
+ * The writers and the renderer read grids through this interface one row
+ * at a time, so they work the same on an AsciiGrid in memory and on a
+ * MappedGrid whose cells stay in a file. Cells may also have background
+ * colors; a background of 0, transparent, leaves the background to
+ * whatever the grid is written to.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public interface GridView {
+
+	/**
+	 * Gets the number of characters per row.
+	 * @return The grid width
+	 */
+	int getWidth();
+
+	/**
+	 * Gets the number of rows.
+	 * @return The grid height
+	 */
+	int getHeight();
+
+	/**
+	 * Gets the character from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The character found at x and y
+	 */
+	char get(int x, int y);
+
+	/**
+	 * Gets the packed ARGB color from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The color found at x and y
+	 */
+	int getRgb(int x, int y);
+
+	/**
+	 * Gets a read-only view of the characters in a row. No characters are
+	 * copied.
+	 * @param y The row to view
+	 * @return The characters of row <code>y</code>
+	 */
+	CharBuffer getRow(int y);
+
+	/**
+	 * Gets a read-only view of the colors in a row. No colors are copied.
+	 * @param y The row to view
+	 * @return The packed ARGB colors of row <code>y</code>
+	 */
+	IntBuffer getRowColors(int y);
+
+	/**
+	 * Copies part of a row into arrays.
+	 * @param y The row to copy from
+	 * @param x The first column to copy
+	 * @param length The number of cells to copy
+	 * @param chars Receives the characters, or null to skip them
+	 * @param colors Receives the packed ARGB colors, or null to skip them
+	 * @param offset Where in <code>chars</code> and <code>colors</code> the first cell goes
+	 */
+	void copyRow(int y, int x, int length, char[] chars, int[] colors, int offset);
+
+	/**
+	 * Gets whether the grid keeps a background color for each cell.
+	 * @return If cells have backgrounds
+	 */
+	boolean hasBackgrounds();
+
+	/**
+	 * Gets the packed ARGB background color from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The background found at x and y, or 0 if the grid has none
+	 */
+	int getBackground(int x, int y);
+
+	/**
+	 * Copies the background colors of part of a row into an array.
+	 * @param y The row to copy from
+	 * @param x The first column to copy
+	 * @param length The number of cells to copy
+	 * @param backgrounds Receives the packed ARGB backgrounds, 0 if the grid has none
+	 * @param offset Where in <code>backgrounds</code> the first cell goes
+	 */
+	void copyRowBackgrounds(int y, int x, int length, int[] backgrounds, int offset);
+}
@@ -0,0 +1,178 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * Writes the text and HTML forms of a grid row by row, so output reaches
+ * the destination while later rows are still being encoded. Only one row
+ * is copied out of the grid at a time, so a MappedGrid is written without
+ * loading it onto the heap.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class GridWriter {
+
+	/** Characters buffered before they are encoded and handed on. */
+	public static final int BUFFER_SIZE = 1 << 16;
+
+	/** The stylesheet HTML output starts with. */
+	static final String HTML_STYLE = "<style>span { font-size: 6px; font-family: monospace; }</style>";
+
+	private GridWriter() {}
+
+	/**
+	 * Wraps an OutputStream in a buffered Writer of the specified charset.
+	 * @param out Where the encoded characters go
+	 * @param charset How characters are encoded
+	 * @return A Writer that must be flushed, but need not be closed, when done
+	 */
+	public static Writer newWriter(OutputStream out, Charset charset) {
+		return new BufferedWriter(new OutputStreamWriter(out, charset.newEncoder()), BUFFER_SIZE);
+	}
+
+	/**
+	 * Wraps a channel in a buffered Writer of the specified charset.
+	 * @param out Where the encoded characters go
+	 * @param charset How characters are encoded
+	 * @return A Writer that must be flushed, but need not be closed, when done
+	 */
+	public static Writer newWriter(WritableByteChannel out, Charset charset) {
+		return new BufferedWriter(Channels.newWriter(out, charset.newEncoder(), BUFFER_SIZE), BUFFER_SIZE);
+	}
+
+	/**
+	 * Writes the characters of a grid, one line per row.
+	 * @param grid The grid to write
+	 * @param out Where to write to
+	 * @throws IOException If writing fails
+	 * @see Image2Ascii.AsciiImage#toString()
+	 */
+	public static void writeText(GridView grid, Writer out) throws IOException {
+		ConversionMetrics.Span span = ConversionMetrics.begin(ConversionMetrics.Stage.ENCODE);
+		int w = grid.getWidth();
+		char[] chars = new char[w];
+		for (int y = 0; y < grid.getHeight(); y++) {
+			grid.copyRow(y, 0, w, chars, null, 0);
+			out.write(chars, 0, w);
+			out.write('\n');
+		}
+		if (span != null) encoded(span, grid, (long) (w + 1) * grid.getHeight());
+	}
+
+	/**
+	 * Writes a grid as HTML. Runs of characters with the same color share one
+	 * span. Cells with a background of their own, as Unicode blocks have,
+	 * also set their span's background color.
+	 * @param grid The grid to write
+	 * @param out Where to write to
+	 * @throws IOException If writing fails
+	 * @see Image2Ascii.AsciiImage#toHtml()
+	 */
+	public static void writeHtml(GridView grid, Writer out) throws IOException {
+		ConversionMetrics.Span span = ConversionMetrics.begin(ConversionMetrics.Stage.ENCODE);
+		out.write(HTML_STYLE);
+		long written = writeHtmlBody(grid, out, false);
+		if (span != null) encoded(span, grid, HTML_STYLE.length() + written);
+	}
+
+	/**
+	 * Reports encoding a grid.
+	 * @param span The running ENCODE stage
+	 * @param grid The grid that was written
+	 * @param chars The number of characters written
+	 */
+	static void encoded(ConversionMetrics.Span span, GridView grid, long chars) {
+		span.end(0, 0, grid.getWidth(), grid.getHeight(), EnumSet.noneOf(Flag.class), (long) grid.getWidth() * grid.getHeight(), chars);
+	}
+
+	/**
+	 * Writes the spans of a grid without the stylesheet that goes before them.
+	 * @param grid The grid to write
+	 * @param out Where to write to
+	 * @param close Close the last span; toHtml() always left it open
+	 * @return The number of characters written
+	 * @throws IOException If writing fails
+	 */
+	static long writeHtmlBody(GridView grid, Writer out, boolean close) throws IOException {
+		int w = grid.getWidth(), h = grid.getHeight();
+		char[] chars = new char[w];
+		int[] colors = new int[w];
+		int[] backgrounds = grid.hasBackgrounds() ? new int[w] : null;
+		char[] buf = new char[128];
+		boolean open = false;
+		int last = 0, lastBg = 0;
+		long written = 0;
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, chars, colors, 0);
+			if (backgrounds != null) grid.copyRowBackgrounds(y, 0, w, backgrounds, 0);
+			for (int i = 0; i < w; i++) {
+				int rgb = colors[i] & 0x00ffffff;
+				int bg = (backgrounds != null) ? backgrounds[i] : 0;	// transparent unless the cell has one
+				if (open && rgb == last && bg == lastBg) {	// add repeating color characters to the same DOM element
+					out.write(chars[i]);
+					written++;
+				} else {
+					int n = 0;
+					if (open) n = put(buf, n, "</span>");
+					n = put(buf, n, "<span style=\"color: rgb(");
+					n = putInt(buf, n, rgb >> 16);
+					n = put(buf, n, ", ");
+					n = putInt(buf, n, (rgb >> 8) & 0xff);
+					n = put(buf, n, ", ");
+					n = putInt(buf, n, rgb & 0xff);
+					if ((bg >>> 24) != 0) {
+						n = put(buf, n, "); background-color: rgb(");
+						n = putInt(buf, n, (bg >> 16) & 0xff);
+						n = put(buf, n, ", ");
+						n = putInt(buf, n, (bg >> 8) & 0xff);
+						n = put(buf, n, ", ");
+						n = putInt(buf, n, bg & 0xff);
+					}
+					n = put(buf, n, ");\">");
+					buf[n++] = chars[i];
+					out.write(buf, 0, n);
+					written += n;
+					open = true;
+				}
+				last = rgb;
+				lastBg = bg;
+			}
+			out.write("<br>");
+			written += 4;
+		}
+		if (close && open) {
+			out.write("</span>");
+			written += 7;
+		}
+		return written;
+	}
+
+	/**
+	 * Copies a String into a buffer.
+	 * @return The position after the copied characters
+	 */
+	static int put(char[] buf, int pos, String s) {
+		s.getChars(0, s.length(), buf, pos);
+		return pos + s.length();
+	}
+
+	/**
+	 * Writes a number from 0-999 into a buffer as decimal digits.
+	 * @return The position after the digits
+	 */
+	static int putInt(char[] buf, int pos, int v) {
+		if (v >= 100) buf[pos++] = (char) ('0' + v / 100);
+		if (v >= 10) buf[pos++] = (char) ('0' + v / 10 % 10);
+		buf[pos++] = (char) ('0' + v % 10);
+		return pos;
+	}
+}
@@ -0,0 +1,47 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes an animation as one HTML page. Every frame is a hidden element
+ * holding the same spans {@link GridWriter#writeHtml(GridView, Writer)}
+ * writes, and a small script shows the frames in turn for their delays.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class HtmlFrameSink implements FrameSink {
+
+	/** Delay used for frames that have none, as browsers do for GIFs. */
+	public static final int DEFAULT_DELAY = 100;
+
+	private final Writer out;
+	private boolean started = false;
+
+	/**
+	 * Instantiates an HtmlFrameSink.
+	 * @param out Where to write the page; it is flushed but not closed
+	 */
+	public HtmlFrameSink(Writer out) {
+		this.out = out;
+	}
+
+	@Override
+	public void frame(AsciiGrid grid, int delay) throws IOException {
+		if (!this.started) {
+			this.out.write(GridWriter.HTML_STYLE);
+			this.started = true;
+		}
+		this.out.write("<div class=\"i2a-frame\" data-delay=\"");
+		this.out.write(Integer.toString(delay > 10 ? delay : DEFAULT_DELAY));
+		this.out.write("\" hidden>");
+		GridWriter.writeHtmlBody(grid, this.out, true);
+		this.out.write("</div>");
+	}
+
+	@Override
+	public void finish() throws IOException {
+		this.out.write("<script>(function(){var f=document.querySelectorAll(\"div.i2a-frame\"),i=0;if(!f.length)return;f[0].hidden=false;"
+			+ "(function n(){setTimeout(function(){f[i].hidden=true;i=(i+1)%f.length;f[i].hidden=false;n();},+f[i].dataset.delay);})();})();</script>");
+		this.out.flush();
+	}
+}
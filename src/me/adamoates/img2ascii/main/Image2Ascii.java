@@ -1,20 +1,32 @@
 package me.adamoates.img2ascii.main;
 
-import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.EnumSet;
 
-import javax.imageio.ImageIO;
-
 /**
  * @author Adam Oates adam.oates@criptext.com
  */
 public class Image2Ascii {
 	
+	/**
+	 * Flags read by conversions and renderings that are not given
+	 * ConversionOptions. They are copied when an AsciiImage is created, but
+	 * changing them while another thread creates one is not safe; use
+	 * {@link ConversionOptions} and {@link AsciiConverter} instead.
+	 */
 	public static EnumSet<Flag> flags = EnumSet.noneOf(Flag.class);
 	
 	/**
@@ -103,11 +115,7 @@ public class Image2Ascii {
 		 * Converts the color to grayscale.
 		 */
 		public void grayscale() {
-			double R_linear = SrgbToLinear(this.r/255.0);
-			double G_linear = SrgbToLinear(this.g/255.0);
-			double B_linear = SrgbToLinear(this.b/255.0);
-			double gray_linear = 0.2126 * R_linear + 0.7152 * G_linear + 0.0722 * B_linear;
-			int gray_color = (int) Math.round(linearToSrgb(gray_linear) * 255);
+			int gray_color = RampMapper.luminance(this.toInt());
 			this.r = gray_color;
 			this.g = gray_color;
 			this.b = gray_color;
@@ -143,26 +151,6 @@ public class Image2Ascii {
 		public RGB clone() {
 			return new RGB(this.r, this.g, this.b);
 		}
-		
-		/**
-		 * placeholder
-		 * @param x
-		 * @return
-		 */
-		private static double SrgbToLinear(double x) {
-		    if (x < 0.04045) return x/12.92;
-		    return Math.pow((x+0.055)/1.055, 2.4);
-		}
-		
-		/**
-		 * placeholder
-		 * @param y
-		 * @return
-		 */
-		private static double linearToSrgb(double y) {
-			if (y <= 0.0031308) return 12.92 * y;
-			return 1.055 * Math.pow(y, 1/2.4) - 0.055;
-		}
 	}
 
 
@@ -170,9 +158,8 @@ public class Image2Ascii {
 	 * @author Adam Oates adam.oates@criptext.com
 	 */
 	public static class AsciiImage {
-		// same as int[][]
-		private ArrayList<ArrayList<Character>> ascii_index = new ArrayList<>();
-		private ArrayList<ArrayList<RGB>> ascii_index_color = new ArrayList<>();
+		private AsciiGrid grid;
+		private final ConversionOptions options;
 		private AsciiFrame aframe;
 		
 		/**
@@ -182,7 +169,7 @@ public class Image2Ascii {
 		 * @throws IOException
 		 */
 		public AsciiImage(String path) throws IOException {
-			this(ImageIO.read(new File("/home/adamoates/Pictures/123248749_1010450512756962_4390809450020714039_n.jpg")), 1.0);
+			this(path, 1.0);
 		}
 		
 		/**
@@ -202,7 +189,7 @@ public class Image2Ascii {
 		 * @throws IOException
 		 */
 		public AsciiImage(String path, double scale) throws IOException {
-			this(ImageIO.read(new File("/home/adamoates/Pictures/123248749_1010450512756962_4390809450020714039_n.jpg")), scale);
+			this(path, scale, scale);
 		}
 		
 		/**
@@ -224,7 +211,7 @@ public class Image2Ascii {
 		 * @throws IOException
 		 */
 		public AsciiImage(String path, double scalex, double scaley) throws IOException {
-			this(ImageIO.read(new File("/home/adamoates/Pictures/123248749_1010450512756962_4390809450020714039_n.jpg")), scalex, scaley, true);
+			this(path, scalex, scaley, true);
 		}
 		
 		/**
@@ -248,7 +235,7 @@ public class Image2Ascii {
 		 * @throws IOException
 		 */
 		public AsciiImage(String path, double scalex, double scaley, boolean adjust_for_stretching) throws IOException {
-			this(ImageIO.read(new File("/home/adamoates/Pictures/123248749_1010450512756962_4390809450020714039_n.jpg")), scalex, scaley, adjust_for_stretching);
+			this(new File(path), scalex, scaley, adjust_for_stretching, RampMapper.DEFAULT, ConversionPool.COMMON, Resampler.Mode.AREA);
 		}
 		
 		/**
@@ -260,33 +247,249 @@ public class Image2Ascii {
 		 * @param adjust_for_stretching Adjust for vertical stretching?
 		 */
 		public AsciiImage(BufferedImage bimg, double scalex, double scaley, boolean adjust_for_stretching) {
-			BufferedImage scaled_img = resizeImage(bimg, scalex, scaley);
+			this(bimg, scalex, scaley, adjust_for_stretching, RampMapper.DEFAULT);
+		}
+		
+		/**
+		 * Instantiates an AsciiImage at specified scale using the characters
+		 * of the specified ramp.
+		 * @param bimg Image to convert to ASCII
+		 * @param scalex How much to scale the X dimension
+		 * @param scaley How much to scale the Y dimension
+		 * @param adjust_for_stretching Adjust for vertical stretching?
+		 * @param ramp Maps pixel brightness to characters
+		 */
+		public AsciiImage(BufferedImage bimg, double scalex, double scaley, boolean adjust_for_stretching, RampMapper ramp) {
+			this(bimg, scalex, scaley, adjust_for_stretching, ramp, ConversionPool.COMMON);
+		}
+		
+		/**
+		 * Instantiates an AsciiImage at specified scale using the characters
+		 * of the specified ramp, converting bands of rows on the specified pool.
+		 * @param bimg Image to convert to ASCII
+		 * @param scalex How much to scale the X dimension
+		 * @param scaley How much to scale the Y dimension
+		 * @param adjust_for_stretching Adjust for vertical stretching?
+		 * @param ramp Maps pixel brightness to characters
+		 * @param pool Decides whether and where rows are converted in parallel
+		 */
+		public AsciiImage(BufferedImage bimg, double scalex, double scaley, boolean adjust_for_stretching, RampMapper ramp, ConversionPool pool) {
+			this(bimg, scalex, scaley, adjust_for_stretching, ramp, pool, Resampler.Mode.AREA);
+		}
+		
+		/**
+		 * Instantiates an AsciiImage at specified scale using the characters
+		 * of the specified ramp and the specified resampling.
+		 * @param bimg Image to convert to ASCII
+		 * @param scalex How much to scale the X dimension
+		 * @param scaley How much to scale the Y dimension
+		 * @param adjust_for_stretching Adjust for vertical stretching?
+		 * @param ramp Maps pixel brightness to characters
+		 * @param pool Decides whether and where rows are converted in parallel
+		 * @param resampling How each character's color is computed from the image's pixels
+		 */
+		public AsciiImage(BufferedImage bimg, double scalex, double scaley, boolean adjust_for_stretching, RampMapper ramp, ConversionPool pool, Resampler.Mode resampling) {
+			this(bimg, ConversionOptions.fromGlobalFlags().withScale(scalex, scaley).withAdjustForStretching(adjust_for_stretching)
+					.withRamp(ramp).withResampling(resampling), pool);
+		}
+		
+		/**
+		 * Instantiates an AsciiImage with the specified options. The global
+		 * flags are not read.
+		 * @param bimg Image to convert to ASCII
+		 * @param options How to convert and render the image
+		 * @param pool Decides whether and where rows are converted in parallel
+		 */
+		public AsciiImage(BufferedImage bimg, ConversionOptions options, ConversionPool pool) {
+			this(convert(bimg, options, pool), options);
+		}
+		
+		/**
+		 * Instantiates an AsciiImage from an image file without decoding the
+		 * whole image at once. The file is decoded near the target size in
+		 * strips, so huge images convert in bounded memory.
+		 * @param file Image file to convert to ASCII
+		 * @param scalex How much to scale the X dimension
+		 * @param scaley How much to scale the Y dimension
+		 * @param adjust_for_stretching Adjust for vertical stretching?
+		 * @param ramp Maps pixel brightness to characters
+		 * @param pool Decides whether and where rows are converted in parallel
+		 * @param resampling How each character's color is computed from the image's pixels
+		 * @throws IOException
+		 * @see StreamingConverter
+		 */
+		public AsciiImage(File file, double scalex, double scaley, boolean adjust_for_stretching, RampMapper ramp, ConversionPool pool, Resampler.Mode resampling) throws IOException {
+			this(file, ConversionOptions.fromGlobalFlags().withScale(scalex, scaley).withAdjustForStretching(adjust_for_stretching)
+					.withRamp(ramp).withResampling(resampling), pool);
+		}
+		
+		/**
+		 * Instantiates an AsciiImage from an image file with the specified
+		 * options, decoding the file in strips. The global flags are not read.
+		 * @param file Image file to convert to ASCII
+		 * @param options How to convert and render the image
+		 * @param pool Decides whether and where rows are converted in parallel
+		 * @throws IOException
+		 * @see StreamingConverter
+		 */
+		public AsciiImage(File file, ConversionOptions options, ConversionPool pool) throws IOException {
+			this(StreamingConverter.DEFAULT.convert(file, options, pool), options);
+		}
+		
+		/**
+		 * Instantiates an AsciiImage from an already converted grid.
+		 * @param grid The characters and colors of the image
+		 */
+		public AsciiImage(AsciiGrid grid) {
+			this(grid, ConversionOptions.fromGlobalFlags());
+		}
+		
+		/**
+		 * Instantiates an AsciiImage from an already converted grid, rendered
+		 * with the specified options.
+		 * @param grid The characters and colors of the image
+		 * @param options How to render the image
+		 */
+		public AsciiImage(AsciiGrid grid, ConversionOptions options) {
+			this.grid = grid;
+			this.options = options;
+		}
+		
+		/**
+		 * Converts a whole BufferedImage to a grid.
+		 */
+		static AsciiGrid convert(BufferedImage bimg, ConversionOptions options, ConversionPool pool) {
+			int w = gridWidth(bimg.getWidth(), options.getScaleX());
+			int h = gridHeight(bimg.getHeight(), options.getScaleY(), options.isAdjustForStretching());
+			Resampler resampler = resampler(bimg.getWidth(), bimg.getHeight(), w, h, options);
+			AsciiGrid grid = new AsciiGrid(w, h, options.getUnicode() != null);
+			RasterReader pixels = new RasterReader(bimg);
+			pool.convert(h, (long) bimg.getWidth() * bimg.getHeight(), (y0, y1) -> convertBand(resampler, pixels, 0, y0, y1, grid, options));
+			return grid;
+		}
+		
+		/**
+		 * Gets a resampler from an image to a grid: to one pixel per cell, or
+		 * to one per sub-cell when the options match shapes or draw Unicode
+		 * blocks.
+		 * @param srcWidth The width of the image
+		 * @param srcHeight The height of the image
+		 * @param w The width of the grid
+		 * @param h The height of the grid
+		 * @param options The resampling mode, shape matching and Unicode mode to convert with
+		 * @return The resampler
+		 */
+		static Resampler resampler(int srcWidth, int srcHeight, int w, int h, ConversionOptions options) {
+			return new Resampler(options.getResampling(), srcWidth, srcHeight, w * subColumns(options), h * subRows(options));
+		}
+		
+		/**
+		 * Gets the number of resampled pixels across each cell.
+		 * @param options The shape matching and Unicode mode to convert with
+		 * @return The sub-cell columns, or 1 without either
+		 */
+		static int subColumns(ConversionOptions options) {
+			if (options.getUnicode() != null) return options.getUnicode().getColumns();
+			return (options.getShapeMatching() != null) ? options.getShapeMatching().getColumns() : 1;
+		}
+		
+		/**
+		 * Gets the number of resampled rows down each cell.
+		 * @param options The shape matching and Unicode mode to convert with
+		 * @return The sub-cell rows, or 1 without either
+		 */
+		static int subRows(ConversionOptions options) {
+			if (options.getUnicode() != null) return options.getUnicode().getRows();
+			return (options.getShapeMatching() != null) ? options.getShapeMatching().getRows() : 1;
+		}
+		
+		/**
+		 * Resamples and maps grid rows <code>y0</code> to <code>y1</code>,
+		 * reporting both stages to {@link ConversionMetrics}.
+		 * @param resampler Resamples the source pixels to the grid, from {@link #resampler(int, int, int, int, ConversionOptions)}
+		 * @param pixels The source pixels
+		 * @param first The source row that is row 0 of <code>pixels</code>
+		 * @param y0 The first grid row
+		 * @param y1 One past the last grid row
+		 * @param grid The grid to write to
+		 * @param options The ramp and flags to map with
+		 */
+		static void convertBand(Resampler resampler, RasterReader pixels, int first, int y0, int y1, AsciiGrid grid, ConversionOptions options) {
+			int w = grid.getWidth(), sub = subRows(options);
+			int[] rows = new int[(y1 - y0) * sub * resampler.getWidth()];
+			ConversionMetrics.Span resize = ConversionMetrics.begin(ConversionMetrics.Stage.RESIZE);
+			resampler.resample(pixels, first, y0 * sub, y1 * sub, rows, 0);
+			if (resize != null) {
+				long read = (long) pixels.getWidth() * (resampler.endSourceRow(y1 * sub - 1) - resampler.firstSourceRow(y0 * sub));
+				resize.end(pixels.getWidth(), pixels.getHeight(), w, y1 - y0, options.getFlags(), read, (long) rows.length * Integer.BYTES);
+			}
+			ConversionMetrics.Span map = ConversionMetrics.begin(ConversionMetrics.Stage.MAP);
+			mapRows(rows, y0, y1, grid, options);
+			if (map != null) {
+				int cellBytes = Character.BYTES + (grid.hasBackgrounds() ? 2 : 1) * Integer.BYTES;
+				map.end(0, 0, w, y1 - y0, options.getFlags(), rows.length, (long) (y1 - y0) * w * cellBytes);
+			}
+		}
+		
+		/**
+		 * Gets the number of characters per row for an image width.
+		 * @param width The width of the image
+		 * @param scalex How much to scale the X dimension
+		 * @return The width of the grid
+		 */
+		static int gridWidth(int width, double scalex) {
+			return (int) (width * scalex);
+		}
+		
+		/**
+		 * Gets the number of rows for an image height.
+		 * @param height The height of the image
+		 * @param scaley How much to scale the Y dimension
+		 * @param adjust_for_stretching Adjust for vertical stretching?
+		 * @return The height of the grid
+		 */
+		static int gridHeight(int height, double scaley, boolean adjust_for_stretching) {
+			int h = (int) (height * scaley);
 
 			// Because a line is taller than a character is wide, the printed
 			// ASCII image is stretched vertically. On average a line is slightly
 			// smaller than double the width of a character, so 0.49 seems to
 			// be a good size
-			if (adjust_for_stretching) scaled_img = resizeImage(scaled_img, 1.0, 0.49);
-			
-			for (int y = 0; y < scaled_img.getHeight(); y++) {
-				this.ascii_index.add(new ArrayList<>(scaled_img.getWidth()));
-				this.ascii_index_color.add(new ArrayList<>(scaled_img.getWidth()));
-				for (int x = 0; x < scaled_img.getWidth(); x++) {
-					RGB rgb = new RGB(scaled_img.getRGB(x, y));
-					
-					if (flags.contains(Flag.INVERT)) rgb.invert();
-					if (flags.contains(Flag.GRAYSCALE)) rgb.grayscale();
-					
-					int idx = Image2Ascii.rgbToAsciiTable(rgb);
-					char ch = asciiTable[idx];
-					if (flags.contains(Flag.SINGLE_CHAR)) ch = '@';
-					this.ascii_index.get(y).add(ch);
-					this.ascii_index_color.get(y).add(rgb);
+			if (adjust_for_stretching) h = (int) (h * 0.49);
+			return h;
+		}
+		
+		/**
+		 * Maps resampled pixels to the characters and colors of grid rows,
+		 * applying Unicode blocks or shape matching and the INVERT, GRAYSCALE and
+		 * SINGLE_CHAR flags.
+		 * @param rows The resampled pixels of rows <code>y0</code> to <code>y1</code>, or of their sub-cells
+		 * @param y0 The first grid row
+		 * @param y1 One past the last grid row
+		 * @param grid The grid to write to
+		 * @param options The ramp and flags to map with
+		 */
+		static void mapRows(int[] rows, int y0, int y1, AsciiGrid grid, ConversionOptions options) {
+			int w = grid.getWidth();
+			char[] chars = grid.chars();
+			if (options.getUnicode() != null) {
+				int stride = w * subColumns(options), cellRows = subRows(options) * stride;
+				int flip = options.hasFlag(Flag.INVERT) ? 0x00ffffff : 0;
+				for (int y = y0; y < y1; y++) {
+					UnicodeMapper.mapRow(options.getUnicode(), rows, (y - y0) * cellRows, stride, w, flip, options.hasFlag(Flag.GRAYSCALE),
+							chars, grid.colors(), grid.backgrounds(), y * w);
+				}
+			} else if (options.getShapeMatching() != null) {
+				ShapeMatcher matcher = ShapeMatcher.get(options);
+				int stride = w * subColumns(options), cellRows = subRows(options) * stride;
+				int flip = options.hasFlag(Flag.INVERT) ? 0x00ffffff : 0;
+				for (int y = y0; y < y1; y++) {
+					matcher.mapRow(rows, (y - y0) * cellRows, stride, w, flip, options.hasFlag(Flag.GRAYSCALE), chars, grid.colors(), y * w);
 				}
+			} else {
+				options.getRamp().mapRow(rows, 0, (y1 - y0) * w, options.hasFlag(Flag.INVERT), options.hasFlag(Flag.GRAYSCALE), chars, grid.colors(), y0 * w);
 			}
-			
-
-			this.aframe = new AsciiFrame(this.ascii_index, this.ascii_index_color);
+			if (options.hasFlag(Flag.SINGLE_CHAR)) Arrays.fill(chars, y0 * w, y1 * w, '@');
 		}
 		
 		/**
@@ -296,7 +499,7 @@ public class Image2Ascii {
 		 * @return The character found at x and y
 		 */
 		public char get(int x, int y) {
-			return this.ascii_index.get(y).get(x);
+			return this.grid.get(x, y);
 		}
 		
 		/**
@@ -306,7 +509,15 @@ public class Image2Ascii {
 		 * @return The RGB object found at <code>x</code> and <code>y</code>
 		 */
 		public RGB getRgb(int x, int y) {
-			return this.ascii_index_color.get(y).get(x);
+			return new RGB(this.grid.getRgb(x, y));
+		}
+		
+		/**
+		 * Gets the grid holding the characters and colors of this AsciiImage.
+		 * @return The backing AsciiGrid
+		 */
+		public AsciiGrid getGrid() {
+			return this.grid;
 		}
 		
 		/**
@@ -314,13 +525,15 @@ public class Image2Ascii {
 		 * @return AsciiImage character contents
 		 */
 		public String toString() {
-			StringBuilder sb = new StringBuilder();
-			for (int y = 0; y < this.ascii_index.size(); y++) {
-				for (int x = 0; x < this.ascii_index.get(y).size(); x++) {
-					sb.append(this.get(x, y));
-				}
+			ConversionMetrics.Span span = ConversionMetrics.begin(ConversionMetrics.Stage.ENCODE);
+			int w = this.grid.getWidth(), h = this.grid.getHeight();
+			char[] chars = this.grid.chars();
+			StringBuilder sb = new StringBuilder((w + 1) * h);
+			for (int y = 0; y < h; y++) {
+				sb.append(chars, y * w, w);
 				sb.append('\n');
 			}
+			if (span != null) GridWriter.encoded(span, this.grid, sb.length());
 			return sb.toString();
 		}
 		
@@ -329,36 +542,183 @@ public class Image2Ascii {
 		 * @return AsciiImage character contents as HTML with color values.
 		 */
 		public String toHtml() {
-			StringBuilder sb = new StringBuilder();
-			sb.append("<style>span { font-size: 6px; font-family: monospace; }</style>");
-			RGB last = null;
-			for (int y = 0; y < this.ascii_index.size(); y++) {
-				for (int x = 0; x < this.ascii_index.get(y).size(); x++) {
-					RGB rgb = this.getRgb(x, y);
-					char ch = this.get(x, y);
-					if (rgb.equals(last)) {	// add repeating color characters to the same DOM element
-						sb.append(ch);
-					} else {
-						if (!(last==null)) sb.append("</span>");
-						String htmlElem = "<span style=\"color: rgb(" + rgb.r + ", " + rgb.g + ", " + rgb.b + ");\">" + ch;
-						sb.append(htmlElem);
-					}
-					last = rgb;
-				}
-				sb.append("<br>");
+			StringWriter sw = new StringWriter();
+			try {
+				this.writeHtml(sw);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);	// StringWriter never throws
 			}
-			return sb.toString();
+			return sw.toString();
+		}
+		
+		/**
+		 * Writes the characters of the AsciiImage row by row, as
+		 * {@link #toString()} would return them.
+		 * @param out Where to write to; it is not flushed or closed
+		 * @throws IOException If writing fails
+		 */
+		public void write(Writer out) throws IOException {
+			GridWriter.writeText(this.grid, out);
 		}
 		
 		/**
-		 * Gets the AsciiFrame
+		 * Writes the characters of the AsciiImage row by row to a stream.
+		 * @param out Where to write to; it is flushed but not closed
+		 * @param charset How characters are encoded
+		 * @throws IOException If writing fails
+		 */
+		public void write(OutputStream out, Charset charset) throws IOException {
+			Writer writer = GridWriter.newWriter(out, charset);
+			this.write(writer);
+			writer.flush();
+		}
+		
+		/**
+		 * Writes the characters of the AsciiImage row by row to a channel.
+		 * @param out Where to write to; it is not closed
+		 * @param charset How characters are encoded
+		 * @throws IOException If writing fails
+		 */
+		public void write(WritableByteChannel out, Charset charset) throws IOException {
+			Writer writer = GridWriter.newWriter(out, charset);
+			this.write(writer);
+			writer.flush();
+		}
+		
+		/**
+		 * Writes the AsciiImage as HTML row by row, as {@link #toHtml()}
+		 * would return it.
+		 * @param out Where to write to; it is not flushed or closed
+		 * @throws IOException If writing fails
+		 */
+		public void writeHtml(Writer out) throws IOException {
+			GridWriter.writeHtml(this.grid, out);
+		}
+		
+		/**
+		 * Writes the AsciiImage as HTML row by row to a stream.
+		 * @param out Where to write to; it is flushed but not closed
+		 * @param charset How characters are encoded
+		 * @throws IOException If writing fails
+		 */
+		public void writeHtml(OutputStream out, Charset charset) throws IOException {
+			Writer writer = GridWriter.newWriter(out, charset);
+			this.writeHtml(writer);
+			writer.flush();
+		}
+		
+		/**
+		 * Writes the AsciiImage as HTML row by row to a channel.
+		 * @param out Where to write to; it is not closed
+		 * @param charset How characters are encoded
+		 * @throws IOException If writing fails
+		 */
+		public void writeHtml(WritableByteChannel out, Charset charset) throws IOException {
+			Writer writer = GridWriter.newWriter(out, charset);
+			this.writeHtml(writer);
+			writer.flush();
+		}
+		
+		/**
+		 * Gets the AsciiImage as compact HTML: colors quantized to a palette
+		 * of CSS classes, with near-identical neighbors sharing an element.
+		 * @return AsciiImage character contents as compact HTML.
+		 * @see CompactHtmlWriter#DEFAULT
+		 */
+		public String toCompactHtml() {
+			StringWriter sw = new StringWriter();
+			try {
+				this.writeHtml(sw, CompactHtmlWriter.DEFAULT);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);	// StringWriter never throws
+			}
+			return sw.toString();
+		}
+		
+		/**
+		 * Writes the AsciiImage as compact HTML.
+		 * @param out Where to write to; it is not flushed or closed
+		 * @param encoding Palette size, merge tolerance and whether to draw on a canvas
+		 * @throws IOException If writing fails
+		 */
+		public void writeHtml(Writer out, CompactHtmlWriter encoding) throws IOException {
+			encoding.write(this.grid, out);
+		}
+		
+		/**
+		 * Gets the AsciiImage as colored terminal text.
+		 * @param level How many colors the terminal can show
+		 * @return AsciiImage character contents with ANSI color escapes.
+		 */
+		public String toAnsi(AnsiWriter.ColorLevel level) {
+			StringWriter sw = new StringWriter();
+			try {
+				this.writeAnsi(sw, new AnsiWriter(level, false));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);	// StringWriter never throws
+			}
+			return sw.toString();
+		}
+		
+		/**
+		 * Writes the AsciiImage as colored terminal text.
+		 * @param out Where to write to; it is not flushed or closed
+		 * @param ansi Color level and whether to color backgrounds
+		 * @throws IOException If writing fails
+		 */
+		public void writeAnsi(Writer out, AnsiWriter ansi) throws IOException {
+			ansi.write(this.grid, out);
+		}
+		
+		/**
+		 * Writes the AsciiImage as colored terminal text to a stream, such as
+		 * <code>System.out</code>.
+		 * @param out Where to write to; it is flushed but not closed
+		 * @param charset How characters are encoded
+		 * @param ansi Color level and whether to color backgrounds
+		 * @throws IOException If writing fails
+		 */
+		public void writeAnsi(OutputStream out, Charset charset, AnsiWriter ansi) throws IOException {
+			Writer writer = GridWriter.newWriter(out, charset);
+			this.writeAnsi(writer, ansi);
+			writer.flush();
+		}
+		
+		/**
+		 * Gets the AsciiFrame, opening its window the first time it is requested.
 		 * @return
-		 * @see AsciiFrame#AsciiFrame(ArrayList, ArrayList)
+		 * @see AsciiFrame#AsciiFrame(AsciiGrid)
 		 */
-		public AsciiFrame getFrame() {
+		public synchronized AsciiFrame getFrame() {
+			if (this.aframe == null) this.aframe = new AsciiFrame(this.grid, this.options);
 			return this.aframe;
 		}
 		
+		/**
+		 * Renders the AsciiImage off-screen, without opening a window.
+		 * @return An image of the colored characters
+		 * @see AsciiRenderer#render(GridView)
+		 */
+		public BufferedImage toImage() {
+			return this.renderer().render(this.grid);
+		}
+		
+		/**
+		 * Gets the options this AsciiImage was converted with.
+		 * @return The options, which also decide how it is rendered
+		 */
+		public ConversionOptions getOptions() {
+			return this.options;
+		}
+		
+		/**
+		 * Gets a renderer for this AsciiImage's options.
+		 * @return A renderer at the options' font size
+		 */
+		private AsciiRenderer renderer() {
+			return new AsciiRenderer(this.options);
+		}
+		
 		/**
 		 * Exports the AsciiImage to specified file path
 		 * @param path The location on disk to write to
@@ -366,11 +726,8 @@ public class Image2Ascii {
 		 * @return Whether or not file successfully wrote to disk
 		 */
 		public boolean export(String path) {
-			FileWriter file = null;
-			try {
-				file = new FileWriter(path);
-				file.write(this.toString());
-				file.close();
+			try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				this.write(file, StandardCharsets.UTF_8);
 			} catch (IOException e) {
 				System.out.println("An error occured.");
 				e.printStackTrace();
@@ -380,27 +737,32 @@ public class Image2Ascii {
 		}
 		
 		/**
-		 * Exports the contents of AsciiFrame as PNG image to specified path.
+		 * Exports the AsciiImage as PNG image to specified path. No window
+		 * is opened.
 		 * @param path The location on disk to write to
 		 * @return If successfully saved
-		 * @see AsciiFrame#export(String)
+		 * @see AsciiRenderer#export(GridView, File)
 		 */
 		public boolean exportImage(String path) {
-		    return this.getFrame().export(path);
+			try {
+				this.renderer().export(this.grid, new File(path));
+			} catch (IOException e) {
+				System.err.println("Err: Failed to export image.");
+				e.printStackTrace();
+				return false;
+			}
+			return true;
 		}
 		
 		/**
 		 * Exports the contents of AsciiFrame as HTML to specified path
 		 * @param path The location on disk to write to
 		 * @return If successfully saved
-		 * @see #toHtml()
+		 * @see #writeHtml(WritableByteChannel, Charset)
 		 */
 		public boolean exportHtml(String path) {
-			FileWriter file = null;
-			try {
-				file = new FileWriter(path);
-				file.write(this.toHtml());
-				file.close();
+			try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				this.writeHtml(file, StandardCharsets.UTF_8);
 			} catch (IOException e) {
 				System.out.println("An error occured.");
 				e.printStackTrace();
@@ -410,34 +772,32 @@ public class Image2Ascii {
 		}
 		
 		/**
-		 * Resizes a BufferedImage to specified percentage of originalImage.
-		 * @param originalImage The BufferedImage to scale
-		 * @param scalex The percentage to scale the X dimension
-		 * @param scaley The percentage to scale the Y dimension
-		 * @return The scaled BufferedImage
+		 * Exports the AsciiImage as a grid file, which MappedGrid can map
+		 * to write it out again in any format without converting the image.
+		 * @param path The location on disk to write to
+		 * @throws IOException If the file cannot be written
+		 * @see MappedGrid#write(GridView, ConversionOptions, File)
 		 */
-		private static BufferedImage resizeImage(BufferedImage originalImage, double scalex, double scaley) {
-			int targetWidth = (int) (originalImage.getWidth() * scalex);
-			int targetHeight = (int) (originalImage.getHeight() * scaley);
-			return resizeImage(originalImage, targetWidth, targetHeight);
+		public void exportGrid(String path) throws IOException {
+			MappedGrid.write(this.grid, this.options, new File(path));
 		}
 		
 		/**
-		 * Resizes a BufferedImage to specified width and height of originalImage.
-		 * @param originalImage The BufferedImage to scale
-		 * @param targetWidth The width to scale up/down to
-		 * @param targetHeight The height to scale up/down to
-		 * @return The scaled BufferedImage
+		 * Exports the AsciiImage as compact HTML to specified path
+		 * @param path The location on disk to write to
+		 * @param encoding Palette size, merge tolerance and whether to draw on a canvas
+		 * @throws IOException If the file cannot be written
 		 */
-		private static BufferedImage resizeImage(BufferedImage originalImage, int targetWidth, int targetHeight) {
-		    Image resultingImage = originalImage.getScaledInstance(targetWidth, targetHeight, Image.SCALE_DEFAULT);
-		    BufferedImage outputImage = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_RGB);
-		    outputImage.getGraphics().drawImage(resultingImage, 0, 0, null);
-		    return outputImage;
+		public void exportHtml(String path, CompactHtmlWriter encoding) throws IOException {
+			try (FileChannel file = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				Writer writer = GridWriter.newWriter(file, StandardCharsets.UTF_8);
+				this.writeHtml(writer, encoding);
+				writer.flush();
+			}
 		}
 	}
 	
-	private static char[] asciiTable = {
+	static final char[] asciiTable = {
 			// 94 characters because these are most of the printable ASCII characters
 			'@', '$', '%', 'G', '&', '8', 'W', '6', '9', 'm', 'Q', 'g', 'b', 'O',
 			'3', 'p', '0', '#', 'X', 'd', 'h', 'S', 'k', 'U', 'B', 'A', 'e', 'R',
@@ -453,10 +813,8 @@ public class Image2Ascii {
 	 * @param rgb The RGB object to convert
 	 * @return An index in asciiTable
 	 */
-	private static int rgbToAsciiTable(RGB rgb) {
-		rgb = rgb.clone();
-		rgb.grayscale();
-		return (int) Math.round(rgb.r / 255.0 * (asciiTable.length-1));
+	static int rgbToAsciiTable(RGB rgb) {
+		return RampMapper.DEFAULT.index(rgb.toInt());
 	}
 	
 }
@@ -0,0 +1,339 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays frames in a terminal by redrawing only the cells that changed.
+ * <p>
+ * The renderer remembers the characters, colors and backgrounds on screen. For each new
+ * frame it moves the cursor to every run of changed cells and rewrites just
+ * that run; runs separated by a few unchanged cells are written as one,
+ * since rewriting those cells is cheaper than another cursor move. When
+ * most of the screen changed, the whole frame is repainted instead.
+ * <p>
+ * Frames are shown on a timeline set by their delays, no faster than the
+ * frame-rate cap. Frames that arrive after the next one was due can be
+ * dropped to catch up. Bytes written and the frame rate achieved are
+ * counted as the renderer runs.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class LiveTerminalRenderer implements FrameSink {
+
+	/** Default frame-rate cap. */
+	public static final double DEFAULT_MAX_FPS = 30;
+	/** Default share of changed cells above which the whole frame is repainted. */
+	public static final double DEFAULT_REPAINT_RATIO = 0.5;
+	/** Most unchanged cells rewritten to join two runs instead of moving the cursor. */
+	public static final int MAX_GAP = 4;
+
+	/**
+	 * What to do with a frame that arrives after the next one was due.
+	 */
+	public static enum DropPolicy {
+		/** Show every frame; the timeline slips when frames are late. */
+		NEVER,
+		/** Skip late frames so playback keeps to the timeline. */
+		LATE
+	}
+
+	private static final String HIDE_CURSOR = "\u001b[?25l";
+	private static final String SHOW_CURSOR = "\u001b[?25h";
+	private static final String CLEAR_SCREEN = "\u001b[H\u001b[2J";
+
+	private final CountingOutputStream counter;
+	private final Writer out;
+	private final AnsiWriter ansi;
+	private final byte[] lut;
+	private final long minInterval;
+	private final DropPolicy dropPolicy;
+	private final double repaintRatio;
+	private final char[] buf = new char[64];
+
+	private char[] shownChars;
+	private int[] shownCodes;
+	private int[] shownBgs;
+	private int width, height;
+	private int fg = -1, bg = -1;			// colors the terminal is set to
+	private int cursorRow = -1, cursorCol = -1;	// -1 when unknown
+
+	private long start = -1, due, lastShown;
+	private int framesShown, framesDropped, repaints;
+	private long lastFrameBytes;
+
+	/**
+	 * Instantiates a LiveTerminalRenderer that caps playback at
+	 * {@link #DEFAULT_MAX_FPS} and drops late frames.
+	 * @param out The terminal
+	 * @param ansi Color level and whether to color backgrounds
+	 */
+	public LiveTerminalRenderer(OutputStream out, AnsiWriter ansi) {
+		this(out, Charset.defaultCharset(), ansi, DEFAULT_MAX_FPS, DropPolicy.LATE, DEFAULT_REPAINT_RATIO);
+	}
+
+	/**
+	 * Instantiates a LiveTerminalRenderer.
+	 * @param out The terminal; it is flushed after every frame but never closed
+	 * @param charset How characters are encoded
+	 * @param ansi Color level and whether to color backgrounds
+	 * @param maxFps Most frames shown per second; 0 for no cap
+	 * @param dropPolicy What to do with frames that arrive late
+	 * @param repaintRatio Share of changed cells, 0-1, above which the whole frame is repainted
+	 */
+	public LiveTerminalRenderer(OutputStream out, Charset charset, AnsiWriter ansi, double maxFps, DropPolicy dropPolicy, double repaintRatio) {
+		if (maxFps < 0) throw new IllegalArgumentException("Frame rate cap must not be negative: " + maxFps);
+		if (repaintRatio < 0 || repaintRatio > 1) throw new IllegalArgumentException("Repaint ratio must be 0-1: " + repaintRatio);
+		this.counter = new CountingOutputStream(out);
+		this.out = GridWriter.newWriter(this.counter, charset);
+		this.ansi = ansi;
+		this.lut = ansi.lut();
+		this.minInterval = (maxFps == 0) ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / maxFps);
+		this.dropPolicy = dropPolicy;
+		this.repaintRatio = repaintRatio;
+	}
+
+	/**
+	 * Shows a frame once it is due, or drops it if it is late and the drop
+	 * policy allows.
+	 * @param grid The frame
+	 * @param delay How long to show the frame, in milliseconds; 0 shows it
+	 * for one frame at the frame-rate cap, or with no cap just until the
+	 * next frame arrives
+	 * @throws IOException If the terminal cannot be written, or the thread
+	 * is interrupted while waiting for the frame to be due
+	 */
+	@Override
+	public void frame(AsciiGrid grid, int delay) throws IOException {
+		long now = System.nanoTime();
+		long interval = Math.max(TimeUnit.MILLISECONDS.toNanos(delay), this.minInterval);
+		if (this.start < 0) this.start = this.due = now;
+		long due = this.due;
+		this.due += interval;
+		if (now < due) {
+			for (long wait; (wait = due - System.nanoTime()) > 0; ) {
+				LockSupport.parkNanos(this, wait);
+				if (Thread.interrupted()) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted waiting for the next frame");
+				}
+			}
+		} else if (now - this.due >= 0) {	// the next frame is already due
+			// with no delay and no cap every frame is due at once, and none is late
+			if (interval > 0 && this.dropPolicy == DropPolicy.LATE && this.framesShown > 0) {
+				this.framesDropped++;
+				return;
+			}
+			this.due = now + interval;
+		}
+		this.show(grid);
+	}
+
+	/**
+	 * Shows a frame right away.
+	 * @param grid The frame
+	 * @throws IOException If the terminal cannot be written
+	 */
+	public void show(AsciiGrid grid) throws IOException {
+		long before = this.counter.count;
+		int w = grid.getWidth(), h = grid.getHeight(), cells = w * h;
+		char[] chars = grid.chars();
+		int[] colors = grid.colors();
+		int[] codes = new int[cells];
+		int[] backgrounds = grid.backgrounds();
+		int[] bgs = new int[cells];
+		for (int i = 0; i < cells; i++) {
+			codes[i] = AnsiWriter.code(colors[i], this.lut);
+			// a cell's own background if it has one, else its color when backgrounds are colored
+			if (backgrounds != null && (backgrounds[i] >>> 24) != 0) bgs[i] = AnsiWriter.code(backgrounds[i], this.lut);
+			else bgs[i] = this.ansi.isBackground() ? codes[i] : -1;
+		}
+
+		if (this.shownChars == null || w != this.width || h != this.height) {
+			if (this.shownChars == null) this.out.write(HIDE_CURSOR);
+			this.out.write(CLEAR_SCREEN);
+			this.cursorRow = this.cursorCol = 0;
+			this.width = w;
+			this.height = h;
+			this.shownChars = new char[cells];
+			this.shownCodes = new int[cells];
+			this.shownBgs = new int[cells];
+			this.repaint(chars, codes, bgs);
+		} else {
+			int changed = 0;
+			for (int i = 0; i < cells; i++) if (this.changed(i, chars, codes, bgs)) changed++;
+			if (changed > this.repaintRatio * cells) this.repaint(chars, codes, bgs);
+			else if (changed > 0) this.update(chars, codes, bgs);
+		}
+		System.arraycopy(chars, 0, this.shownChars, 0, cells);
+		System.arraycopy(codes, 0, this.shownCodes, 0, cells);
+		System.arraycopy(bgs, 0, this.shownBgs, 0, cells);
+		this.out.flush();
+
+		this.lastFrameBytes = this.counter.count - before;
+		this.lastShown = System.nanoTime();
+		this.framesShown++;
+	}
+
+	/**
+	 * Moves the cursor below the last frame, restores the terminal's colors
+	 * and shows the cursor again.
+	 */
+	@Override
+	public void finish() throws IOException {
+		if (this.shownChars != null) this.moveTo(this.height, 0);
+		if (this.fg != -1 || this.bg != -1) this.out.write(AnsiWriter.RESET);
+		this.fg = this.bg = -1;
+		this.out.write(SHOW_CURSOR);
+		this.out.flush();
+	}
+
+	/**
+	 * Gets the number of frames shown.
+	 * @return Frames written to the terminal
+	 */
+	public int getFramesShown() {
+		return this.framesShown;
+	}
+
+	/**
+	 * Gets the number of frames skipped because they were late.
+	 * @return Dropped frames
+	 */
+	public int getFramesDropped() {
+		return this.framesDropped;
+	}
+
+	/**
+	 * Gets the number of frames that were repainted in full.
+	 * @return Full repaints, including the first frame
+	 */
+	public int getRepaints() {
+		return this.repaints;
+	}
+
+	/**
+	 * Gets the number of bytes written to the terminal.
+	 * @return Bytes written so far
+	 */
+	public long getBytesWritten() {
+		return this.counter.count;
+	}
+
+	/**
+	 * Gets the number of bytes the last frame took.
+	 * @return Bytes written for the last frame shown
+	 */
+	public long getLastFrameBytes() {
+		return this.lastFrameBytes;
+	}
+
+	/**
+	 * Gets the average number of bytes per frame shown.
+	 * @return Bytes per frame, or 0 before the first frame
+	 */
+	public double getBytesPerFrame() {
+		return (this.framesShown == 0) ? 0 : (double) this.counter.count / this.framesShown;
+	}
+
+	/**
+	 * Gets the frame rate achieved from the first frame shown to the last.
+	 * @return Frames per second, or 0 before the second frame
+	 */
+	public double getFps() {
+		long elapsed = this.lastShown - this.start;
+		return (this.framesShown < 2 || elapsed <= 0) ? 0 : (this.framesShown - 1) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+	}
+
+	/**
+	 * Checks whether a cell looks different from what is on screen. The color
+	 * of a blank does not show.
+	 */
+	private boolean changed(int i, char[] chars, int[] codes, int[] bgs) {
+		if (chars[i] != this.shownChars[i] || bgs[i] != this.shownBgs[i]) return true;
+		return codes[i] != this.shownCodes[i] && chars[i] != ' ';
+	}
+
+	/**
+	 * Writes every cell of the frame.
+	 */
+	private void repaint(char[] chars, int[] codes, int[] bgs) throws IOException {
+		for (int y = 0; y < this.height; y++) this.writeRun(y, 0, this.width, chars, codes, bgs);
+		this.repaints++;
+	}
+
+	/**
+	 * Writes the runs of changed cells, joining runs that are at most
+	 * {@link #MAX_GAP} unchanged cells apart.
+	 */
+	private void update(char[] chars, int[] codes, int[] bgs) throws IOException {
+		int w = this.width;
+		for (int y = 0; y < this.height; y++) {
+			int row = y * w;
+			for (int x = 0; x < w; ) {
+				if (!this.changed(row + x, chars, codes, bgs)) {
+					x++;
+					continue;
+				}
+				int end = x + 1, gap = 0;
+				for (int c = end; c < w && gap <= MAX_GAP; c++) {
+					if (this.changed(row + c, chars, codes, bgs)) {
+						end = c + 1;
+						gap = 0;
+					} else {
+						gap++;
+					}
+				}
+				this.writeRun(y, x, end, chars, codes, bgs);
+				x = end;
+			}
+		}
+	}
+
+	/**
+	 * Moves to a cell and writes cells <code>x0</code> to <code>x1</code> of its row.
+	 */
+	private void writeRun(int y, int x0, int x1, char[] chars, int[] codes, int[] bgs) throws IOException {
+		this.moveTo(y, x0);
+		boolean background = this.ansi.isBackground();
+		for (int x = x0, i = y * this.width + x0; x < x1; x++, i++) {
+			char ch = chars[i];
+			// a blank shows no foreground, so it need not change it
+			int wantFg = (ch == ' ' && !background) ? this.fg : codes[i];
+			int wantBg = bgs[i];
+			int n = this.ansi.style(this.buf, 0, this.fg, this.bg, wantFg, wantBg);
+			this.fg = wantFg;
+			this.bg = wantBg;
+			this.buf[n++] = ch;
+			this.out.write(this.buf, 0, n);
+		}
+		// past the last column the terminal may be waiting to wrap, so the position is not known
+		this.cursorCol = (x1 < this.width) ? x1 : -1;
+	}
+
+	/**
+	 * Moves the cursor with the shortest sequence that gets it there.
+	 */
+	private void moveTo(int y, int x) throws IOException {
+		if (this.cursorCol >= 0 && this.cursorRow == y) {
+			if (x == this.cursorCol) return;
+			if (x == 0) {
+				this.out.write('\r');
+				this.cursorCol = 0;
+				return;
+			}
+			if (x > this.cursorCol) {
+				this.out.write("\u001b[" + (x - this.cursorCol) + "C");
+				this.cursorCol = x;
+				return;
+			}
+		}
+		this.out.write("\u001b[" + (y + 1) + ";" + (x + 1) + "H");
+		this.cursorRow = y;
+		this.cursorCol = x;
+	}
+}
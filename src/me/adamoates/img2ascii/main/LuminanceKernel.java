@@ -0,0 +1,96 @@
+package me.adamoates.img2ascii.main;
+
+/**
+ * Computes the gray levels of runs of packed pixels for RampMapper. This
+ * class is the scalar kernel; VectorLuminanceKernel does the same work in
+ * SIMD lanes with <code>jdk.incubator.vector</code>.
+ * <p>
+ * The vector kernel is compiled separately for Java 17 and is used with
+ * <code>-Dimg2ascii.vector=true</code> when the JVM was started with
+ * <code>--add-modules jdk.incubator.vector</code>; otherwise the scalar
+ * kernel is used. It is not the default because the tables are read with
+ * gathers, which JDK 17 can only index from arrays, and that makes it
+ * slower than the scalar loop there. Both kernels use the same tables and
+ * integer arithmetic, so they produce bit-identical output.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class LuminanceKernel {
+
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	private static final String VECTOR_KERNEL = "me.adamoates.img2ascii.main.VectorLuminanceKernel";
+
+	/** The scalar kernel. */
+	static final LuminanceKernel SCALAR = new LuminanceKernel();
+
+	/**
+	 * Holds the kernel RampMapper uses, chosen the first time it is needed.
+	 */
+	private static final class Holder {
+		static final LuminanceKernel KERNEL = Boolean.getBoolean("img2ascii.vector") ? vector() : null;
+	}
+
+	LuminanceKernel() {}
+
+	/**
+	 * Gets the kernel to convert with: the vector kernel when it is asked
+	 * for and can be loaded, else the scalar one.
+	 * @return The kernel
+	 */
+	static LuminanceKernel get() {
+		LuminanceKernel kernel = Holder.KERNEL;
+		return (kernel != null) ? kernel : SCALAR;
+	}
+
+	/**
+	 * Loads the vector kernel.
+	 * @return The vector kernel, or null if the module or the kernel is missing
+	 */
+	static LuminanceKernel vector() {
+		if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) return null;
+		try {
+			return (LuminanceKernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;	// not compiled in, or compiled for a newer Java
+		}
+	}
+
+	/**
+	 * Converts a run of pixels to characters and output colors.
+	 * @param src Packed RGB pixels
+	 * @param srcOff Offset of the first pixel in <code>src</code>
+	 * @param len Number of pixels to convert
+	 * @param flip XORed into each pixel first: 0x00ffffff to invert, else 0
+	 * @param grayscale Output gray colors instead of the pixel colors
+	 * @param grayToChar The character for each gray level
+	 * @param chars Receives the characters
+	 * @param colors Receives the opaque output colors
+	 * @param dstOff Offset of the first cell in <code>chars</code> and <code>colors</code>
+	 */
+	void mapRow(int[] src, int srcOff, int len, int flip, boolean grayscale, char[] grayToChar, char[] chars, int[] colors, int dstOff) {
+		for (int i = 0; i < len; i++) {
+			int rgb = src[srcOff + i] ^ flip;
+			int g = RampMapper.luminance(rgb);
+			chars[dstOff + i] = grayToChar[g];
+			colors[dstOff + i] = grayscale ? (0xff000000 | (g << 16) | (g << 8) | g) : (0xff000000 | rgb);
+		}
+	}
+
+	/**
+	 * Converts a run of pixels to indexes in a ramp.
+	 * @param src Packed RGB pixels
+	 * @param srcOff Offset of the first pixel in <code>src</code>
+	 * @param len Number of pixels to convert
+	 * @param flip XORed into each pixel first: 0x00ffffff to invert, else 0
+	 * @param grayToIndex The ramp index for each gray level
+	 * @param indexes Receives the indexes
+	 * @param dstOff Offset of the first index in <code>indexes</code>
+	 */
+	void indexRow(int[] src, int srcOff, int len, int flip, byte[] grayToIndex, int[] indexes, int dstOff) {
+		for (int i = 0; i < len; i++) indexes[dstOff + i] = grayToIndex[RampMapper.luminance(src[srcOff + i] ^ flip)] & 0xff;
+	}
+
+	@Override
+	public String toString() {
+		return "scalar";
+	}
+}
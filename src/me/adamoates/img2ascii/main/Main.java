@@ -1,31 +1,423 @@
 package me.adamoates.img2ascii.main;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
 
-import me.adamoates.img2ascii.main.Image2Ascii.AsciiImage;
-
+/**
+ * Converts batches of images from the command line. Inputs may be files,
+ * directories or glob patterns; every image found is converted on its own
+ * thread, at most <code>--jobs</code> at a time, and its outputs are
+ * written as soon as it is done.
+ * <p>
+ * Writing the <code>grid</code> format keeps the conversion in a file that
+ * later runs accept as input: it is mapped and written out again in the
+ * other formats, with the options it was converted with, without decoding
+ * the image again.
+ * <p>
+ * Outputs are named after their image with its extension swapped for the
+ * format's, <code>photo.jpg</code> giving <code>photo.txt</code>. When two
+ * images would share a name, or an output would replace an input, the
+ * image's whole name is kept instead, as in <code>photo.jpg.txt</code>.
+ * @author Adam Oates adam.oates@criptext.com
+ */
 public class Main {
 
+	private static final String USAGE = String.join(System.lineSeparator(),
+			"Usage: img2ascii [options] <file|directory|glob>...",
+			"       img2ascii [options] --serve [HOST:]PORT",
+			"  -f, --format LIST    Outputs to write, comma separated (default: txt):",
+			"                         txt, html, compact (palette HTML, .compact.html), png, grid,",
+			"                         ansi, ansi256 or ansi16 (terminal colors, .ans, .256.ans, .16.ans)",
+			"  -o, --output DIR     Where to write outputs (default: next to each image)",
+			"  -s, --scale N        How much to scale the image (default: 1.0)",
+			"  -j, --jobs N         Most images converted at once (default: 2 per processor)",
+			"  -r, --recursive      Look for images in subdirectories too",
+			"      --no-adjust      Do not adjust for vertical stretching",
+			"      --invert         Map bright pixels to dense characters",
+			"      --grayscale      Write gray colors",
+			"      --black-and-white  Render PNGs in black",
+			"      --pack           Render PNGs with tighter spacing",
+			"      --shape LAYOUT   Choose characters by the shape of each cell: 2x4 or 4x4",
+			"      --unicode MODE   Draw cells with Unicode characters: half-blocks, quadrants or braille",
+			"  -v, --verbose        Print every image as it is converted",
+			"      --serve ADDRESS  Convert images POSTed to /convert instead; -j limits concurrent requests",
+			"      --cache MB       With --serve, keep up to MB megabytes of results in memory",
+			"      --cache-dir DIR  With --cache, also keep results in DIR, up to 16 times as many",
+			"  -h, --help           Print this message");
+
+	private enum Format {
+		TXT("txt"), HTML("html"), COMPACT("compact.html"), ANSI("ans"), ANSI256("256.ans"), ANSI16("16.ans"), PNG("png"), GRID(GRID_SUFFIX);
+
+		final String suffix;
+
+		Format(String suffix) {
+			this.suffix = "." + suffix;
+		}
+	}
+
+	private static EnumSet<Format> formats = EnumSet.of(Format.TXT);
+	private static Path output = null;
+	private static ConversionOptions options = ConversionOptions.DEFAULT;
+	private static int jobs = 2 * Runtime.getRuntime().availableProcessors();
+	private static boolean recursive = false;
+	private static boolean verbose = false;
+	private static InetSocketAddress serve = null;
+	private static long cacheMegabytes = 0;
+	private static File cacheDirectory = null;
+
+	private static final String GRID_SUFFIX = "grid";
+	private static final Set<String> SUFFIXES = new HashSet<>();
+	static {
+		for (String suffix : ImageIO.getReaderFileSuffixes()) SUFFIXES.add(suffix.toLowerCase(Locale.ROOT));
+		SUFFIXES.add(GRID_SUFFIX);
+	}
+
+	private static final AtomicLong converted = new AtomicLong();
+	private static final AtomicLong failed = new AtomicLong();
+	private static final AtomicLong pixels = new AtomicLong();
+
 	public static void main(String[] args) {
-		BufferedImage img = null;
+		List<String> inputs = new ArrayList<>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				switch (args[i]) {
+				case "-f": case "--format":
+					formats = EnumSet.noneOf(Format.class);
+					for (String f : value(args, ++i).split(",")) formats.add(Format.valueOf(f.trim().toUpperCase(Locale.ROOT)));
+					break;
+				case "-o": case "--output":
+					output = Paths.get(value(args, ++i));
+					break;
+				case "-s": case "--scale":
+					options = options.withScale(Double.parseDouble(value(args, ++i)));
+					break;
+				case "-j": case "--jobs":
+					jobs = Integer.parseInt(value(args, ++i));
+					if (jobs < 1) throw new IllegalArgumentException("--jobs must be at least 1");
+					break;
+				case "-r": case "--recursive":
+					recursive = true;
+					break;
+				case "--no-adjust":
+					options = options.withAdjustForStretching(false);
+					break;
+				case "--invert":
+					options = options.with(Flag.INVERT);
+					break;
+				case "--grayscale":
+					options = options.with(Flag.GRAYSCALE);
+					break;
+				case "--black-and-white":
+					options = options.with(Flag.BLACK_AND_WHITE);
+					break;
+				case "--pack":
+					options = options.with(Flag.PACK);
+					break;
+				case "--unicode":
+					options = options.withUnicode(UnicodeMapper.Mode.valueOf(value(args, ++i).toUpperCase(Locale.ROOT).replace('-', '_')));
+					break;
+				case "--shape":
+					options = options.withShapeMatching(ShapeMatcher.Layout.valueOf("CELLS_" + value(args, ++i).toUpperCase(Locale.ROOT)));
+					break;
+				case "-v": case "--verbose":
+					verbose = true;
+					break;
+				case "--serve":
+					String address = value(args, ++i);
+					int colon = address.lastIndexOf(':');
+					int port = Integer.parseInt(address.substring(colon + 1));
+					serve = (colon > 0) ? new InetSocketAddress(address.substring(0, colon), port) : new InetSocketAddress(port);
+					break;
+				case "--cache":
+					cacheMegabytes = Long.parseLong(value(args, ++i));
+					if (cacheMegabytes < 1) throw new IllegalArgumentException("--cache must be at least 1");
+					break;
+				case "--cache-dir":
+					cacheDirectory = new File(value(args, ++i));
+					break;
+				case "-h": case "--help":
+					System.out.println(USAGE);
+					return;
+				default:
+					if (args[i].startsWith("-")) throw new IllegalArgumentException("Unknown option " + args[i]);
+					inputs.add(args[i]);
+				}
+			}
+			if (inputs.isEmpty() && serve == null) throw new IllegalArgumentException("No images given");
+			if (cacheDirectory != null && cacheMegabytes == 0) throw new IllegalArgumentException("--cache-dir needs --cache");
+		} catch (IllegalArgumentException e) {
+			System.err.println("Err: " + e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		if (serve != null) {
+			try {
+				ConversionCache cache = (cacheMegabytes == 0) ? null
+						: new ConversionCache(cacheMegabytes << 20, cacheDirectory, 16 * (cacheMegabytes << 20), ConversionPool.SEQUENTIAL);
+				ConversionServer server = new ConversionServer(serve, options, jobs, 4 * jobs, ConversionServer.DEFAULT_QUEUE_TIMEOUT,
+						ConversionServer.DEFAULT_MAX_UPLOAD_BYTES, ConversionServer.DEFAULT_MAX_PIXELS, cache);
+				server.start();
+				System.out.println("Listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/convert");
+			} catch (IOException | UncheckedIOException e) {
+				System.err.println("Err: Failed to start serving on " + serve + ": " + e.getMessage());
+				System.exit(1);
+			}
+			return;
+		}
+
+		// every input is listed before anything is written, so no output is taken for an input
+		List<Path[]> images = new ArrayList<>();
+		for (String input : inputs) {
+			try (Stream<Path[]> found = find(input)) {
+				found.forEach(images::add);
+			} catch (IOException | UncheckedIOException e) {
+				System.err.println("Err: Failed to read " + input + ": " + e.getMessage());
+				failed.incrementAndGet();
+			}
+		}
+		List<Job> planned = plan(images);
+
+		long start = System.nanoTime();
+		ExecutorService executor = newExecutor();
+		Semaphore permits = new Semaphore(jobs);
 		try {
-			img = ImageIO.read(new File("/home/adamoates/Pictures/OneDrive-2021-04-25/IMG_20190913_220054__01.jpg"));
-		} catch (IOException e) {
-			System.err.println("Failed to read file.");
-			e.printStackTrace();
-			System.exit(1);
+			for (Job job : planned) {
+				permits.acquireUninterruptibly();	// at most jobs images are in memory at once
+				try {
+					executor.execute(() -> {
+						try {
+							convert(job);
+						} finally {
+							permits.release();
+						}
+					});
+				} catch (RuntimeException e) {
+					permits.release();
+					throw e;
+				}
+			}
+		} finally {
+			executor.shutdown();
+			permits.acquireUninterruptibly(jobs);
+		}
+
+		double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+		System.out.printf("Converted %d images, %d failed, in %.2f s: %.1f images/s, %.1f Mpixels/s%n",
+				converted.get(), failed.get(), seconds, converted.get() / seconds, pixels.get() / seconds / 1e6);
+		if (failed.get() > 0) System.exit(1);
+	}
+
+	/**
+	 * Gets the argument after an option.
+	 */
+	private static String value(String[] args, int i) {
+		if (i >= args.length) throw new IllegalArgumentException(args[i - 1] + " needs a value");
+		return args[i];
+	}
+
+	/**
+	 * Gets an executor that starts a virtual thread per image when the
+	 * runtime has them, or else a pool of <code>jobs</code> threads.
+	 */
+	private static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(jobs);
+		}
+	}
+
+	/**
+	 * Lists the images an input names as pairs of the image and its
+	 * path relative to where outputs go.
+	 * @param input A file, a directory or a glob pattern
+	 */
+	private static Stream<Path[]> find(String input) throws IOException {
+		int wildcard = -1;
+		for (int i = 0; i < input.length() && wildcard < 0; i++) if ("*?[{".indexOf(input.charAt(i)) >= 0) wildcard = i;
+		if (wildcard < 0) {
+			Path path = Paths.get(input);
+			if (!Files.isDirectory(path)) return Stream.<Path[]>of(new Path[] { path, path.getFileName() });
+			return Files.walk(path, recursive ? Integer.MAX_VALUE : 1)
+					.filter(p -> Files.isRegularFile(p) && isImage(p))
+					.map(p -> new Path[] { p, path.relativize(p) });
+		}
+
+		// walk from the deepest directory before the first wildcard, only as deep as the pattern reaches
+		int slash = input.lastIndexOf('/', wildcard);
+		Path root = Paths.get(slash < 0 ? "." : slash == 0 ? "/" : input.substring(0, slash));
+		String pattern = input.substring(slash + 1);
+		int depth = pattern.contains("**") ? Integer.MAX_VALUE : pattern.split("/").length;
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		return Files.walk(root, depth)
+				.filter(p -> Files.isRegularFile(p) && matcher.matches(root.relativize(p)))
+				.map(p -> new Path[] { p, root.relativize(p) });
+	}
+
+	private static boolean isImage(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return dot >= 0 && SUFFIXES.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * An image and the files to write its outputs to.
+	 */
+	private static final class Job {
+		final Path image;
+		// the file for each format; null where the image is already that output
+		final Path[] outputs = new Path[Format.values().length];
+
+		Job(Path image) {
+			this.image = image;
+		}
+	}
+
+	/**
+	 * Picks the output files of every image, so none is written over an
+	 * input or over another image's output. Images whose outputs cannot be
+	 * given a free name are reported and counted as failed.
+	 * @param images Pairs of an image and its path relative to the output directory
+	 * @return The images to convert
+	 */
+	private static List<Job> plan(List<Path[]> images) {
+		Set<Path> inputs = new HashSet<>();
+		Map<Path, Integer> stems = new HashMap<>();
+		List<Path> bases = new ArrayList<>();
+		for (Path[] image : images) {
+			Path base = ((output != null) ? output.resolve(image[1]) : image[0]).toAbsolutePath().normalize();
+			inputs.add(image[0].toAbsolutePath().normalize());
+			bases.add(base);
+			stems.merge(base.resolveSibling(stem(base)), 1, Integer::sum);
+		}
+
+		List<Job> jobs = new ArrayList<>();
+		Set<Path> taken = new HashSet<>();
+		for (int i = 0; i < images.size(); i++) {
+			Path image = images.get(i)[0], self = image.toAbsolutePath().normalize(), base = bases.get(i);
+			Job job = new Job(image);
+			String stem = stem(base), name = base.getFileName().toString();
+			boolean shared = stems.get(base.resolveSibling(stem)) > 1;
+			try {
+				for (Format format : formats) {
+					String suffix = format.suffix;
+					// a grid file is already its own grid output
+					if (format == Format.GRID && base.resolveSibling(stem + suffix).equals(self)) continue;
+					Path out = base.resolveSibling((shared ? name : stem) + suffix);
+					if (inputs.contains(out)) out = base.resolveSibling(name + suffix);
+					if (inputs.contains(out) || !taken.add(out)) throw new IOException("Output " + out + " would overwrite another file of this run");
+					job.outputs[format.ordinal()] = out;
+				}
+				jobs.add(job);
+			} catch (IOException e) {
+				failed.incrementAndGet();
+				System.err.println("Err: Failed to convert " + image + ": " + e.getMessage());
+			}
+		}
+		return jobs;
+	}
+
+	/**
+	 * Gets a file's name without its extension.
+	 */
+	private static String stem(Path path) {
+		String name = path.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		return (dot > 0) ? name.substring(0, dot) : name;
+	}
+
+	/**
+	 * Converts one image, or maps one grid file, and writes its outputs.
+	 * Failures are reported and counted, not thrown.
+	 * @param job The image or grid file and where its outputs go
+	 */
+	private static void convert(Job job) {
+		Path image = job.image;
+		long started = System.nanoTime();
+		try {
+			GridView grid;
+			ConversionOptions options = Main.options;
+			if (image.getFileName().toString().toLowerCase(Locale.ROOT).endsWith("." + GRID_SUFFIX)) {
+				MappedGrid mapped = MappedGrid.open(image);
+				grid = mapped;
+				options = mapped.getOptions();
+			} else {
+				try (ImageInputStream in = ImageIO.createImageInputStream(image.toFile())) {
+					if (in == null) throw new IOException("Cannot open " + image);
+					ImageReader reader = StreamingConverter.openReader(in);
+					try {
+						pixels.addAndGet((long) reader.getWidth(0) * reader.getHeight(0));
+						// images are the unit of parallelism, so each converts on its own thread
+						grid = StreamingConverter.DEFAULT.convert(reader, options, ConversionPool.SEQUENTIAL);
+					} finally {
+						reader.dispose();
+					}
+				}
+			}
+
+			for (Format format : formats) {
+				Path out = job.outputs[format.ordinal()];
+				if (out == null) continue;
+				Files.createDirectories(out.getParent());
+				if (format == Format.PNG) {
+					new AsciiRenderer(options).export(grid, out.toFile());
+					continue;
+				}
+				if (format == Format.GRID) {
+					MappedGrid.write(grid, options, out);
+					continue;
+				}
+				try (FileChannel file = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					Writer writer = GridWriter.newWriter(file, StandardCharsets.UTF_8);
+					switch (format) {
+					case TXT: GridWriter.writeText(grid, writer); break;
+					case HTML: GridWriter.writeHtml(grid, writer); break;
+					case COMPACT: CompactHtmlWriter.DEFAULT.write(grid, writer); break;
+					case ANSI: AnsiWriter.TRUECOLOR.write(grid, writer); break;
+					case ANSI256: AnsiWriter.XTERM_256.write(grid, writer); break;
+					default: AnsiWriter.ANSI_16.write(grid, writer); break;
+					}
+					writer.flush();
+				}
+			}
+			converted.incrementAndGet();
+			if (verbose) System.out.printf("%s (%d ms)%n", image, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+		} catch (IOException | RuntimeException e) {
+			failed.incrementAndGet();
+			System.err.println("Err: Failed to convert " + image + ": " + e);
 		}
-		
-		AsciiImage ascii = new Image2Ascii.AsciiImage(img, 1);
-		ascii.getFrame().zoom(0.25);
-		ascii.export("/home/adamoates/Documents/ascii.txt");
-		ascii.exportHtml("/home/adamoates/Documents/ascii.html");
-		ascii.exportImage("/home/adamoates/Documents/ascii.png");
 	}
 
 }
@@ -33,6 +425,4 @@ public class Main {
 /* TODO:
 	* Add the ability to output to JFrame.
 	* Add the ability to choose custom font for aforementioned JFrame.
-	* Add color support; instead of black-and-white. This should be supported in both command line output and JFrame
-	* Possibly make an Image2Unicode and include UTF-8 characters instead of just ASCII.
-*/
\ No newline at end of file
+*/
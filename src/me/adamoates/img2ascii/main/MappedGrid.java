@@ -0,0 +1,454 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Objects;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * A converted grid kept in a file and memory-mapped, so it can be written
+ * as text, HTML or PNG again without the source image and without loading
+ * its cells onto the heap. Rows and regions are read straight from the
+ * mapped pages, so looking at a small part of a large grid only touches
+ * that part of the file.
+ * <p>
+ * A grid file is little-endian and laid out as:
+ * <pre>
+ *  0  int     magic, the bytes "I2AG"
+ *  4  short   version, 2
+ *  6  short   planes, bit 0 set if there is a background plane
+ *  8  int     width in characters
+ * 12  int     height in rows
+ * 16  int     flags, bit 1 &lt;&lt; Flag.ordinal() for each
+ * 20  double  horizontal scale
+ * 28  double  vertical scale
+ * 36  int     resampling mode ordinal
+ * 40  int     font size
+ * 44  int     packed size
+ * 48  int     1 if adjusted for stretching, else 0
+ * 52  int     shape matching layout ordinal + 1, or 0 for none
+ * 56  int     Unicode mode ordinal + 1, or 0 for none
+ * 60  int     ramp length n
+ * 64  char[n] the ramp, darkest first
+ *     char[width * height]  characters, row-major, from the next multiple of 8
+ *     int[width * height]   ARGB colors, row-major, from the next multiple of 8
+ *     int[width * height]   ARGB backgrounds, row-major, from the next multiple of 8, if there are any
+ * </pre>
+ * The options in the header are the ones the grid was converted with, so
+ * it renders the way it was meant to.
+ * <p>
+ * A mapping stays valid after the file is closed and is released once the
+ * MappedGrid is garbage collected. Some platforms do not allow a mapped
+ * file to be deleted or truncated until then.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class MappedGrid implements GridView {
+
+	/** The first four bytes of a grid file, "I2AG" read as a little-endian int. */
+	static final int MAGIC = 0x47413249;
+	/** The layout version this class reads and writes. */
+	static final int VERSION = 2;
+	/** The planes bit set when a file has a background plane. */
+	static final int BACKGROUND_PLANE = 1;
+	/** Bytes before the ramp. */
+	static final int HEADER_SIZE = 64;
+	/** Most bytes of a plane mapped as one buffer; larger planes are mapped in several. */
+	private static final long SEGMENT_SIZE = 1 << 30;
+
+	private final int width;
+	private final int height;
+	private final ConversionOptions options;
+	private final int segmentRows;
+	private final CharBuffer[] chars;
+	private final IntBuffer[] colors;
+	// null if the file has no background plane
+	private final IntBuffer[] backgrounds;
+
+	/**
+	 * Maps the planes of a grid file.
+	 * @param channel The open file
+	 * @throws IOException If the file is not a grid file or is truncated
+	 */
+	private MappedGrid(FileChannel channel) throws IOException {
+		ByteBuffer header = read(channel, 0, HEADER_SIZE);
+		if (header.getInt(0) != MAGIC) throw new IOException("Not a grid file");
+		if (header.getShort(4) != VERSION) throw new IOException("Unsupported grid file version: " + header.getShort(4));
+		int w = header.getInt(8), h = header.getInt(12), n = header.getInt(60);
+		if (w < 0 || h < 0 || n < 1 || n > 256) throw new IOException("Corrupt grid file header");
+		char[] ramp = new char[n];
+		read(channel, HEADER_SIZE, n * Character.BYTES).asCharBuffer().get(ramp);
+		try {
+			EnumSet<Flag> flags = EnumSet.noneOf(Flag.class);
+			for (Flag flag : Flag.values()) if ((header.getInt(16) & (1 << flag.ordinal())) != 0) flags.add(flag);
+			int shape = header.getInt(52), unicode = header.getInt(56);
+			this.options = ConversionOptions.DEFAULT.withFlags(flags)
+					.withRamp(new RampMapper(ramp))
+					.withScale(header.getDouble(20), header.getDouble(28))
+					.withResampling(Resampler.Mode.values()[header.getInt(36)])
+					.withFontSize(header.getInt(40))
+					.withPackedSize(header.getInt(44))
+					.withAdjustForStretching(header.getInt(48) != 0)
+					.withShapeMatching(shape == 0 ? null : ShapeMatcher.Layout.values()[shape - 1])
+					.withUnicode(unicode == 0 ? null : UnicodeMapper.Mode.values()[unicode - 1]);
+		} catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt grid file header", e);
+		}
+
+		boolean hasBackgrounds = (header.getShort(6) & BACKGROUND_PLANE) != 0;
+		long charsOffset = charsOffset(n), colorsOffset = colorsOffset(n, w, h), backgroundsOffset = backgroundsOffset(n, w, h);
+		long end = hasBackgrounds ? backgroundsOffset + (long) w * h * Integer.BYTES : colorsOffset + (long) w * h * Integer.BYTES;
+		if (channel.size() < end) throw new EOFException("Grid file is truncated");
+		if ((long) w * Integer.BYTES > Integer.MAX_VALUE) throw new IOException("Grid rows are too wide to map: " + w);
+		this.width = w;
+		this.height = h;
+		this.segmentRows = (w == 0) ? Math.max(1, h) : (int) Math.max(1, Math.min(h, SEGMENT_SIZE / ((long) w * Integer.BYTES)));
+		int segments = (h + this.segmentRows - 1) / this.segmentRows;
+		this.chars = new CharBuffer[segments];
+		this.colors = new IntBuffer[segments];
+		this.backgrounds = hasBackgrounds ? new IntBuffer[segments] : null;
+		for (int s = 0; s < segments; s++) {
+			long y0 = (long) s * this.segmentRows;
+			long cells = (long) w * (Math.min(h, y0 + this.segmentRows) - y0);
+			this.chars[s] = map(channel, charsOffset + y0 * w * Character.BYTES, cells * Character.BYTES).asCharBuffer();
+			this.colors[s] = map(channel, colorsOffset + y0 * w * Integer.BYTES, cells * Integer.BYTES).asIntBuffer();
+			if (hasBackgrounds) this.backgrounds[s] = map(channel, backgroundsOffset + y0 * w * Integer.BYTES, cells * Integer.BYTES).asIntBuffer();
+		}
+	}
+
+	/**
+	 * Maps a grid file.
+	 * @param file The grid file
+	 * @return The mapped grid
+	 * @throws IOException If the file cannot be read, is not a grid file or is truncated
+	 */
+	public static MappedGrid open(File file) throws IOException {
+		return open(file.toPath());
+	}
+
+	/**
+	 * Maps a grid file.
+	 * @param path The grid file
+	 * @return The mapped grid
+	 * @throws IOException If the file cannot be read, is not a grid file or is truncated
+	 */
+	public static MappedGrid open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			return new MappedGrid(channel);
+		}
+	}
+
+	/**
+	 * Writes a grid to a grid file.
+	 * @param grid The grid to write
+	 * @param options The options it was converted with
+	 * @param file Where to write to; it is replaced if it exists
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void write(GridView grid, ConversionOptions options, File file) throws IOException {
+		write(grid, options, file.toPath());
+	}
+
+	/**
+	 * Writes a grid to a grid file.
+	 * @param grid The grid to write
+	 * @param options The options it was converted with
+	 * @param path Where to write to; it is replaced if it exists
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void write(GridView grid, ConversionOptions options, Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			write(grid, options, channel);
+		}
+	}
+
+	/**
+	 * Writes a grid in the grid file format, one row at a time.
+	 * @param grid The grid to write
+	 * @param options The options it was converted with
+	 * @param out Where to write to; it is not closed
+	 * @throws IOException If writing fails
+	 */
+	public static void write(GridView grid, ConversionOptions options, WritableByteChannel out) throws IOException {
+		ConversionMetrics.Span span = ConversionMetrics.begin(ConversionMetrics.Stage.ENCODE);
+		int w = grid.getWidth(), h = grid.getHeight();
+		char[] ramp = options.getRamp().getRamp();
+		int flags = 0;
+		for (Flag flag : options.getFlags()) flags |= 1 << flag.ordinal();
+
+		ByteBuffer buf = ByteBuffer.allocate(GridWriter.BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(MAGIC).putShort((short) VERSION).putShort((short) (grid.hasBackgrounds() ? BACKGROUND_PLANE : 0))
+			.putInt(w).putInt(h).putInt(flags)
+			.putDouble(options.getScaleX()).putDouble(options.getScaleY())
+			.putInt(options.getResampling().ordinal())
+			.putInt(options.getFontSize()).putInt(options.getPackedSize())
+			.putInt(options.isAdjustForStretching() ? 1 : 0)
+			.putInt(options.getShapeMatching() == null ? 0 : options.getShapeMatching().ordinal() + 1)
+			.putInt(options.getUnicode() == null ? 0 : options.getUnicode().ordinal() + 1)
+			.putInt(ramp.length);
+		for (char ch : ramp) buf.putChar(ch);
+		long written = pad(buf, HEADER_SIZE + ramp.length * Character.BYTES, charsOffset(ramp.length), out);
+
+		char[] chars = new char[w];
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, chars, null, 0);
+			for (char ch : chars) {
+				if (buf.remaining() < Character.BYTES) written += drain(buf, out);
+				buf.putChar(ch);
+			}
+		}
+		written += pad(buf, charsOffset(ramp.length) + (long) w * h * Character.BYTES, colorsOffset(ramp.length, w, h), out);
+
+		int[] colors = new int[w];
+		for (int y = 0; y < h; y++) {
+			grid.copyRow(y, 0, w, null, colors, 0);
+			for (int argb : colors) {
+				if (buf.remaining() < Integer.BYTES) written += drain(buf, out);
+				buf.putInt(argb);
+			}
+		}
+		if (grid.hasBackgrounds()) {
+			written += pad(buf, colorsOffset(ramp.length, w, h) + (long) w * h * Integer.BYTES, backgroundsOffset(ramp.length, w, h), out);
+			for (int y = 0; y < h; y++) {
+				grid.copyRowBackgrounds(y, 0, w, colors, 0);
+				for (int argb : colors) {
+					if (buf.remaining() < Integer.BYTES) written += drain(buf, out);
+					buf.putInt(argb);
+				}
+			}
+		}
+		written += drain(buf, out);
+		if (span != null) GridWriter.encoded(span, grid, written);
+	}
+
+	/**
+	 * Gets the options the grid was converted with.
+	 * @return The options from the file's header
+	 */
+	public ConversionOptions getOptions() {
+		return this.options;
+	}
+
+	/**
+	 * Gets the number of characters per row.
+	 * @return The grid width
+	 */
+	@Override
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Gets the number of rows.
+	 * @return The grid height
+	 */
+	@Override
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Gets the character from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The character found at x and y
+	 */
+	@Override
+	public char get(int x, int y) {
+		Objects.checkIndex(x, this.width);
+		Objects.checkIndex(y, this.height);
+		return this.chars[y / this.segmentRows].get((y % this.segmentRows) * this.width + x);
+	}
+
+	/**
+	 * Gets the packed ARGB color from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The color found at x and y
+	 */
+	@Override
+	public int getRgb(int x, int y) {
+		Objects.checkIndex(x, this.width);
+		Objects.checkIndex(y, this.height);
+		return this.colors[y / this.segmentRows].get((y % this.segmentRows) * this.width + x);
+	}
+
+	/**
+	 * Gets a read-only view of the characters in a row. The view reads the
+	 * mapped file; no characters are copied.
+	 * @param y The row to view
+	 * @return The characters of row <code>y</code>
+	 */
+	@Override
+	public CharBuffer getRow(int y) {
+		Objects.checkIndex(y, this.height);
+		int start = (y % this.segmentRows) * this.width;
+		CharBuffer row = this.chars[y / this.segmentRows].duplicate();
+		row.limit(start + this.width).position(start);
+		return row.slice();
+	}
+
+	/**
+	 * Gets a read-only view of the colors in a row. The view reads the
+	 * mapped file; no colors are copied.
+	 * @param y The row to view
+	 * @return The packed ARGB colors of row <code>y</code>
+	 */
+	@Override
+	public IntBuffer getRowColors(int y) {
+		Objects.checkIndex(y, this.height);
+		int start = (y % this.segmentRows) * this.width;
+		IntBuffer row = this.colors[y / this.segmentRows].duplicate();
+		row.limit(start + this.width).position(start);
+		return row.slice();
+	}
+
+	/**
+	 * Copies part of a row into arrays.
+	 * @param y The row to copy from
+	 * @param x The first column to copy
+	 * @param length The number of cells to copy
+	 * @param chars Receives the characters, or null to skip them
+	 * @param colors Receives the packed ARGB colors, or null to skip them
+	 * @param offset Where in <code>chars</code> and <code>colors</code> the first cell goes
+	 */
+	@Override
+	public void copyRow(int y, int x, int length, char[] chars, int[] colors, int offset) {
+		Objects.checkFromIndexSize(x, length, this.width);
+		if (chars != null) this.getRow(y).position(x).get(chars, offset, length);
+		if (colors != null) this.getRowColors(y).position(x).get(colors, offset, length);
+	}
+
+	/**
+	 * Gets whether the file has a background plane.
+	 * @return If cells have backgrounds
+	 */
+	@Override
+	public boolean hasBackgrounds() {
+		return this.backgrounds != null;
+	}
+
+	/**
+	 * Gets the packed ARGB background color from the specified position.
+	 * @param x The X location to pull from
+	 * @param y The Y location to pull from
+	 * @return The background found at x and y, or 0 if the file has none
+	 */
+	@Override
+	public int getBackground(int x, int y) {
+		Objects.checkIndex(x, this.width);
+		Objects.checkIndex(y, this.height);
+		if (this.backgrounds == null) return 0;
+		return this.backgrounds[y / this.segmentRows].get((y % this.segmentRows) * this.width + x);
+	}
+
+	/**
+	 * Copies the background colors of part of a row into an array.
+	 * @param y The row to copy from
+	 * @param x The first column to copy
+	 * @param length The number of cells to copy
+	 * @param backgrounds Receives the packed ARGB backgrounds, 0 if the file has none
+	 * @param offset Where in <code>backgrounds</code> the first cell goes
+	 */
+	@Override
+	public void copyRowBackgrounds(int y, int x, int length, int[] backgrounds, int offset) {
+		Objects.checkIndex(y, this.height);
+		Objects.checkFromIndexSize(x, length, this.width);
+		if (this.backgrounds == null) {
+			Arrays.fill(backgrounds, offset, offset + length, 0);
+			return;
+		}
+		IntBuffer segment = this.backgrounds[y / this.segmentRows].duplicate();
+		segment.position((y % this.segmentRows) * this.width + x);
+		segment.get(backgrounds, offset, length);
+	}
+
+	/**
+	 * Gets where the character plane of a file starts.
+	 * @param rampLength Number of characters in the ramp
+	 * @return The offset in bytes
+	 */
+	static long charsOffset(int rampLength) {
+		return align(HEADER_SIZE + (long) rampLength * Character.BYTES);
+	}
+
+	/**
+	 * Gets where the color plane of a file starts.
+	 * @param rampLength Number of characters in the ramp
+	 * @param width The grid width
+	 * @param height The grid height
+	 * @return The offset in bytes
+	 */
+	static long colorsOffset(int rampLength, int width, int height) {
+		return align(charsOffset(rampLength) + (long) width * height * Character.BYTES);
+	}
+
+	/**
+	 * Gets where the background plane of a file starts, if it has one.
+	 * @param rampLength Number of characters in the ramp
+	 * @param width The grid width
+	 * @param height The grid height
+	 * @return The offset in bytes
+	 */
+	static long backgroundsOffset(int rampLength, int width, int height) {
+		return align(colorsOffset(rampLength, width, height) + (long) width * height * Integer.BYTES);
+	}
+
+	private static long align(long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	/**
+	 * Reads part of a file into a little-endian buffer.
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) < 0) throw new EOFException("Grid file is truncated");
+		}
+		return buf.flip();
+	}
+
+	/**
+	 * Maps part of a file read-only as a little-endian buffer.
+	 */
+	private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes zeros from one offset of the file up to another.
+	 * @return The number of bytes handed to the channel
+	 */
+	private static long pad(ByteBuffer buf, long from, long to, WritableByteChannel out) throws IOException {
+		long written = 0;
+		for (long i = from; i < to; i++) {
+			if (!buf.hasRemaining()) written += drain(buf, out);
+			buf.put((byte) 0);
+		}
+		return written;
+	}
+
+	/**
+	 * Writes out and empties a buffer.
+	 * @return The number of bytes written
+	 */
+	private static long drain(ByteBuffer buf, WritableByteChannel out) throws IOException {
+		buf.flip();
+		long written = buf.remaining();
+		while (buf.hasRemaining()) out.write(buf);
+		buf.clear();
+		return written;
+	}
+}
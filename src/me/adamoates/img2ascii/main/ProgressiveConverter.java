@@ -0,0 +1,200 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Converts an image in passes of increasing detail, so something can be
+ * shown right away and work that is no longer wanted can be stopped.
+ * <p>
+ * Every pass converts to the full size grid. The first reads only every
+ * n-th pixel of every n-th row, about one pixel per cell; each later pass
+ * reads <code>step</code> times as many along each axis, and the last
+ * reads every pixel, giving exactly the grid AsciiImage converts. Each grid
+ * is handed to a {@link Listener} as soon as its pass finishes.
+ * <p>
+ * Between every few rows the conversion checks a cancellation token and a
+ * deadline. Cancelling stops it outright. Once the deadline passes, the
+ * pass under way is dropped and the last finished grid is returned; a
+ * pass that would not finish in time at the rate of the one before it is
+ * not started at all. The first pass always finishes unless cancelled, so
+ * there is always something to show.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class ProgressiveConverter {
+
+	/** Default factor by which each pass reads more pixels along each axis. */
+	public static final int DEFAULT_STEP = 4;
+
+	/** Grid rows converted between checks of the deadline and cancellation. */
+	static final int CHECK_ROWS = 8;
+
+	/** Converts on the common ForkJoinPool with the default step. */
+	public static final ProgressiveConverter DEFAULT = new ProgressiveConverter(ForkJoinPool.commonPool(), ConversionPool.COMMON, DEFAULT_STEP);
+
+	/**
+	 * Receives the grid of each pass.
+	 */
+	public interface Listener {
+		/**
+		 * Accepts the grid of a pass, coarsest first. Called on the thread
+		 * converting the image.
+		 * @param grid The grid; every pass converts a new one, so it may be kept
+		 * @param pass The pass it is from, 0 for the coarsest
+		 * @param complete If this is the full detail grid, the last one
+		 */
+		void pass(AsciiGrid grid, int pass, boolean complete);
+	}
+
+	private final Executor executor;
+	private final ConversionPool pool;
+	private final int step;
+
+	/**
+	 * Instantiates a ProgressiveConverter.
+	 * @param executor Runs conversions submitted with {@link #submit}
+	 * @param pool Decides whether and where the rows of a pass are converted in parallel
+	 * @param step How many times more pixels each pass reads along each axis; at least 2
+	 */
+	public ProgressiveConverter(Executor executor, ConversionPool pool, int step) {
+		if (step < 2) throw new IllegalArgumentException("Each pass must read at least twice as many pixels along each axis: " + step);
+		this.executor = executor;
+		this.pool = pool;
+		this.step = step;
+	}
+
+	/**
+	 * Gets the number of passes an image takes.
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @param options How it is converted
+	 * @return The number of passes, at least 1
+	 */
+	public int passes(int width, int height, ConversionOptions options) {
+		int passes = 1;
+		for (int period = this.coarsestPeriod(width, height, options); period > 1; period /= this.step) passes++;
+		return passes;
+	}
+
+	/**
+	 * Starts converting an image on the executor. Cancelling the returned
+	 * future stops the conversion at its next check.
+	 * @param image The image to convert; it must not change until the future completes
+	 * @param options How to convert the image
+	 * @param budget How long the conversion may take
+	 * @param unit The unit of <code>budget</code>
+	 * @param listener Receives the grid of each pass, or null
+	 * @return Completes with the last grid finished within the budget
+	 */
+	public CompletableFuture<AsciiGrid> submit(BufferedImage image, ConversionOptions options, long budget, TimeUnit unit, Listener listener) {
+		long deadline = System.nanoTime() + unit.toNanos(budget);
+		CompletableFuture<AsciiGrid> result = new CompletableFuture<>();
+		this.executor.execute(() -> {
+			try {
+				result.complete(this.convert(image, options, deadline, result::isDone, listener));
+			} catch (Throwable t) {
+				result.completeExceptionally(t);
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * Converts an image on the calling thread, and the pool's, pass by pass.
+	 * @param image The image to convert
+	 * @param options How to convert the image
+	 * @param deadline When to stop refining, in {@link System#nanoTime()} time
+	 * @param cancelled Checked between every few rows; the conversion stops once it returns true
+	 * @param listener Receives the grid of each pass, or null
+	 * @return The last grid finished before the deadline, or null if cancelled before the first pass finished
+	 * @throws IllegalArgumentException If the image scales to an empty grid
+	 */
+	public AsciiGrid convert(BufferedImage image, ConversionOptions options, long deadline, BooleanSupplier cancelled, Listener listener) {
+		int width = image.getWidth(), height = image.getHeight();
+		int w = Image2Ascii.AsciiImage.gridWidth(width, options.getScaleX());
+		int h = Image2Ascii.AsciiImage.gridHeight(height, options.getScaleY(), options.isAdjustForStretching());
+		if (w < 1 || h < 1) throw new IllegalArgumentException("Image " + width + "x" + height + " scales to an empty grid");
+
+		AsciiGrid best = null;
+		long lastPixels = 0, lastNanos = 0;
+		int pass = 0;
+		for (int period = this.coarsestPeriod(width, height, options); ; period /= this.step, pass++) {
+			long pixels = (long) ((width + period - 1) / period) * ((height + period - 1) / period);
+			// the first pass ignores the deadline; later ones give up on it
+			BooleanSupplier stop = cancelled;
+			if (best != null) {
+				if (System.nanoTime() + (long) ((double) lastNanos * pixels / lastPixels) - deadline > 0) return best;
+				stop = () -> cancelled.getAsBoolean() || System.nanoTime() - deadline >= 0;
+			}
+
+			long started = System.nanoTime();
+			AsciiGrid grid;
+			try {
+				grid = this.convert(subsample(image, period), w, h, options, stop);
+			} catch (CancellationException e) {
+				return best;
+			}
+			lastNanos = System.nanoTime() - started;
+			lastPixels = pixels;
+			best = grid;
+			if (listener != null) listener.pass(grid, pass, period == 1);
+			if (period == 1) return best;
+		}
+	}
+
+	/**
+	 * Converts one pass, checking whether to stop between every
+	 * {@link #CHECK_ROWS} rows.
+	 * @throws CancellationException If <code>stop</code> returned true
+	 */
+	private AsciiGrid convert(BufferedImage source, int w, int h, ConversionOptions options, BooleanSupplier stop) {
+		AsciiGrid grid = new AsciiGrid(w, h, options.getUnicode() != null);
+		Resampler resampler = Image2Ascii.AsciiImage.resampler(source.getWidth(), source.getHeight(), w, h, options);
+		RasterReader pixels = new RasterReader(source);
+		this.pool.convert(h, (long) source.getWidth() * source.getHeight(), (y0, y1) -> {
+			for (int y = y0; y < y1; y += CHECK_ROWS) {
+				if (stop.getAsBoolean()) throw new CancellationException("Conversion stopped");
+				Image2Ascii.AsciiImage.convertBand(resampler, pixels, 0, y, Math.min(y1, y + CHECK_ROWS), grid, options);
+			}
+		});
+		return grid;
+	}
+
+	/**
+	 * Gets how far apart the pixels the first pass reads are: the largest
+	 * power of the step that still leaves a pixel for every cell, or sub-cell.
+	 */
+	private int coarsestPeriod(int width, int height, ConversionOptions options) {
+		int w = Image2Ascii.AsciiImage.gridWidth(width, options.getScaleX()) * Image2Ascii.AsciiImage.subColumns(options);
+		int h = Image2Ascii.AsciiImage.gridHeight(height, options.getScaleY(), options.isAdjustForStretching()) * Image2Ascii.AsciiImage.subRows(options);
+		int ratio = Math.min(width / Math.max(1, w), height / Math.max(1, h));
+		int period = 1;
+		while (period <= ratio / this.step) period *= this.step;
+		return period;
+	}
+
+	/**
+	 * Copies every <code>period</code>-th pixel of every <code>period</code>-th
+	 * row of an image.
+	 * @return The image itself if <code>period</code> is 1
+	 */
+	static BufferedImage subsample(BufferedImage image, int period) {
+		if (period == 1) return image;
+		int w = (image.getWidth() + period - 1) / period, h = (image.getHeight() + period - 1) / period;
+		BufferedImage small = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+		int[] dst = ((DataBufferInt) small.getRaster().getDataBuffer()).getData();
+		int[] row = new int[image.getWidth()];
+		RasterReader pixels = new RasterReader(image);
+		for (int y = 0; y < h; y++) {
+			pixels.readRow(y * period, row, 0);
+			for (int x = 0, i = y * w; x < w; x++, i++) dst[i] = row[x * period];
+		}
+		return small;
+	}
+}
@@ -0,0 +1,211 @@
+package me.adamoates.img2ascii.main;
+
+/**
+ * Maps packed RGB colors to characters of a brightness ramp using
+ * precomputed tables instead of per-pixel <code>Math.pow</code> calls.
+ * <p>
+ * The sRGB-to-linear curve is tabulated once as weighted 28-bit fixed point
+ * values, so a pixel's linear luminance is the sum of three table lookups.
+ * A 64K entry table then turns the luminance back into an sRGB gray level,
+ * and a 256 entry table per ramp turns the gray level into a ramp index.
+ * The results match the original double precision grayscale conversion
+ * for all but a handful of the 16.7 million colors, which differ by one
+ * gray level because of rounding in the fixed point weights.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class RampMapper {
+
+	/** Fixed point precision of the linear luminance sum. */
+	private static final int LINEAR_BITS = 28;
+	/** How many low bits of the luminance sum are dropped to index GRAY. */
+	static final int BUCKET_SHIFT = 12;
+
+	// weighted sRGB-to-linear curves: 0.2126 * R_linear, 0.7152 * G_linear, 0.0722 * B_linear
+	static final int[] LINEAR_R = new int[256];
+	static final int[] LINEAR_G = new int[256];
+	static final int[] LINEAR_B = new int[256];
+	// smallest luminance sum producing each gray level; THRESHOLD[256] is never reached
+	static final int[] THRESHOLD = new int[257];
+	// gray level at the start of each luminance bucket
+	static final byte[] GRAY = new byte[((1 << LINEAR_BITS) >>> BUCKET_SHIFT) + 1];
+
+	static {
+		double one = 1 << LINEAR_BITS;
+		for (int v = 0; v < 256; v++) {
+			double linear = srgbToLinear(v / 255.0);
+			LINEAR_R[v] = (int) Math.round(0.2126 * linear * one);
+			LINEAR_G[v] = (int) Math.round(0.7152 * linear * one);
+			LINEAR_B[v] = (int) Math.round(0.0722 * linear * one);
+		}
+
+		// Each threshold is found by bisecting the exact double precision
+		// conversion, so the tables agree with RGB#grayscale() by construction.
+		THRESHOLD[0] = Integer.MIN_VALUE;
+		THRESHOLD[256] = Integer.MAX_VALUE;
+		for (int g = 1; g < 256; g++) {
+			int lo = 0, hi = (1 << LINEAR_BITS) + 2;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (grayOfLinear(mid / one) >= g) hi = mid;
+				else lo = mid + 1;
+			}
+			THRESHOLD[g] = lo;
+		}
+
+		int g = 0;
+		for (int q = 0; q < GRAY.length; q++) {
+			int sum = q << BUCKET_SHIFT;
+			while (sum >= THRESHOLD[g + 1]) g++;
+			GRAY[q] = (byte) g;
+		}
+	}
+
+	/** The ramp AsciiImage uses when none is specified. */
+	public static final RampMapper DEFAULT = new RampMapper(Image2Ascii.asciiTable);
+
+	private final char[] ramp;
+	private final char[] grayToChar = new char[256];
+	private final byte[] grayToIndex = new byte[256];
+
+	/**
+	 * Instantiates a RampMapper from characters ordered darkest-first, i.e.
+	 * the first character is used for black and the last for white.
+	 * @param ramp The characters to map to; between 1 and 256 of them
+	 */
+	public RampMapper(char[] ramp) {
+		if (ramp.length == 0 || ramp.length > 256) throw new IllegalArgumentException("Ramp must have between 1 and 256 characters: " + ramp.length);
+		this.ramp = ramp.clone();
+		for (int g = 0; g < 256; g++) {
+			int idx = (int) Math.round(g / 255.0 * (this.ramp.length - 1));
+			this.grayToIndex[g] = (byte) idx;
+			this.grayToChar[g] = this.ramp[idx];
+		}
+	}
+
+	/**
+	 * Instantiates a RampMapper from the characters of a String.
+	 * @param ramp The characters to map to, darkest first
+	 * @see #RampMapper(char[])
+	 */
+	public RampMapper(String ramp) {
+		this(ramp.toCharArray());
+	}
+
+	/**
+	 * Gets a copy of the characters this RampMapper maps to.
+	 * @return The ramp, darkest first
+	 */
+	public char[] getRamp() {
+		return this.ramp.clone();
+	}
+
+	/**
+	 * Gets the number of characters in the ramp.
+	 * @return The ramp length
+	 */
+	public int length() {
+		return this.ramp.length;
+	}
+
+	/**
+	 * Computes the gray level of a color the same way as
+	 * {@link Image2Ascii.RGB#grayscale()}.
+	 * @param rgb The packed RGB color; alpha is ignored
+	 * @return The gray level from 0-255
+	 */
+	public static int luminance(int rgb) {
+		int sum = LINEAR_R[(rgb >> 16) & 0xff] + LINEAR_G[(rgb >> 8) & 0xff] + LINEAR_B[rgb & 0xff];
+		int g = GRAY[sum >>> BUCKET_SHIFT] & 0xff;
+		// buckets are narrower than a gray level, so at most one step is needed
+		return g + ((THRESHOLD[g + 1] - 1 - sum) >>> 31);
+	}
+
+	/**
+	 * Converts a color to grayscale.
+	 * @param rgb The packed RGB color
+	 * @return The opaque gray color
+	 */
+	public static int grayscale(int rgb) {
+		int g = luminance(rgb);
+		return 0xff000000 | (g << 16) | (g << 8) | g;
+	}
+
+	/**
+	 * Converts a color to an index in the ramp.
+	 * @param rgb The packed RGB color
+	 * @return An index between 0 and <code>length() - 1</code>
+	 */
+	public int index(int rgb) {
+		return this.grayToIndex[luminance(rgb)] & 0xff;
+	}
+
+	/**
+	 * Converts a color to a character of the ramp.
+	 * @param rgb The packed RGB color
+	 * @return The character for the color's brightness
+	 */
+	public char map(int rgb) {
+		return this.grayToChar[luminance(rgb)];
+	}
+
+	/**
+	 * Converts a run of pixels to characters and output colors. This is the
+	 * per-pixel hot path of AsciiImage and does not allocate. It runs in
+	 * SIMD lanes when {@link LuminanceKernel#get() the vector kernel} is on.
+	 * @param src Packed RGB pixels
+	 * @param srcOff Offset of the first pixel in <code>src</code>
+	 * @param len Number of pixels to convert
+	 * @param invert Invert each pixel before mapping
+	 * @param grayscale Output gray colors instead of the pixel colors
+	 * @param chars Receives the characters
+	 * @param colors Receives the opaque output colors
+	 * @param dstOff Offset of the first cell in <code>chars</code> and <code>colors</code>
+	 */
+	public void mapRow(int[] src, int srcOff, int len, boolean invert, boolean grayscale, char[] chars, int[] colors, int dstOff) {
+		LuminanceKernel.get().mapRow(src, srcOff, len, invert ? 0x00ffffff : 0, grayscale, this.grayToChar, chars, colors, dstOff);
+	}
+
+	/**
+	 * Converts a run of pixels to indexes in the ramp.
+	 * @param src Packed RGB pixels
+	 * @param srcOff Offset of the first pixel in <code>src</code>
+	 * @param len Number of pixels to convert
+	 * @param invert Invert each pixel before mapping
+	 * @param indexes Receives indexes between 0 and <code>length() - 1</code>
+	 * @param dstOff Offset of the first index in <code>indexes</code>
+	 * @see #index(int)
+	 */
+	public void indexRow(int[] src, int srcOff, int len, boolean invert, int[] indexes, int dstOff) {
+		LuminanceKernel.get().indexRow(src, srcOff, len, invert ? 0x00ffffff : 0, this.grayToIndex, indexes, dstOff);
+	}
+
+	/**
+	 * Converts an sRGB component to linear light.
+	 * @param x The component from 0.0-1.0
+	 * @return The linear value from 0.0-1.0
+	 */
+	static double srgbToLinear(double x) {
+		if (x < 0.04045) return x/12.92;
+		return Math.pow((x+0.055)/1.055, 2.4);
+	}
+
+	/**
+	 * Converts linear light to an sRGB component.
+	 * @param y The linear value from 0.0-1.0
+	 * @return The component from 0.0-1.0
+	 */
+	static double linearToSrgb(double y) {
+		if (y <= 0.0031308) return 12.92 * y;
+		return 1.055 * Math.pow(y, 1/2.4) - 0.055;
+	}
+
+	/**
+	 * Converts linear light to a gray level exactly like the original
+	 * double precision implementation of RGB#grayscale().
+	 * @param y The linear luminance
+	 * @return The gray level from 0-255
+	 */
+	private static int grayOfLinear(double y) {
+		return (int) Math.round(linearToSrgb(y) * 255);
+	}
+}
@@ -0,0 +1,166 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Reads rows of packed ARGB pixels out of a BufferedImage.
+ * <p>
+ * For the common image types (INT_RGB, INT_ARGB, 3BYTE_BGR and BYTE_GRAY)
+ * the pixels are read straight from the array backing the raster, skipping
+ * the per-pixel ColorModel round trip of <code>BufferedImage.getRGB(x, y)</code>.
+ * Every other type is read a row at a time through the bulk
+ * <code>getRGB(x, y, w, h, array, off, scan)</code>. Either way the values
+ * are the same as <code>getRGB(x, y)</code> would return.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class RasterReader {
+	private enum Layout {
+		INT_RGB,
+		INT_ARGB,
+		BYTE_BGR,
+		BYTE_GRAY,
+		GENERIC;
+	}
+
+	private final BufferedImage image;
+	private final Layout layout;
+	private int[] ints;
+	private byte[] bytes;
+	private int base;		// array index of pixel (0, 0)
+	private int stride;		// array elements per row
+	private int pixelStride;
+	private int redOffset, greenOffset, blueOffset;
+	private int[] grayLut;
+
+	/**
+	 * Instantiates a RasterReader for the specified image. The reader keeps a
+	 * reference to the image's pixel array, so later changes to the image are
+	 * visible to it.
+	 * @param image The image to read from
+	 */
+	public RasterReader(BufferedImage image) {
+		this.image = image;
+		this.layout = this.detect();
+	}
+
+	/**
+	 * Works out whether the image's raster can be read directly, and if so
+	 * where pixel (0, 0) lives and how far apart rows and pixels are.
+	 * @return The layout to read the raster with
+	 */
+	private Layout detect() {
+		int type = this.image.getType();
+		if (type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB
+				&& type != BufferedImage.TYPE_3BYTE_BGR && type != BufferedImage.TYPE_BYTE_GRAY) return Layout.GENERIC;
+
+		WritableRaster raster = this.image.getRaster();
+		DataBuffer db = raster.getDataBuffer();
+		SampleModel sm = raster.getSampleModel();
+		if (db.getNumBanks() != 1) return Layout.GENERIC;
+		int tx = -raster.getSampleModelTranslateX(), ty = -raster.getSampleModelTranslateY();
+
+		if (db instanceof DataBufferInt && sm instanceof SinglePixelPackedSampleModel) {
+			SinglePixelPackedSampleModel sppsm = (SinglePixelPackedSampleModel) sm;
+			this.ints = ((DataBufferInt) db).getData();
+			this.stride = sppsm.getScanlineStride();
+			this.pixelStride = 1;
+			this.base = db.getOffset() + sppsm.getOffset(tx, ty);
+			return (type == BufferedImage.TYPE_INT_RGB) ? Layout.INT_RGB : Layout.INT_ARGB;
+		}
+
+		if (db instanceof DataBufferByte && sm instanceof ComponentSampleModel) {
+			ComponentSampleModel csm = (ComponentSampleModel) sm;
+			this.bytes = ((DataBufferByte) db).getData();
+			this.stride = csm.getScanlineStride();
+			this.pixelStride = csm.getPixelStride();
+			this.base = db.getOffset() + ty * this.stride + tx * this.pixelStride;
+			int[] bandOffsets = csm.getBandOffsets();
+			if (type == BufferedImage.TYPE_BYTE_GRAY) {
+				// gray rasters are linear, so getRGB() applies a curve; tabulate it once
+				this.base += bandOffsets[0];
+				this.grayLut = new int[256];
+				byte[] sample = new byte[1];
+				for (int v = 0; v < 256; v++) {
+					sample[0] = (byte) v;
+					this.grayLut[v] = this.image.getColorModel().getRGB(sample);
+				}
+				return Layout.BYTE_GRAY;
+			}
+			this.redOffset = bandOffsets[0];
+			this.greenOffset = bandOffsets[1];
+			this.blueOffset = bandOffsets[2];
+			return Layout.BYTE_BGR;
+		}
+
+		return Layout.GENERIC;
+	}
+
+	/**
+	 * Gets the width of the image being read.
+	 * @return The image width
+	 */
+	public int getWidth() {
+		return this.image.getWidth();
+	}
+
+	/**
+	 * Gets the height of the image being read.
+	 * @return The image height
+	 */
+	public int getHeight() {
+		return this.image.getHeight();
+	}
+
+	/**
+	 * Reads a whole row of pixels.
+	 * @param y The row to read
+	 * @param dst Receives the packed ARGB pixels
+	 * @param off Offset in <code>dst</code> of the first pixel
+	 */
+	public void readRow(int y, int[] dst, int off) {
+		this.readRow(0, y, this.image.getWidth(), dst, off);
+	}
+
+	/**
+	 * Reads part of a row of pixels.
+	 * @param x The first column to read
+	 * @param y The row to read
+	 * @param w How many pixels to read
+	 * @param dst Receives the packed ARGB pixels
+	 * @param off Offset in <code>dst</code> of the first pixel
+	 */
+	public void readRow(int x, int y, int w, int[] dst, int off) {
+		if (x < 0 || w < 0 || x + w > this.image.getWidth() || y < 0 || y >= this.image.getHeight()) {
+			throw new ArrayIndexOutOfBoundsException("Row " + y + " [" + x + ", " + (x + w) + ") is outside the image");
+		}
+		int i = this.base + y * this.stride + x * this.pixelStride;
+		switch (this.layout) {
+		case INT_RGB:
+			for (int n = 0; n < w; n++) dst[off + n] = 0xff000000 | this.ints[i + n];
+			break;
+		case INT_ARGB:
+			System.arraycopy(this.ints, i, dst, off, w);
+			break;
+		case BYTE_BGR:
+			for (int n = 0; n < w; n++, i += this.pixelStride) {
+				dst[off + n] = 0xff000000
+					| (this.bytes[i + this.redOffset] & 0xff) << 16
+					| (this.bytes[i + this.greenOffset] & 0xff) << 8
+					| (this.bytes[i + this.blueOffset] & 0xff);
+			}
+			break;
+		case BYTE_GRAY:
+			for (int n = 0; n < w; n++, i += this.pixelStride) dst[off + n] = this.grayLut[this.bytes[i] & 0xff];
+			break;
+		default:
+			this.image.getRGB(x, y, w, 1, dst, off, w);
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package me.adamoates.img2ascii.main;
+
+import java.util.Arrays;
+
+/**
+ * Scales pixels from a source size straight to the size of the ASCII grid
+ * in a single pass. The X/Y scale and the correction for vertical stretching
+ * are folded into one target size, so no intermediate images are created.
+ * <p>
+ * Transparent pixels are composited over black, which is what drawing them
+ * onto an opaque image does.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class Resampler {
+
+	/**
+	 * How output pixels are computed from the source pixels.
+	 * @author Adam Oates adam.oates@criptext.com
+	 */
+	public static enum Mode {
+		/** Average of every source pixel the output pixel covers, weighted by coverage. Best quality. */
+		AREA,
+		/** Blend of the four source pixels nearest the output pixel's center. */
+		BILINEAR,
+		/** The single source pixel at the output pixel's center. Fastest. */
+		NEAREST;
+	}
+
+	private final Mode mode;
+	private final int srcWidth, srcHeight;
+	private final int dstWidth, dstHeight;
+
+	// AREA: for output column x, taps colStart[x] .. colStart[x + 1] - 1 read
+	// source column tapIndex[i] with weight tapWeight[i]; weights sum to srcWidth
+	private int[] colStart, tapIndex, tapWeight;
+	// NEAREST: source column of each output column
+	// BILINEAR: left source column of each output column and the right one's weight out of 256
+	private int[] colIndex, colFrac;
+
+	/**
+	 * Instantiates a Resampler between the specified sizes.
+	 * @param mode How output pixels are computed
+	 * @param srcWidth Width of the source image
+	 * @param srcHeight Height of the source image
+	 * @param dstWidth Width of the output
+	 * @param dstHeight Height of the output
+	 */
+	public Resampler(Mode mode, int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+		if (srcWidth < 1 || srcHeight < 1 || dstWidth < 1 || dstHeight < 1) {
+			throw new IllegalArgumentException("Cannot resample " + srcWidth + "x" + srcHeight + " to " + dstWidth + "x" + dstHeight);
+		}
+		this.mode = mode;
+		this.srcWidth = srcWidth;
+		this.srcHeight = srcHeight;
+		this.dstWidth = dstWidth;
+		this.dstHeight = dstHeight;
+
+		switch (mode) {
+		case AREA:
+			this.colStart = new int[dstWidth + 1];
+			this.tapIndex = new int[srcWidth + dstWidth];
+			this.tapWeight = new int[srcWidth + dstWidth];
+			int taps = 0;
+			for (int x = 0; x < dstWidth; x++) {
+				this.colStart[x] = taps;
+				taps = areaTaps(x, srcWidth, dstWidth, this.tapIndex, this.tapWeight, taps);
+			}
+			this.colStart[dstWidth] = taps;
+			break;
+		case BILINEAR:
+			this.colIndex = new int[dstWidth];
+			this.colFrac = new int[dstWidth];
+			for (int x = 0; x < dstWidth; x++) {
+				int pos = bilinearPosition(x, srcWidth, dstWidth);
+				this.colIndex[x] = pos >> 8;
+				this.colFrac[x] = pos & 0xff;
+			}
+			break;
+		default:
+			this.colIndex = new int[dstWidth];
+			for (int x = 0; x < dstWidth; x++) this.colIndex[x] = nearest(x, srcWidth, dstWidth);
+		}
+	}
+
+	/**
+	 * Gets the width of the output.
+	 * @return The output width
+	 */
+	public int getWidth() {
+		return this.dstWidth;
+	}
+
+	/**
+	 * Gets the height of the output.
+	 * @return The output height
+	 */
+	public int getHeight() {
+		return this.dstHeight;
+	}
+
+	/**
+	 * Gets the mode of this Resampler.
+	 * @return How output pixels are computed
+	 */
+	public Mode getMode() {
+		return this.mode;
+	}
+
+	/**
+	 * Gets the first source row needed to produce an output row.
+	 * @param y The output row
+	 * @return The first source row read for <code>y</code>
+	 */
+	public int firstSourceRow(int y) {
+		switch (this.mode) {
+		case AREA:
+			return (int) ((long) y * this.srcHeight / this.dstHeight);
+		case BILINEAR:
+			return bilinearPosition(y, this.srcHeight, this.dstHeight) >> 8;
+		default:
+			return nearest(y, this.srcHeight, this.dstHeight);
+		}
+	}
+
+	/**
+	 * Gets one past the last source row needed to produce an output row.
+	 * @param y The output row
+	 * @return One past the last source row read for <code>y</code>
+	 */
+	public int endSourceRow(int y) {
+		switch (this.mode) {
+		case AREA:
+			return (int) (((long) (y + 1) * this.srcHeight + this.dstHeight - 1) / this.dstHeight);
+		case BILINEAR:
+			return Math.min((bilinearPosition(y, this.srcHeight, this.dstHeight) >> 8) + 2, this.srcHeight);
+		default:
+			return nearest(y, this.srcHeight, this.dstHeight) + 1;
+		}
+	}
+
+	/**
+	 * Resamples a range of output rows.
+	 * @param src Reads source rows; it may hold only a strip of the source
+	 * @param srcY The source row that row 0 of <code>src</code> holds
+	 * @param y0 The first output row to produce
+	 * @param y1 One past the last output row to produce
+	 * @param dst Receives the opaque output pixels, row after row
+	 * @param off Offset in <code>dst</code> of the first output pixel
+	 */
+	public void resample(RasterReader src, int srcY, int y0, int y1, int[] dst, int off) {
+		if (src.getWidth() != this.srcWidth) throw new IllegalArgumentException("Source is " + src.getWidth() + " pixels wide, expected " + this.srcWidth);
+		switch (this.mode) {
+		case AREA:
+			this.resampleArea(src, srcY, y0, y1, dst, off);
+			break;
+		case BILINEAR:
+			this.resampleBilinear(src, srcY, y0, y1, dst, off);
+			break;
+		default:
+			this.resampleNearest(src, srcY, y0, y1, dst, off);
+		}
+	}
+
+	private void resampleArea(RasterReader src, int srcY, int y0, int y1, int[] dst, int off) {
+		int[] row = new int[this.srcWidth];
+		long[] acc = new long[this.dstWidth * 3];
+		int[] rowIndex = new int[this.srcHeight / this.dstHeight + 2];
+		int[] rowWeight = new int[rowIndex.length];
+		long total = (long) this.srcWidth * this.srcHeight;
+		for (int y = y0; y < y1; y++, off += this.dstWidth) {
+			Arrays.fill(acc, 0);
+			int taps = areaTaps(y, this.srcHeight, this.dstHeight, rowIndex, rowWeight, 0);
+			for (int t = 0; t < taps; t++) {
+				src.readRow(rowIndex[t] - srcY, row, 0);
+				long wy = rowWeight[t];
+				for (int x = 0, a = 0; x < this.dstWidth; x++, a += 3) {
+					int r = 0, g = 0, b = 0;
+					for (int i = this.colStart[x], end = this.colStart[x + 1]; i < end; i++) {
+						int p = overBlack(row[this.tapIndex[i]]);
+						int wx = this.tapWeight[i];
+						r += ((p >> 16) & 0xff) * wx;
+						g += ((p >> 8) & 0xff) * wx;
+						b += (p & 0xff) * wx;
+					}
+					acc[a] += r * wy;
+					acc[a + 1] += g * wy;
+					acc[a + 2] += b * wy;
+				}
+			}
+			for (int x = 0, a = 0; x < this.dstWidth; x++, a += 3) {
+				int r = (int) ((acc[a] + total / 2) / total);
+				int g = (int) ((acc[a + 1] + total / 2) / total);
+				int b = (int) ((acc[a + 2] + total / 2) / total);
+				dst[off + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+	}
+
+	private void resampleBilinear(RasterReader src, int srcY, int y0, int y1, int[] dst, int off) {
+		int[] top = new int[this.srcWidth];
+		int[] bottom = new int[this.srcWidth];
+		int topRow = -1, bottomRow = -1;
+		int maxX = this.srcWidth - 1;
+		for (int y = y0; y < y1; y++, off += this.dstWidth) {
+			int pos = bilinearPosition(y, this.srcHeight, this.dstHeight);
+			int sy = pos >> 8, fy = pos & 0xff;
+			int sy1 = Math.min(sy + 1, this.srcHeight - 1);
+			if (sy != topRow) {
+				if (sy == bottomRow) {
+					int[] tmp = top; top = bottom; bottom = tmp;
+					bottomRow = topRow;
+				} else {
+					src.readRow(sy - srcY, top, 0);
+				}
+				topRow = sy;
+			}
+			if (sy1 != bottomRow) {
+				src.readRow(sy1 - srcY, bottom, 0);
+				bottomRow = sy1;
+			}
+			for (int x = 0; x < this.dstWidth; x++) {
+				int sx = this.colIndex[x], fx = this.colFrac[x];
+				int sx1 = Math.min(sx + 1, maxX);
+				dst[off + x] = blend(
+					blend(overBlack(top[sx]), overBlack(top[sx1]), fx),
+					blend(overBlack(bottom[sx]), overBlack(bottom[sx1]), fx), fy);
+			}
+		}
+	}
+
+	private void resampleNearest(RasterReader src, int srcY, int y0, int y1, int[] dst, int off) {
+		int[] row = new int[this.srcWidth];
+		int last = -1;
+		for (int y = y0; y < y1; y++, off += this.dstWidth) {
+			int sy = nearest(y, this.srcHeight, this.dstHeight);
+			if (sy != last) {
+				src.readRow(sy - srcY, row, 0);
+				last = sy;
+			}
+			for (int x = 0; x < this.dstWidth; x++) dst[off + x] = overBlack(row[this.colIndex[x]]);
+		}
+	}
+
+	/**
+	 * Works out which source pixels an output pixel covers and by how much.
+	 * Coordinates are scaled so a source pixel is <code>dst</code> units wide
+	 * and an output pixel <code>src</code> units, which keeps every weight an
+	 * exact integer; the weights of one output pixel sum to <code>src</code>.
+	 * @return The new number of taps in <code>index</code> and <code>weight</code>
+	 */
+	private static int areaTaps(int d, int src, int dst, int[] index, int[] weight, int taps) {
+		long start = (long) d * src, end = start + src;
+		for (int s = (int) (start / dst); (long) s * dst < end; s++) {
+			long lo = Math.max(start, (long) s * dst), hi = Math.min(end, (long) (s + 1) * dst);
+			index[taps] = s;
+			weight[taps++] = (int) (hi - lo);
+		}
+		return taps;
+	}
+
+	/**
+	 * Gets the source coordinate of an output pixel's center in 24.8 fixed point,
+	 * clamped to the source.
+	 */
+	private static int bilinearPosition(int d, int src, int dst) {
+		long pos = (((long) d * 2 + 1) * src * 256 / dst - 256) / 2;
+		return (int) Math.max(0, Math.min(pos, (long) (src - 1) * 256));
+	}
+
+	/**
+	 * Gets the source pixel at an output pixel's center, the same pixel
+	 * <code>java.awt.image.ReplicateScaleFilter</code> picks.
+	 */
+	private static int nearest(int d, int src, int dst) {
+		return (int) (((long) d * 2 * src + src) / (2L * dst));
+	}
+
+	/**
+	 * Blends two colors; <code>f</code> is the weight of <code>b</code> out of 256.
+	 */
+	private static int blend(int a, int b, int f) {
+		int rb = ((a & 0xff00ff) * (256 - f) + (b & 0xff00ff) * f) >>> 8;
+		int g = ((a & 0x00ff00) * (256 - f) + (b & 0x00ff00) * f) >>> 8;
+		return 0xff000000 | (rb & 0xff00ff) | (g & 0x00ff00);
+	}
+
+	/**
+	 * Composites a pixel over black.
+	 */
+	private static int overBlack(int argb) {
+		int a = argb >>> 24;
+		if (a == 0xff) return argb;
+		int r = (((argb >> 16) & 0xff) * a + 127) / 255;
+		int g = (((argb >> 8) & 0xff) * a + 127) / 255;
+		int b = ((argb & 0xff) * a + 127) / 255;
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+}
@@ -0,0 +1,225 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.Font;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chooses characters by the shape of what is in a cell, not just by its
+ * brightness, so edges and thin lines survive at small grid sizes.
+ * <p>
+ * Each cell is sampled as a small grid of sub-cells. How dark each sub-cell
+ * is, relative to the lightest and darkest sub-cell of the cell, is
+ * quantized into a 16-bit pattern, and a table built once per font, ramp
+ * and layout gives the ramp character whose glyph covers its sub-cells most
+ * like the pattern. A match therefore costs one table lookup. Cells whose
+ * sub-cells differ by less than {@link #MIN_CONTRAST} gray levels have no
+ * shape worth matching and get their character by brightness, like
+ * RampMapper would give them.
+ * <p>
+ * Matchers are shared: {@link #get(ConversionOptions)} hands out one per
+ * font, ramp and layout from a small LRU cache.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class ShapeMatcher {
+
+	/**
+	 * How a cell is divided into sub-cells, and how finely each is quantized.
+	 */
+	public static enum Layout {
+		/** 2 columns by 4 rows of sub-cells, each quantized to 4 levels */
+		CELLS_2X4(2, 4, 2),
+		/** 4 columns by 4 rows of sub-cells, each either light or dark */
+		CELLS_4X4(4, 4, 1);
+
+		final int columns;
+		final int rows;
+		final int bits;
+
+		private Layout(int columns, int rows, int bits) {
+			this.columns = columns;
+			this.rows = rows;
+			this.bits = bits;
+		}
+
+		/**
+		 * Gets the number of sub-cells across a cell.
+		 * @return The sub-cell columns
+		 */
+		public int getColumns() {
+			return this.columns;
+		}
+
+		/**
+		 * Gets the number of sub-cells down a cell.
+		 * @return The sub-cell rows
+		 */
+		public int getRows() {
+			return this.rows;
+		}
+	}
+
+	/** Gray levels between a cell's lightest and darkest sub-cell under which it is matched by brightness. */
+	public static final int MIN_CONTRAST = 48;
+	/** Most matchers kept in the shared cache. */
+	public static final int MAX_MATCHERS = 16;
+
+	private static final Map<String, ShapeMatcher> CACHE = new LinkedHashMap<String, ShapeMatcher>(MAX_MATCHERS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ShapeMatcher> eldest) {
+			return this.size() > MAX_MATCHERS;
+		}
+	};
+
+	private final Layout layout;
+	private final RampMapper ramp;
+	// the best character for every quantized pattern, or null if no glyph has a shape
+	private final char[] table;
+
+	/**
+	 * Instantiates a ShapeMatcher, rasterizing the ramp's glyphs and building
+	 * its table.
+	 * @param font The font characters are rendered in
+	 * @param ramp The characters to choose from
+	 * @param layout How cells are divided into sub-cells
+	 */
+	public ShapeMatcher(Font font, RampMapper ramp, Layout layout) {
+		this.layout = layout;
+		this.ramp = ramp;
+		char[] chars = ramp.getRamp();
+		int cells = layout.columns * layout.rows;
+
+		// how much of each sub-cell every glyph covers, scaled so its fullest sub-cell is 1
+		GlyphAtlas atlas = GlyphAtlas.get(font, chars);
+		int cw = Math.max(1, font.getSize() / 2), lh = Math.max(1, font.getSize());
+		char[] candidates = new char[chars.length];
+		float[][] shapes = new float[chars.length][];
+		int n = 0;
+		for (char ch : chars) {
+			GlyphAtlas.Glyph glyph = atlas.glyph(ch);
+			float[] shape = new float[cells];
+			for (int r = 0; r < glyph.height; r++) {
+				// the cell spans the column width right of the pen and the line height above the baseline
+				int v = glyph.top + r + lh;
+				if (v < 0 || v >= lh) continue;
+				for (int c = 0; c < glyph.width; c++) {
+					int u = glyph.left + c;
+					if (u < 0 || u >= cw) continue;
+					shape[v * layout.rows / lh * layout.columns + u * layout.columns / cw] += glyph.coverage[r * glyph.width + c] & 0xff;
+				}
+			}
+			float max = 0;
+			for (float s : shape) max = Math.max(max, s);
+			if (max == 0) continue;	// blank, or drawn outside its cell
+			for (int i = 0; i < cells; i++) shape[i] /= max;
+			candidates[n] = ch;
+			shapes[n++] = shape;
+		}
+		if (n == 0) {
+			this.table = null;
+			return;
+		}
+
+		int levels = 1 << layout.bits;
+		float[] target = new float[cells];
+		this.table = new char[1 << (cells * layout.bits)];
+		for (int key = 0; key < this.table.length; key++) {
+			for (int i = 0; i < cells; i++) target[i] = ((key >> (i * layout.bits)) & (levels - 1)) / (float) (levels - 1);
+			int best = 0;
+			float bestDistance = Float.MAX_VALUE;
+			for (int g = 0; g < n; g++) {
+				float distance = 0;
+				for (int i = 0; i < cells; i++) {
+					float d = shapes[g][i] - target[i];
+					distance += d * d;
+				}
+				if (distance < bestDistance) {
+					best = g;
+					bestDistance = distance;
+				}
+			}
+			this.table[key] = candidates[best];
+		}
+	}
+
+	/**
+	 * Gets the shared matcher for the font size, ramp and layout of a set of
+	 * conversion options, creating it if necessary.
+	 * @param options Decide the font size, ramp and layout
+	 * @return The cached matcher
+	 * @throws NullPointerException If the options do not match shapes
+	 */
+	public static ShapeMatcher get(ConversionOptions options) {
+		Layout layout = options.getShapeMatching();
+		RampMapper ramp = options.getRamp();
+		String key = options.getFontSize() + "\u0000" + layout.name() + "\u0000" + new String(ramp.getRamp());
+		synchronized (CACHE) {
+			ShapeMatcher matcher = CACHE.get(key);
+			if (matcher != null) return matcher;
+		}
+		// the same font AsciiRenderer draws with, so PNG output looks like what was matched
+		ShapeMatcher matcher = new ShapeMatcher(new Font(Font.MONOSPACED, Font.PLAIN, options.getFontSize()), ramp, layout);	// build outside the lock
+		synchronized (CACHE) {
+			ShapeMatcher raced = CACHE.putIfAbsent(key, matcher);
+			return (raced != null) ? raced : matcher;
+		}
+	}
+
+	/**
+	 * Gets how this matcher divides cells into sub-cells.
+	 * @return The layout
+	 */
+	public Layout getLayout() {
+		return this.layout;
+	}
+
+	/**
+	 * Converts a row of cells to characters and output colors from their
+	 * sub-cell pixels. A cell's color is the mean of its sub-cells.
+	 * @param src Packed RGB sub-cell pixels, one row of sub-cells after another
+	 * @param srcOff Offset of the first cell's top left sub-cell in <code>src</code>
+	 * @param stride Distance between rows of sub-cells in <code>src</code>
+	 * @param cells Number of cells to convert
+	 * @param flip XORed into each pixel first: 0x00ffffff to invert, else 0
+	 * @param grayscale Output gray colors instead of the mean colors
+	 * @param chars Receives the characters
+	 * @param colors Receives the opaque output colors
+	 * @param dstOff Offset of the first cell in <code>chars</code> and <code>colors</code>
+	 */
+	void mapRow(int[] src, int srcOff, int stride, int cells, int flip, boolean grayscale, char[] chars, int[] colors, int dstOff) {
+		int columns = this.layout.columns, rows = this.layout.rows, n = columns * rows, bits = this.layout.bits;
+		int top = (1 << bits) - 1;
+		int[] gray = new int[n];
+		for (int cell = 0; cell < cells; cell++) {
+			int sr = 0, sg = 0, sb = 0, min = 255, max = 0;
+			for (int r = 0, i = 0; r < rows; r++) {
+				int p = srcOff + r * stride + cell * columns;
+				for (int c = 0; c < columns; c++, i++) {
+					int rgb = src[p + c] ^ flip;
+					int g = RampMapper.luminance(rgb);
+					gray[i] = g;
+					min = Math.min(min, g);
+					max = Math.max(max, g);
+					sr += (rgb >> 16) & 0xff;
+					sg += (rgb >> 8) & 0xff;
+					sb += rgb & 0xff;
+				}
+			}
+			int mean = ((sr + n / 2) / n) << 16 | ((sg + n / 2) / n) << 8 | ((sb + n / 2) / n);
+			char ch;
+			int range = max - min;
+			if (range < MIN_CONTRAST || this.table == null) {
+				ch = this.ramp.map(mean);
+			} else {
+				// darkness relative to the lightest sub-cell, rounded to the nearest level
+				int key = 0;
+				for (int i = 0; i < n; i++) key |= (((max - gray[i]) * top * 2 + range) / (2 * range)) << (i * bits);
+				ch = this.table[key];
+			}
+			chars[dstOff + cell] = ch;
+			colors[dstOff + cell] = grayscale ? RampMapper.grayscale(mean) : (0xff000000 | mean);
+		}
+	}
+}
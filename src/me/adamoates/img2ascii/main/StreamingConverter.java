@@ -0,0 +1,238 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Converts image files without ever holding the whole decoded image.
+ * <p>
+ * The image is decoded with <code>ImageReadParam</code> source subsampling,
+ * so the decoder skips pixels that are far more detailed than the ASCII
+ * grid can show, and with source regions, so only a strip of rows is
+ * decoded at a time. Each strip is resampled and mapped into the grid
+ * before the next is read. Peak memory is bounded by the strip size and
+ * the grid itself, no matter how large the image is.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class StreamingConverter {
+
+	/** Default cap on decoded pixels per strip: 16 MB of ARGB pixels. */
+	public static final int DEFAULT_STRIP_PIXELS = 1 << 22;
+
+	/** Default number of decoded pixels kept per character along each axis. */
+	public static final int DEFAULT_SAMPLES_PER_CELL = 2;
+
+	/** Converts with the default strip size and sampling. */
+	public static final StreamingConverter DEFAULT = new StreamingConverter(DEFAULT_STRIP_PIXELS, DEFAULT_SAMPLES_PER_CELL);
+
+	private final int stripPixels;
+	private final int samplesPerCell;
+
+	/**
+	 * Instantiates a StreamingConverter.
+	 * @param stripPixels The most decoded pixels held at once; a strip is at least one decoded row
+	 * @param samplesPerCell How many decoded pixels to keep per character along each axis;
+	 * higher averages more of the image into each character at the cost of decoding more
+	 */
+	public StreamingConverter(int stripPixels, int samplesPerCell) {
+		if (stripPixels < 1) throw new IllegalArgumentException("Strips must hold at least 1 pixel: " + stripPixels);
+		if (samplesPerCell < 1) throw new IllegalArgumentException("Need at least 1 sample per cell: " + samplesPerCell);
+		this.stripPixels = stripPixels;
+		this.samplesPerCell = samplesPerCell;
+	}
+
+	/**
+	 * Converts an image file to a grid.
+	 * @param file The image file
+	 * @param scalex How much to scale the X dimension
+	 * @param scaley How much to scale the Y dimension
+	 * @param adjust_for_stretching Adjust for vertical stretching?
+	 * @param ramp Maps pixel brightness to characters
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @param resampling How each character's color is computed from the decoded pixels
+	 * @return The converted grid
+	 * @throws IOException If the file cannot be read or decoded
+	 */
+	public AsciiGrid convert(File file, double scalex, double scaley, boolean adjust_for_stretching, RampMapper ramp, ConversionPool pool, Resampler.Mode resampling) throws IOException {
+		return this.convert(file, options(scalex, scaley, adjust_for_stretching, ramp, resampling), pool);
+	}
+
+	/**
+	 * Converts an image file to a grid with the specified options. The
+	 * global flags are not read.
+	 * @param file The image file
+	 * @param options How to convert the image
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @return The converted grid
+	 * @throws IOException If the file cannot be read or decoded
+	 */
+	public AsciiGrid convert(File file, ConversionOptions options, ConversionPool pool) throws IOException {
+		if (!file.canRead()) throw new FileNotFoundException(file.getPath());
+		try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+			if (in == null) throw new IOException("Cannot open " + file.getPath());
+			return this.convert(in, options, pool);
+		}
+	}
+
+	/**
+	 * Converts an encoded image read from a stream to a grid. The stream is
+	 * not closed.
+	 * @param stream The encoded image
+	 * @param scalex How much to scale the X dimension
+	 * @param scaley How much to scale the Y dimension
+	 * @param adjust_for_stretching Adjust for vertical stretching?
+	 * @param ramp Maps pixel brightness to characters
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @param resampling How each character's color is computed from the decoded pixels
+	 * @return The converted grid
+	 * @throws IOException If the stream cannot be read or decoded
+	 */
+	public AsciiGrid convert(InputStream stream, double scalex, double scaley, boolean adjust_for_stretching, RampMapper ramp, ConversionPool pool, Resampler.Mode resampling) throws IOException {
+		return this.convert(stream, options(scalex, scaley, adjust_for_stretching, ramp, resampling), pool);
+	}
+
+	/**
+	 * Converts an encoded image read from a stream to a grid with the
+	 * specified options. The stream is not closed, and the global flags are
+	 * not read.
+	 * @param stream The encoded image
+	 * @param options How to convert the image
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @return The converted grid
+	 * @throws IOException If the stream cannot be read or decoded
+	 */
+	public AsciiGrid convert(InputStream stream, ConversionOptions options, ConversionPool pool) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(stream)) {
+			if (in == null) throw new IOException("Cannot open image stream");
+			return this.convert(in, options, pool);
+		}
+	}
+
+	/**
+	 * Converts the first image of an ImageInputStream to a grid. The stream
+	 * is not closed.
+	 * @param in The encoded image
+	 * @param scalex How much to scale the X dimension
+	 * @param scaley How much to scale the Y dimension
+	 * @param adjust_for_stretching Adjust for vertical stretching?
+	 * @param ramp Maps pixel brightness to characters
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @param resampling How each character's color is computed from the decoded pixels
+	 * @return The converted grid
+	 * @throws IOException If the stream cannot be decoded
+	 */
+	public AsciiGrid convert(ImageInputStream in, double scalex, double scaley, boolean adjust_for_stretching, RampMapper ramp, ConversionPool pool, Resampler.Mode resampling) throws IOException {
+		return this.convert(in, options(scalex, scaley, adjust_for_stretching, ramp, resampling), pool);
+	}
+
+	/**
+	 * Converts the first image of an ImageInputStream to a grid with the
+	 * specified options. The stream is not closed, and the global flags are
+	 * not read.
+	 * @param in The encoded image
+	 * @param options How to convert the image
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @return The converted grid
+	 * @throws IOException If the stream cannot be decoded
+	 */
+	public AsciiGrid convert(ImageInputStream in, ConversionOptions options, ConversionPool pool) throws IOException {
+		ImageReader reader = openReader(in);
+		try {
+			return this.convert(reader, options, pool);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Converts the first image of an attached ImageReader to a grid. The
+	 * reader is not disposed.
+	 * @param reader A reader from {@link #openReader(ImageInputStream)}
+	 * @param options How to convert the image
+	 * @param pool Decides whether and where rows are converted in parallel
+	 * @return The converted grid
+	 * @throws IOException If the image cannot be decoded
+	 */
+	AsciiGrid convert(ImageReader reader, ConversionOptions options, ConversionPool pool) throws IOException {
+		int width = reader.getWidth(0), height = reader.getHeight(0);
+		int w = Image2Ascii.AsciiImage.gridWidth(width, options.getScaleX());
+		int h = Image2Ascii.AsciiImage.gridHeight(height, options.getScaleY(), options.isAdjustForStretching());
+		if (w < 1 || h < 1) throw new IllegalArgumentException("Image " + width + "x" + height + " scales to an empty grid");
+
+		// keep samplesPerCell decoded pixels per character, or per sub-cell when matching shapes or drawing blocks; never upsample by subsampling
+		int sub = Image2Ascii.AsciiImage.subRows(options);
+		int periodX = Math.max(1, width / (w * Image2Ascii.AsciiImage.subColumns(options) * this.samplesPerCell));
+		int periodY = Math.max(1, height / (h * sub * this.samplesPerCell));
+		int decodedWidth = (width + periodX - 1) / periodX;
+		int decodedHeight = (height + periodY - 1) / periodY;
+		Resampler resampler = Image2Ascii.AsciiImage.resampler(decodedWidth, decodedHeight, w, h, options);
+		int maxRows = Math.max(1, this.stripPixels / decodedWidth);
+
+		AsciiGrid grid = new AsciiGrid(w, h, options.getUnicode() != null);
+		ImageReadParam param = reader.getDefaultReadParam();
+		for (int y0 = 0; y0 < h; ) {
+			int first = resampler.firstSourceRow(y0 * sub);
+			int y1 = y0 + 1;
+			int end = resampler.endSourceRow(y1 * sub - 1);
+			while (y1 < h && resampler.endSourceRow((y1 + 1) * sub - 1) - first <= maxRows) end = resampler.endSourceRow(++y1 * sub - 1);
+
+			param.setSourceRegion(new Rectangle(0, first * periodY, width, Math.min(height, (end - 1) * periodY + 1) - first * periodY));
+			param.setSourceSubsampling(periodX, periodY, 0, 0);
+			ConversionMetrics.Span decode = ConversionMetrics.begin(ConversionMetrics.Stage.DECODE);
+			long position = (decode != null) ? position(reader) : 0;
+			BufferedImage strip = reader.read(0, param);
+			if (decode != null) {
+				decode.end(strip.getWidth(), strip.getHeight(), w, y1 - y0, options.getFlags(),
+						(long) strip.getWidth() * strip.getHeight(), position(reader) - position);
+			}
+			RasterReader pixels = new RasterReader(strip);
+
+			int band0 = y0, band1 = y1;
+			pool.convert(band1 - band0, (long) decodedWidth * (end - first), (b0, b1) ->
+				Image2Ascii.AsciiImage.convertBand(resampler, pixels, first, band0 + b0, band0 + b1, grid, options));
+			y0 = y1;
+		}
+		return grid;
+	}
+
+	/**
+	 * Gets how far a reader has read into its stream, so the encoded bytes
+	 * each strip takes can be reported.
+	 */
+	private static long position(ImageReader reader) throws IOException {
+		return ((ImageInputStream) reader.getInput()).getStreamPosition();
+	}
+
+	/**
+	 * Gets the options the older conversion methods stand for: the global
+	 * flags at the time of the call, plus the specified settings.
+	 */
+	private static ConversionOptions options(double scalex, double scaley, boolean adjust_for_stretching, RampMapper ramp, Resampler.Mode resampling) {
+		return ConversionOptions.fromGlobalFlags().withScale(scalex, scaley).withAdjustForStretching(adjust_for_stretching)
+				.withRamp(ramp).withResampling(resampling);
+	}
+
+	/**
+	 * Finds an ImageReader for a stream and attaches it.
+	 * @param in The encoded image
+	 * @return A reader positioned on the stream
+	 * @throws IOException If no installed reader understands the stream
+	 */
+	static ImageReader openReader(ImageInputStream in) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+		if (!readers.hasNext()) throw new IOException("No ImageReader understands this image format");
+		ImageReader reader = readers.next();
+		reader.setInput(in, false, true);
+		return reader;
+	}
+}
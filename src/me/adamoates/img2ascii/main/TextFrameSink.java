@@ -0,0 +1,43 @@
+package me.adamoates.img2ascii.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes every frame of an animation to its own text file in a directory:
+ * <code>frame00000.txt</code>, <code>frame00001.txt</code> and so on.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class TextFrameSink implements FrameSink {
+
+	private final File directory;
+	private int count = 0;
+
+	/**
+	 * Instantiates a TextFrameSink.
+	 * @param directory Where to write the frames; it is created if missing
+	 * @throws IOException If the directory cannot be created
+	 */
+	public TextFrameSink(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory.getPath());
+		this.directory = directory;
+	}
+
+	@Override
+	public void frame(AsciiGrid grid, int delay) throws IOException {
+		File file = new File(this.directory, String.format("frame%05d.txt", this.count++));
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Writer writer = GridWriter.newWriter(out, StandardCharsets.UTF_8);
+			GridWriter.writeText(grid, writer);
+			writer.flush();
+		}
+	}
+
+	@Override
+	public void finish() {
+	}
+}
@@ -0,0 +1,313 @@
+package me.adamoates.img2ascii.main;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caches the rendering of a grid as square tiles at power-of-two levels of
+ * detail, so a view at any zoom is composed from tiles that were already
+ * drawn instead of rasterizing every character again.
+ * <p>
+ * Level 0 is the grid rendered at full size by an AsciiRenderer. Each
+ * further level is half the size of the one before it, and its tiles are
+ * box-filtered from four tiles of the level before. A view zoomed out
+ * draws from the smallest level that is still at least as large as the
+ * zoom, so its tiles are scaled down by less than 2x until the last level
+ * is reached; a view zoomed in draws level 0 scaled up by the whole zoom.
+ * Only the tiles a view is missing are rasterized. Tiles are kept in an
+ * LRU bounded by their total size in bytes.
+ * <p>
+ * Nothing here needs a window: {@link #render(Rectangle, double)} draws
+ * into an off-screen BufferedImage.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class TilePyramid {
+
+	/** Default width and height of a tile in pixels. */
+	public static final int DEFAULT_TILE_SIZE = 256;
+	/** Default most bytes of tiles kept, enough for 256 default tiles. */
+	public static final long DEFAULT_MAX_BYTES = 64L << 20;
+
+	private final GridView grid;
+	private final AsciiRenderer renderer;
+	private final int tileSize;
+	private final long maxBytes;
+	private final int width;
+	private final int height;
+	private final int levels;
+
+	// access ordered, so iteration starts at the least recently used tile
+	private final LinkedHashMap<Long, BufferedImage> tiles = new LinkedHashMap<>(64, 0.75f, true);
+	private long bytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Instantiates a TilePyramid with the default tile size and memory bound.
+	 * @param grid The grid to render
+	 * @param renderer How to render it
+	 */
+	public TilePyramid(GridView grid, AsciiRenderer renderer) {
+		this(grid, renderer, DEFAULT_TILE_SIZE, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Instantiates a TilePyramid.
+	 * @param grid The grid to render
+	 * @param renderer How to render it
+	 * @param tileSize Width and height of a tile in pixels
+	 * @param maxBytes The most bytes of tiles to keep
+	 */
+	public TilePyramid(GridView grid, AsciiRenderer renderer, int tileSize, long maxBytes) {
+		if (tileSize < 1) throw new IllegalArgumentException("Tile size must be positive: " + tileSize);
+		if (maxBytes < 0) throw new IllegalArgumentException("Cache size must not be negative: " + maxBytes);
+		this.grid = grid;
+		this.renderer = renderer;
+		this.tileSize = tileSize;
+		this.maxBytes = maxBytes;
+		this.width = renderer.getWidth(grid);
+		this.height = renderer.getHeight(grid);
+		int levels = 1;
+		while ((this.levelWidth(levels - 1) > tileSize || this.levelHeight(levels - 1) > tileSize) && levels < 31) levels++;
+		this.levels = levels;
+	}
+
+	/**
+	 * Gets the width of the grid's full size rendering.
+	 * @return The width in pixels at zoom 1.0
+	 */
+	public int getWidth() {
+		return this.width;
+	}
+
+	/**
+	 * Gets the height of the grid's full size rendering.
+	 * @return The height in pixels at zoom 1.0
+	 */
+	public int getHeight() {
+		return this.height;
+	}
+
+	/**
+	 * Gets the number of levels; the last one fits in a single tile.
+	 * @return The number of levels
+	 */
+	public int getLevels() {
+		return this.levels;
+	}
+
+	/**
+	 * Gets the level a zoom draws from: the smallest one at least as large
+	 * as the zoom, or the last one.
+	 * @param zoom The zoom; 1.0 is full size
+	 * @return The level, 0 for full size
+	 */
+	public int level(double zoom) {
+		if (!(zoom > 0)) throw new IllegalArgumentException("Zoom must be positive: " + zoom);
+		int level = 0;
+		while (level < this.levels - 1 && zoom <= 1.0 / (2L << level)) level++;
+		return level;
+	}
+
+	/**
+	 * Draws the part of the grid's rendering at a zoom that falls inside a
+	 * view, rasterizing only the tiles that are not cached. The background
+	 * is not filled where there are no tiles, and tiles are scaled with
+	 * whatever interpolation <code>g</code> is set to.
+	 * @param g Where to draw; coordinates are those of the whole zoomed rendering
+	 * @param view The area to draw, in zoomed pixels
+	 * @param zoom The zoom; 1.0 is full size
+	 */
+	public void draw(Graphics2D g, Rectangle view, double zoom) {
+		int level = this.level(zoom);
+		double scale = zoom * (1L << level);	// level pixels to view pixels
+		double span = this.tileSize * scale;
+		int tx0 = Math.max(0, (int) Math.floor(view.x / span)), ty0 = Math.max(0, (int) Math.floor(view.y / span));
+		int tx1 = Math.min(this.tilesAcross(level), (int) Math.ceil((view.x + view.width) / span));
+		int ty1 = Math.min(this.tilesDown(level), (int) Math.ceil((view.y + view.height) / span));
+		for (int ty = ty0; ty < ty1; ty++) {
+			for (int tx = tx0; tx < tx1; tx++) {
+				BufferedImage tile = this.tile(level, tx, ty);
+				// round both edges, so neighboring tiles meet without gaps
+				int x = (int) Math.round(tx * span), y = (int) Math.round(ty * span);
+				int w = (int) Math.round((tx * this.tileSize + tile.getWidth()) * scale) - x;
+				int h = (int) Math.round((ty * this.tileSize + tile.getHeight()) * scale) - y;
+				g.drawImage(tile, x, y, w, h, null);
+			}
+		}
+	}
+
+	/**
+	 * Renders the part of the grid's rendering at a zoom that falls inside a
+	 * view, off-screen. Pixel (0, 0) of the result is pixel
+	 * (<code>view.x</code>, <code>view.y</code>) of the whole zoomed rendering.
+	 * @param view The area to draw, in zoomed pixels
+	 * @param zoom The zoom; 1.0 is full size
+	 * @return An opaque image of the view
+	 */
+	public BufferedImage render(Rectangle view, double zoom) {
+		BufferedImage image = new BufferedImage(Math.max(1, view.width), Math.max(1, view.height), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		try {
+			g.setColor(AsciiRenderer.BACKGROUND);
+			g.fillRect(0, 0, image.getWidth(), image.getHeight());
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.translate(-view.x, -view.y);
+			this.draw(g, view, zoom);
+		} finally {
+			g.dispose();
+		}
+		return image;
+	}
+
+	/**
+	 * Gets a tile, rasterizing it and whatever it is built from if they are
+	 * not cached.
+	 * @param level The level
+	 * @param tx The column of the tile
+	 * @param ty The row of the tile
+	 * @return The tile; do not modify it
+	 */
+	BufferedImage tile(int level, int tx, int ty) {
+		Long key = ((long) level << 56) | ((long) ty << 28) | tx;
+		synchronized (this) {
+			BufferedImage tile = this.tiles.get(key);
+			if (tile != null) {
+				this.hits.increment();
+				return tile;
+			}
+		}
+		this.misses.increment();
+		int x = tx * this.tileSize, y = ty * this.tileSize;
+		int w = Math.min(this.tileSize, this.levelWidth(level) - x), h = Math.min(this.tileSize, this.levelHeight(level) - y);
+		BufferedImage tile = (level == 0) ? this.renderer.render(this.grid, new Rectangle(x, y, w, h)) : this.reduce(level, tx, ty, w, h);
+		this.put(key, tile);
+		return tile;
+	}
+
+	/**
+	 * Builds a tile by averaging each 2x2 block of the four tiles it covers
+	 * on the level below. Blocks cut off by the edge average what is there.
+	 */
+	private BufferedImage reduce(int level, int tx, int ty, int w, int h) {
+		int below = level - 1, sw = this.levelWidth(below), sh = this.levelHeight(below);
+		int[] sumR = new int[w * h], sumG = new int[w * h], sumB = new int[w * h], count = new int[w * h];
+		for (int cy = 2 * ty; cy <= 2 * ty + 1 && cy * this.tileSize < sh; cy++) {
+			for (int cx = 2 * tx; cx <= 2 * tx + 1 && cx * this.tileSize < sw; cx++) {
+				BufferedImage child = this.tile(below, cx, cy);
+				int cw = child.getWidth(), ch = child.getHeight();
+				int[] pixels = ((DataBufferInt) child.getRaster().getDataBuffer()).getData();
+				// where the child's first pixel lands in the tile, in pixels of the level below
+				int ox = (cx - 2 * tx) * this.tileSize, oy = (cy - 2 * ty) * this.tileSize;
+				for (int py = 0; py < ch; py++) {
+					int row = ((oy + py) >> 1) * w;
+					for (int px = 0; px < cw; px++) {
+						int i = row + ((ox + px) >> 1), rgb = pixels[py * cw + px];
+						sumR[i] += (rgb >> 16) & 0xff;
+						sumG[i] += (rgb >> 8) & 0xff;
+						sumB[i] += rgb & 0xff;
+						count[i]++;
+					}
+				}
+			}
+		}
+		BufferedImage tile = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt) tile.getRaster().getDataBuffer()).getData();
+		for (int i = 0; i < pixels.length; i++) {
+			int n = Math.max(1, count[i]), half = n / 2;
+			pixels[i] = ((sumR[i] + half) / n) << 16 | ((sumG[i] + half) / n) << 8 | ((sumB[i] + half) / n);
+		}
+		return tile;
+	}
+
+	private synchronized void put(Long key, BufferedImage tile) {
+		long size = (long) tile.getWidth() * tile.getHeight() * Integer.BYTES;
+		if (size > this.maxBytes) return;
+		BufferedImage old = this.tiles.put(key, tile);
+		this.bytes += size;
+		if (old != null) this.bytes -= (long) old.getWidth() * old.getHeight() * Integer.BYTES;
+		Iterator<Map.Entry<Long, BufferedImage>> eldest = this.tiles.entrySet().iterator();
+		while (this.bytes > this.maxBytes && eldest.hasNext()) {
+			BufferedImage evicted = eldest.next().getValue();
+			eldest.remove();
+			this.bytes -= (long) evicted.getWidth() * evicted.getHeight() * Integer.BYTES;
+			this.evictions.increment();
+		}
+	}
+
+	/**
+	 * Gets the width of a level's rendering.
+	 * @param level The level
+	 * @return The width in pixels
+	 */
+	int levelWidth(int level) {
+		return (int) ((this.width + (1L << level) - 1) >> level);
+	}
+
+	/**
+	 * Gets the height of a level's rendering.
+	 * @param level The level
+	 * @return The height in pixels
+	 */
+	int levelHeight(int level) {
+		return (int) ((this.height + (1L << level) - 1) >> level);
+	}
+
+	private int tilesAcross(int level) {
+		return (this.levelWidth(level) + this.tileSize - 1) / this.tileSize;
+	}
+
+	private int tilesDown(int level) {
+		return (this.levelHeight(level) + this.tileSize - 1) / this.tileSize;
+	}
+
+	/**
+	 * Gets how many tiles were found in the cache.
+	 * @return Cache hits
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * Gets how many tiles were not in the cache and had to be rasterized, or
+	 * reduced from the level below.
+	 * @return Cache misses
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * Gets how many tiles were dropped to stay within the memory bound.
+	 * @return Evictions
+	 */
+	public long getEvictions() {
+		return this.evictions.sum();
+	}
+
+	/**
+	 * Gets the size of the tiles kept.
+	 * @return Bytes of pixels cached
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	/**
+	 * Drops every cached tile.
+	 */
+	public synchronized void clear() {
+		this.tiles.clear();
+		this.bytes = 0;
+	}
+}
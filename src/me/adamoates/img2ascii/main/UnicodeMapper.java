@@ -0,0 +1,175 @@
+package me.adamoates.img2ascii.main;
+
+import java.util.Arrays;
+
+/**
+ * Draws cells as Unicode block elements or Braille patterns instead of
+ * characters of a ramp, so one cell shows several pixels.
+ * <p>
+ * Each cell is sampled as a small grid of pixels. The pixels darker than
+ * the cell's mean gray level are set, assembled into a bit pattern without
+ * branching, and the pattern indexes a table of characters. A cell's
+ * foreground is the mean color of its set pixels and its background the
+ * mean color of the rest, so two colors per cell are kept; the background
+ * goes to the grid's background plane. Cells whose pixels differ by less
+ * than {@link #MIN_CONTRAST} gray levels are split at mid gray instead, so
+ * flat dark areas fill in and flat light ones stay empty.
+ * <p>
+ * At the same scale a cell shows 2, 4 or 8 pixels instead of one, so the
+ * same detail needs a half, a quarter or an eighth of the cells.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+public class UnicodeMapper {
+
+	/**
+	 * Which characters cells are drawn with, and how many pixels each shows.
+	 */
+	public static enum Mode {
+		/** Upper and lower half blocks: 1 by 2 pixels per cell */
+		HALF_BLOCKS(1, 2, HALF_BLOCK_CHARS),
+		/** Quadrant blocks: 2 by 2 pixels per cell */
+		QUADRANTS(2, 2, QUADRANT_CHARS),
+		/** Braille patterns: 2 by 4 dots per cell */
+		BRAILLE(2, 4, null);
+
+		final int columns;
+		final int rows;
+		// the character for every pattern, bit r * columns + c set for each dark pixel
+		final char[] table;
+
+		private Mode(int columns, int rows, String chars) {
+			this.columns = columns;
+			this.rows = rows;
+			this.table = (chars != null) ? chars.toCharArray() : braille();
+		}
+
+		/**
+		 * Gets the number of pixels across a cell.
+		 * @return The pixel columns
+		 */
+		public int getColumns() {
+			return this.columns;
+		}
+
+		/**
+		 * Gets the number of pixels down a cell.
+		 * @return The pixel rows
+		 */
+		public int getRows() {
+			return this.rows;
+		}
+	}
+
+	/** Gray levels between a cell's lightest and darkest pixel under which it is split at mid gray. */
+	public static final int MIN_CONTRAST = 48;
+
+	// top, then bottom
+	private static final String HALF_BLOCK_CHARS = " \u2580\u2584\u2588";
+	// top left, top right, bottom left, then bottom right
+	private static final String QUADRANT_CHARS = " \u2598\u259d\u2580\u2596\u258c\u259e\u259b\u2597\u259a\u2590\u259c\u2584\u2599\u259f\u2588";
+	// the Braille dot of each pixel, row-major; dots 1-3 and 4-6 run down the columns, 7 and 8 are the bottom row
+	private static final int[] BRAILLE_DOTS = { 0x01, 0x08, 0x02, 0x10, 0x04, 0x20, 0x40, 0x80 };
+	private static final char BRAILLE_BLANK = '\u2800';
+
+	// the quadrants each block element from U+2580 covers, or -1 if it is not drawn in quadrants
+	private static final byte[] BLOCK_QUADRANTS = new byte[32];
+	static {
+		Arrays.fill(BLOCK_QUADRANTS, (byte) -1);
+		for (int q = 1; q < QUADRANT_CHARS.length(); q++) BLOCK_QUADRANTS[QUADRANT_CHARS.charAt(q) - 0x2580] = (byte) q;
+	}
+
+	private UnicodeMapper() {}
+
+	/**
+	 * Builds the table from 8-pixel patterns to Braille characters.
+	 */
+	private static char[] braille() {
+		char[] table = new char[256];
+		for (int key = 0; key < table.length; key++) {
+			int dots = 0;
+			for (int i = 0; i < BRAILLE_DOTS.length; i++) dots |= BRAILLE_DOTS[i] & -((key >> i) & 1);
+			table[key] = (char) (BRAILLE_BLANK + dots);
+		}
+		return table;
+	}
+
+	/**
+	 * Gets which quadrants of its cell a block element covers.
+	 * @param ch The character
+	 * @return Bit 0 for top left, 1 for top right, 2 for bottom left and 3
+	 * for bottom right; or -1 if <code>ch</code> is not a half, quadrant or
+	 * full block
+	 */
+	static int quadrants(char ch) {
+		int i = ch - 0x2580;
+		return (i >= 0 && i < BLOCK_QUADRANTS.length) ? BLOCK_QUADRANTS[i] : -1;
+	}
+
+	/**
+	 * Converts a row of cells to characters, foreground colors and
+	 * background colors from their pixels.
+	 * @param mode The characters to draw with
+	 * @param src Packed RGB pixels, <code>mode.getColumns()</code> by <code>mode.getRows()</code> per cell
+	 * @param srcOff Offset of the first cell's top left pixel in <code>src</code>
+	 * @param stride Distance between rows of pixels in <code>src</code>
+	 * @param cells Number of cells to convert
+	 * @param flip XORed into each pixel first: 0x00ffffff to invert, else 0
+	 * @param grayscale Output gray colors instead of the mean colors
+	 * @param chars Receives the characters
+	 * @param colors Receives the opaque foreground colors
+	 * @param backgrounds Receives the opaque background colors
+	 * @param dstOff Offset of the first cell in <code>chars</code>, <code>colors</code> and <code>backgrounds</code>
+	 */
+	static void mapRow(Mode mode, int[] src, int srcOff, int stride, int cells, int flip, boolean grayscale,
+			char[] chars, int[] colors, int[] backgrounds, int dstOff) {
+		int columns = mode.columns, rows = mode.rows, n = columns * rows;
+		char[] table = mode.table;
+		int[] gray = new int[n], pixels = new int[n];
+		for (int cell = 0; cell < cells; cell++) {
+			int sum = 0, min = 255, max = 0;
+			for (int r = 0, i = 0; r < rows; r++) {
+				int p = srcOff + r * stride + cell * columns;
+				for (int c = 0; c < columns; c++, i++) {
+					int rgb = src[p + c] ^ flip;
+					int g = RampMapper.luminance(rgb);
+					pixels[i] = rgb;
+					gray[i] = g;
+					sum += g;
+					min = Math.min(min, g);
+					max = Math.max(max, g);
+				}
+			}
+			int threshold = (max - min < MIN_CONTRAST) ? 128 : (sum + n / 2) / n;
+
+			// the sign bit of gray - threshold is 1 exactly for the dark pixels
+			int bits = 0, tr = 0, tg = 0, tb = 0, fr = 0, fg = 0, fb = 0;
+			for (int i = 0; i < n; i++) {
+				int bit = (gray[i] - threshold) >>> 31, mask = -bit, rgb = pixels[i];
+				bits |= bit << i;
+				int r = (rgb >> 16) & 0xff, g = (rgb >> 8) & 0xff, b = rgb & 0xff;
+				tr += r;
+				tg += g;
+				tb += b;
+				fr += r & mask;
+				fg += g & mask;
+				fb += b & mask;
+			}
+			int set = Integer.bitCount(bits);
+			int all = mean(tr, tg, tb, n);
+			int foreground = (set == 0) ? all : mean(fr, fg, fb, set);
+			int background = (set == n) ? all : mean(tr - fr, tg - fg, tb - fb, n - set);
+
+			chars[dstOff + cell] = table[bits];
+			colors[dstOff + cell] = grayscale ? RampMapper.grayscale(foreground) : (0xff000000 | foreground);
+			backgrounds[dstOff + cell] = grayscale ? RampMapper.grayscale(background) : (0xff000000 | background);
+		}
+	}
+
+	/**
+	 * Gets the mean of channel sums as packed RGB.
+	 */
+	private static int mean(int r, int g, int b, int n) {
+		int half = n / 2;
+		return ((r + half) / n) << 16 | ((g + half) / n) << 8 | ((b + half) / n);
+	}
+}
@@ -0,0 +1,113 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import jdk.incubator.vector.IntVector;
+
+/**
+ * Checks that the vector kernel gives bit-identical results to the scalar
+ * one, for runs that fill whole vectors and runs with a scalar tail.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class VectorLuminanceKernelTest {
+
+	private static final char SENTINEL_CHAR = '\uffff';
+	private static final int SENTINEL = 0xdeadbeef;
+
+	private static LuminanceKernel vector;
+	private static int lanes;
+
+	@BeforeAll
+	static void setUp() {
+		vector = LuminanceKernel.vector();
+		assertNotNull(vector, "the vector kernel should load with jdk.incubator.vector");
+		assertTrue(vector instanceof VectorLuminanceKernel, vector.toString());
+		lanes = Math.min(IntVector.SPECIES_PREFERRED.length(), IntVector.SPECIES_256.length());
+	}
+
+	/**
+	 * Gets run lengths around every multiple of the lane count up to a few
+	 * vectors, so both the vector loop and the scalar tail are covered.
+	 */
+	private static int[] lengths() {
+		int[] lengths = new int[4 * lanes + 2];
+		for (int i = 0; i < lengths.length; i++) lengths[i] = i;
+		lengths = Arrays.copyOf(lengths, lengths.length + 2);
+		lengths[lengths.length - 2] = 1000;
+		lengths[lengths.length - 1] = 4099;
+		return lengths;
+	}
+
+	@Test
+	void mapRowMatchesScalar() {
+		Random random = new Random(11);
+		char[] grayToChar = new char[256];
+		for (int g = 0; g < 256; g++) grayToChar[g] = (char) ('!' + g * 93 / 255);
+		for (int len : lengths()) {
+			int srcOff = random.nextInt(5), dstOff = random.nextInt(5);
+			int[] src = new int[srcOff + len + 3];
+			for (int i = 0; i < src.length; i++) src[i] = random.nextInt();
+			for (int flip : new int[] { 0, 0x00ffffff }) {
+				for (boolean grayscale : new boolean[] { false, true }) {
+					char[] expectedChars = new char[dstOff + len + 3], chars = new char[expectedChars.length];
+					int[] expectedColors = new int[expectedChars.length], colors = new int[expectedChars.length];
+					Arrays.fill(expectedChars, SENTINEL_CHAR);
+					Arrays.fill(chars, SENTINEL_CHAR);
+					Arrays.fill(expectedColors, SENTINEL);
+					Arrays.fill(colors, SENTINEL);
+					LuminanceKernel.SCALAR.mapRow(src, srcOff, len, flip, grayscale, grayToChar, expectedChars, expectedColors, dstOff);
+					vector.mapRow(src, srcOff, len, flip, grayscale, grayToChar, chars, colors, dstOff);
+					String what = "length " + len + ", flip " + Integer.toHexString(flip) + (grayscale ? ", grayscale" : "");
+					assertArrayEquals(expectedChars, chars, what);
+					assertArrayEquals(expectedColors, colors, what);
+				}
+			}
+		}
+	}
+
+	@Test
+	void indexRowMatchesScalar() {
+		Random random = new Random(12);
+		byte[] grayToIndex = new byte[256];
+		for (int g = 0; g < 256; g++) grayToIndex[g] = (byte) Math.round(g / 255.0 * 93);
+		for (int len : lengths()) {
+			int srcOff = random.nextInt(5), dstOff = random.nextInt(5);
+			int[] src = new int[srcOff + len + 3];
+			for (int i = 0; i < src.length; i++) src[i] = random.nextInt();
+			for (int flip : new int[] { 0, 0x00ffffff }) {
+				int[] expected = new int[dstOff + len + 3], indexes = new int[expected.length];
+				Arrays.fill(expected, SENTINEL);
+				Arrays.fill(indexes, SENTINEL);
+				LuminanceKernel.SCALAR.indexRow(src, srcOff, len, flip, grayToIndex, expected, dstOff);
+				vector.indexRow(src, srcOff, len, flip, grayToIndex, indexes, dstOff);
+				assertArrayEquals(expected, indexes, "length " + len + ", flip " + Integer.toHexString(flip));
+			}
+		}
+	}
+
+	@Test
+	void everyGrayLevelMatchesScalar() {
+		// every packed gray, and every value of each channel alone
+		int[] src = new int[4 * 256];
+		for (int v = 0; v < 256; v++) {
+			src[v] = v << 16 | v << 8 | v;
+			src[256 + v] = v << 16;
+			src[512 + v] = v << 8;
+			src[768 + v] = v;
+		}
+		byte[] grayToIndex = new byte[256];
+		for (int g = 0; g < 256; g++) grayToIndex[g] = (byte) g;
+		int[] expected = new int[src.length], indexes = new int[src.length];
+		LuminanceKernel.SCALAR.indexRow(src, 0, src.length, 0, grayToIndex, expected, 0);
+		vector.indexRow(src, 0, src.length, 0, grayToIndex, indexes, 0);
+		assertArrayEquals(expected, indexes);
+	}
+}
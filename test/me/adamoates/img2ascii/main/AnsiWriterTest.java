@@ -0,0 +1,121 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the escape sequences AnsiWriter emits and the palette indexes
+ * its lookup tables map colors to.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class AnsiWriterTest {
+
+	private static final String ESC = "\u001b[";
+	private static final String RESET = ESC + "0m";
+
+	private static AsciiGrid grid(String[] rows, int[][] colors) {
+		AsciiGrid grid = new AsciiGrid(rows[0].length(), rows.length);
+		for (int y = 0; y < rows.length; y++) {
+			for (int x = 0; x < rows[y].length(); x++) grid.set(x, y, rows[y].charAt(x), colors[y][x]);
+		}
+		return grid;
+	}
+
+	private static String write(AnsiWriter writer, AsciiGrid grid) throws IOException {
+		StringWriter out = new StringWriter();
+		writer.write(grid, out);
+		return out.toString();
+	}
+
+	/**
+	 * Gets the palette index a writer picks for a color, read back from the
+	 * SGR sequence it writes for a single cell.
+	 */
+	private static int code(AnsiWriter writer, int argb) throws IOException {
+		String out = write(writer, grid(new String[] { "x" }, new int[][] { { argb } }));
+		String[] params = out.substring(ESC.length(), out.indexOf('m')).split(";");
+		int last = Integer.parseInt(params[params.length - 1]);
+		return (writer == AnsiWriter.ANSI_16) ? last - (last < 90 ? 30 : 82) : last;
+	}
+
+	private static int sequences(String s) {
+		int n = 0;
+		for (int i = s.indexOf(ESC); i >= 0; i = s.indexOf(ESC, i + 1)) n++;
+		return n;
+	}
+
+	@Test
+	void runsOfOneColorShareASequence() throws IOException {
+		int c = 0xff112233;
+		AsciiGrid grid = grid(new String[] { "abcd", "efgh" }, new int[][] { { c, c, c, c }, { c, c, c, c } });
+		assertEquals(ESC + "38;2;17;34;51mabcd\nefgh\n" + RESET, write(AnsiWriter.TRUECOLOR, grid));
+		assertEquals(ESC + "38;5;235mabcd\nefgh\n" + RESET, write(AnsiWriter.XTERM_256, grid));
+		assertEquals(ESC + "30mabcd\nefgh\n" + RESET, write(AnsiWriter.ANSI_16, grid));
+	}
+
+	@Test
+	void changesOnlyWhereTheColorDoes() throws IOException {
+		int red = 0xffff0000, blue = 0xff0000ff;
+		// the blank's own color is not shown, so it keeps the run going
+		AsciiGrid grid = grid(new String[] { "aa b", "bbaa" }, new int[][] { { red, red, blue, red }, { red, red, blue, blue } });
+		String out = write(AnsiWriter.TRUECOLOR, grid);
+		assertEquals(ESC + "38;2;255;0;0maa b\nbb" + ESC + "38;2;0;0;255maa\n" + RESET, out);
+		assertEquals(3, sequences(out));
+
+		// colors that map to one palette index need no new sequence either
+		AsciiGrid close = grid(new String[] { "abc" }, new int[][] { { 0xffff0000, 0xfffe0101, 0xfff80000 } });
+		assertEquals(ESC + "91mabc\n" + RESET, write(AnsiWriter.ANSI_16, close));
+	}
+
+	@Test
+	void endsWithAReset() throws IOException {
+		AsciiGrid grid = grid(new String[] { "ab", "cd" }, new int[][] { { 0xff00ff00, 0xff808080 }, { 0xff123456, 0xff00ff00 } });
+		for (AnsiWriter.ColorLevel level : AnsiWriter.ColorLevel.values()) {
+			for (boolean background : new boolean[] { false, true }) {
+				String out = write(new AnsiWriter(level, background), grid);
+				assertTrue(out.endsWith(RESET) || out.endsWith(RESET + "\n"), level + " " + background);
+				if (background) {
+					// so backgrounds never bleed past the last column
+					assertTrue(out.endsWith(RESET + "\n"), out);
+					assertEquals(2, out.split(Pattern.quote(RESET + "\n"), -1).length - 1);
+				}
+			}
+		}
+		assertEquals("", write(AnsiWriter.TRUECOLOR, new AsciiGrid(3, 0)));
+		assertEquals("\n\n", write(AnsiWriter.TRUECOLOR, new AsciiGrid(0, 2)));
+	}
+
+	@Test
+	void xterm256MapsToTheCubeAndGrayRamp() throws IOException {
+		assertEquals(16, code(AnsiWriter.XTERM_256, 0xff000000));
+		assertEquals(231, code(AnsiWriter.XTERM_256, 0xffffffff));
+		assertEquals(196, code(AnsiWriter.XTERM_256, 0xffff0000));
+		assertEquals(46, code(AnsiWriter.XTERM_256, 0xff00ff00));
+		assertEquals(21, code(AnsiWriter.XTERM_256, 0xff0000ff));
+		// 95, 135, 175 on the cube's levels
+		assertEquals(16 + 36 * 1 + 6 * 2 + 3, code(AnsiWriter.XTERM_256, 0xff5f87af));
+		// 118 is on the gray ramp, between the cube's 95 and 135
+		assertEquals(232 + 11, code(AnsiWriter.XTERM_256, 0xff767676));
+		// the standard colors are left out, so nothing maps below the cube
+		for (int rgb = 0; rgb < 1 << 24; rgb += 0x010101 * 7 + 0x000200) assertTrue(code(AnsiWriter.XTERM_256, rgb) >= 16);
+	}
+
+	@Test
+	void ansi16MapsToTheStandardColors() throws IOException {
+		assertEquals(0, code(AnsiWriter.ANSI_16, 0xff000000));
+		assertEquals(1, code(AnsiWriter.ANSI_16, 0xffcd0000));
+		assertEquals(6, code(AnsiWriter.ANSI_16, 0xff00cdcd));
+		assertEquals(8, code(AnsiWriter.ANSI_16, 0xff7f7f7f));
+		assertEquals(9, code(AnsiWriter.ANSI_16, 0xffff0000));
+		assertEquals(12, code(AnsiWriter.ANSI_16, 0xff5c5cff));
+		assertEquals(15, code(AnsiWriter.ANSI_16, 0xffffffff));
+		// truecolor writes the RGB itself, whatever the alpha
+		assertEquals(ESC + "38;2;18;52;86mx\n" + RESET, write(AnsiWriter.TRUECOLOR, grid(new String[] { "x" }, new int[][] { { 0x80123456 } })));
+	}
+}
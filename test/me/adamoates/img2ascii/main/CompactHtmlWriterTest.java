@@ -0,0 +1,205 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the palette and classes CompactHtmlWriter chooses by reading its
+ * output back into characters and colors, in both styled and canvas form.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class CompactHtmlWriterTest {
+
+	private static final Pattern RULE = Pattern.compile("pre\\.i2a \\.([a-z]+)\\{color:#([0-9a-f]{6})\\}");
+	private static final Pattern CANVAS = Pattern.compile(
+			"<canvas></canvas><script>\\(function\\(\\)\\{var d=atob\\(\"([A-Za-z0-9+/=]*)\"\\),W=(\\d+),H=(\\d+),P=\\[([^\\]]*)\\],T=\"((?:[^\"\\\\]|\\\\u[0-9a-f]{4})*)\",.*\\}\\)\\(\\);</script>");
+
+	// colors that fall in different 5 bit per channel buckets
+	private static final int[] COLORS = { 0x102030, 0xf0e0d0, 0x808080, 0x00ff00, 0xff0000, 0x0000ff, 0x123456, 0xfedcba, 0x4a4a4a, 0x7f00ff };
+
+	private static AsciiGrid grid(int w, int h, int[] palette, String chars, long seed) {
+		AsciiGrid grid = new AsciiGrid(w, h);
+		Random random = new Random(seed);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) grid.set(x, y, chars.charAt(random.nextInt(chars.length())), 0xff000000 | palette[random.nextInt(palette.length)]);
+		}
+		return grid;
+	}
+
+	private static String write(CompactHtmlWriter writer, AsciiGrid grid) throws IOException {
+		StringWriter out = new StringWriter();
+		writer.write(grid, out);
+		return out.toString();
+	}
+
+	/**
+	 * Gets the color of each class the styles define.
+	 */
+	private static Map<String, Integer> classes(String html) {
+		Map<String, Integer> classes = new HashMap<>();
+		for (Matcher m = RULE.matcher(html); m.find(); ) assertNull(classes.put(m.group(1), Integer.parseInt(m.group(2), 16)), m.group(1));
+		return classes;
+	}
+
+	/**
+	 * Reads styled output back into the rows of characters and the color
+	 * each character is shown in.
+	 */
+	private static List<int[]> cells(String html, List<StringBuilder> rows) {
+		Map<String, Integer> classes = classes(html);
+		String body = html.substring(html.indexOf("<pre class=\"i2a\">") + "<pre class=\"i2a\">".length(), html.lastIndexOf("</pre>"));
+		List<int[]> colors = new ArrayList<>();
+		List<Integer> row = new ArrayList<>();
+		StringBuilder chars = new StringBuilder();
+		int color = -1;
+		for (int i = 0; i < body.length(); ) {
+			if (body.startsWith("<i class=", i)) {
+				int end = body.indexOf('>', i);
+				color = classes.get(body.substring(i + "<i class=".length(), end));
+				i = end + 1;
+			} else if (body.startsWith("</i>", i)) {
+				i += 4;
+			} else if (body.charAt(i) == '\n') {
+				rows.add(chars);
+				colors.add(row.stream().mapToInt(Integer::intValue).toArray());
+				chars = new StringBuilder();
+				row = new ArrayList<>();
+				i++;
+			} else {
+				char ch = body.charAt(i);
+				int skip = 1;
+				if (body.startsWith("&lt;", i)) { ch = '<'; skip = 4; }
+				else if (body.startsWith("&gt;", i)) { ch = '>'; skip = 4; }
+				else if (body.startsWith("&amp;", i)) { ch = '&'; skip = 5; }
+				chars.append(ch);
+				row.add(color);
+				i += skip;
+			}
+		}
+		return colors;
+	}
+
+	private static void assertExact(AsciiGrid grid, String html) {
+		List<StringBuilder> rows = new ArrayList<>();
+		List<int[]> colors = cells(html, rows);
+		assertEquals(grid.getHeight(), rows.size());
+		for (int y = 0; y < grid.getHeight(); y++) {
+			char[] chars = new char[grid.getWidth()];
+			int[] expected = new int[grid.getWidth()];
+			for (int x = 0; x < expected.length; x++) {
+				chars[x] = grid.get(x, y);
+				expected[x] = grid.getRgb(x, y) & 0x00ffffff;
+			}
+			assertEquals(new String(chars), rows.get(y).toString(), "row " + y);
+			assertArrayEquals(expected, colors.get(y), "row " + y);
+		}
+	}
+
+	@Test
+	void keepsExactColorsThatFitThePalette() throws IOException {
+		AsciiGrid grid = grid(37, 11, COLORS, "#%&<>@abcXYZ", 1);
+		assertExact(grid, write(new CompactHtmlWriter(COLORS.length, 0, false), grid));
+		assertExact(grid, write(new CompactHtmlWriter(64, 0, false), grid));
+		Set<Integer> exact = new HashSet<>();
+		for (int rgb : COLORS) exact.add(rgb);
+		assertEquals(exact, new HashSet<>(classes(write(CompactHtmlWriter.DEFAULT, grid)).values()));
+	}
+
+	@Test
+	void identicalColorsShareOneClass() throws IOException {
+		AsciiGrid grid = grid(50, 20, COLORS, "abc", 2);
+		String html = write(new CompactHtmlWriter(64, 0, false), grid);
+		Map<String, Integer> classes = classes(html);
+		assertEquals(COLORS.length, classes.size());
+		assertEquals(COLORS.length, new HashSet<>(classes.values()).size());
+
+		// one color is one element, whatever the rows
+		AsciiGrid flat = grid(50, 20, new int[] { 0x336699 }, "abc", 3);
+		String one = write(CompactHtmlWriter.DEFAULT, flat);
+		assertEquals(1, classes(one).size());
+		assertEquals(1, one.split("<i class=", -1).length - 1);
+		assertTrue(one.endsWith("</i></pre>"));
+
+		// more colors than the palette still give at most one class per entry
+		AsciiGrid many = grid(64, 64, new Random(4).ints(500, 0, 1 << 24).toArray(), "abc", 4);
+		assertTrue(classes(write(new CompactHtmlWriter(16, 0, false), many)).size() <= 16);
+	}
+
+	@Test
+	void nearColorsAndBlanksDoNotStartElements() throws IOException {
+		AsciiGrid grid = new AsciiGrid(4, 1);
+		grid.set(0, 0, 'a', 0xff804020);
+		grid.set(1, 0, ' ', 0xff0000ff);
+		grid.set(2, 0, 'b', 0xff8c4c2c);
+		grid.set(3, 0, 'c', 0xff804020);
+		String html = write(new CompactHtmlWriter(64, 12, false), grid);
+		assertEquals(1, html.split("<i class=", -1).length - 1, html);
+		assertEquals(3, write(new CompactHtmlWriter(64, 0, false), grid).split("<i class=", -1).length - 1);
+	}
+
+	@Test
+	void canvasPayloadDrawsTheGrid() throws IOException {
+		AsciiGrid grid = grid(45, 13, COLORS, "#%&<>\"\\█ab", 5);
+		String html = write(new CompactHtmlWriter(COLORS.length, 0, true), grid);
+		Matcher m = CANVAS.matcher(html);
+		assertTrue(m.matches(), html);
+		int w = Integer.parseInt(m.group(2)), h = Integer.parseInt(m.group(3));
+		assertEquals(grid.getWidth(), w);
+		assertEquals(grid.getHeight(), h);
+
+		List<Integer> palette = new ArrayList<>();
+		for (String p : m.group(4).split(",")) palette.add(Integer.parseInt(p.substring(2, 8), 16));
+		StringBuilder table = new StringBuilder();
+		String t = m.group(5);
+		for (int i = 0; i < t.length(); i++) {
+			if (t.startsWith("\\u", i)) {
+				table.append((char) Integer.parseInt(t.substring(i + 2, i + 6), 16));
+				i += 5;
+			} else {
+				table.append(t.charAt(i));
+			}
+		}
+
+		// a character index per cell, then (run length - 1, palette index) pairs
+		byte[] d = Base64.getDecoder().decode(m.group(1));
+		int[] colors = new int[w * h];
+		int cell = 0;
+		for (int k = w * h; k < d.length; k += 2) {
+			for (int r = (d[k] & 0xff) + 1; r > 0; r--) colors[cell++] = palette.get(d[k + 1] & 0xff);
+		}
+		assertEquals(w * h, cell);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				assertEquals(grid.get(x, y), table.charAt(d[y * w + x] & 0xff));
+				assertEquals(grid.getRgb(x, y) & 0x00ffffff, colors[y * w + x]);
+			}
+		}
+	}
+
+	@Test
+	void canvasFallsBackToStylesForLargeCharacterSets() throws IOException {
+		StringBuilder chars = new StringBuilder();
+		for (char ch = 0x4e00; ch < 0x4e00 + 300; ch++) chars.append(ch);
+		AsciiGrid grid = grid(40, 40, COLORS, chars.toString(), 6);
+		String html = write(new CompactHtmlWriter(COLORS.length, 0, true), grid);
+		assertTrue(html.startsWith("<style>"));
+		assertExact(grid, html);
+	}
+}
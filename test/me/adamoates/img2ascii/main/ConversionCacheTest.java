@@ -0,0 +1,180 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Checks the cache's counters and bounds: single-flight conversions, the
+ * memory LRU, the disk tier across instances and the disk byte count.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class ConversionCacheTest {
+
+	private static final ConversionOptions OPTIONS = ConversionOptions.DEFAULT.withScale(0.5);
+	private static final ConversionCache.Format FORMAT = ConversionCache.Format.TEXT;
+
+	@TempDir
+	Path dir;
+
+	private ExecutorService threads;
+
+	@BeforeEach
+	void setUp() {
+		this.threads = Executors.newCachedThreadPool();
+	}
+
+	@AfterEach
+	void tearDown() {
+		this.threads.shutdownNow();
+	}
+
+	private static BufferedImage image(long seed) {
+		BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(seed);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) image.setRGB(x, y, random.nextInt());
+		}
+		return image;
+	}
+
+	/**
+	 * A pool whose first conversion waits, on the converting thread, until
+	 * it is let go; the rows are then converted on that thread.
+	 */
+	private static final class Gate {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch open = new CountDownLatch(1);
+		final ConversionPool pool = new ConversionPool(command -> {
+			this.entered.countDown();
+			try {
+				this.open.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			throw new RejectedExecutionException();
+		}, 2, 1);
+	}
+
+	private List<Path> files() throws IOException {
+		try (Stream<Path> files = Files.list(this.dir)) {
+			return files.collect(Collectors.toList());
+		}
+	}
+
+	@Test
+	void concurrentMissesConvertOnce() throws Exception {
+		Gate gate = new Gate();
+		ConversionCache cache = new ConversionCache(1 << 20, null, 0, gate.pool);
+		BufferedImage image = image(1);
+		Future<byte[]> first = this.threads.submit(() -> cache.get(image, OPTIONS, FORMAT));
+		assertTrue(gate.entered.await(30, TimeUnit.SECONDS));
+		Future<byte[]> second = this.threads.submit(() -> cache.get(image, OPTIONS, FORMAT));
+		for (int i = 0; i < 3000 && cache.getCollapsed() == 0; i++) Thread.sleep(10);
+		gate.open.countDown();
+
+		byte[] result = first.get(30, TimeUnit.SECONDS);
+		assertSame(result, second.get(30, TimeUnit.SECONDS));
+		assertEquals(1, cache.getMisses());
+		assertEquals(1, cache.getCollapsed());
+		assertEquals(0, cache.getHits());
+		assertArrayEquals(ConversionCache.encode(Image2Ascii.AsciiImage.convert(image, OPTIONS, ConversionPool.SEQUENTIAL), OPTIONS, FORMAT), result);
+	}
+
+	@Test
+	void memoryStaysWithinItsLimit() throws IOException {
+		int size = new ConversionCache(0).get(image(0), OPTIONS, FORMAT).length;
+		long limit = 3L * size + size / 2;
+		ConversionCache cache = new ConversionCache(limit, null, 0, ConversionPool.SEQUENTIAL);
+		for (int i = 0; i < 6; i++) {
+			cache.get(image(i), OPTIONS, FORMAT);
+			assertTrue(cache.getMemoryBytes() <= limit, cache.getMemoryBytes() + " bytes after " + (i + 1));
+		}
+		assertEquals(3L * size, cache.getMemoryBytes());
+		assertEquals(3, cache.getEvictions());
+		assertEquals(6, cache.getMisses());
+
+		// the newest are kept and the oldest converted again
+		cache.get(image(5), OPTIONS, FORMAT);
+		assertEquals(1, cache.getHits());
+		cache.get(image(0), OPTIONS, FORMAT);
+		assertEquals(7, cache.getMisses());
+		assertTrue(cache.getMemoryBytes() <= limit);
+	}
+
+	@Test
+	void diskResultsSurviveNewInstances() throws IOException {
+		BufferedImage image = image(2);
+		ConversionCache first = new ConversionCache(1 << 20, this.dir.toFile(), 1 << 20, ConversionPool.SEQUENTIAL);
+		byte[] result = first.get(image, OPTIONS, FORMAT);
+		assertEquals(1, first.getMisses());
+		assertEquals(result.length, first.getDiskBytes());
+
+		ConversionCache second = new ConversionCache(1 << 20, this.dir.toFile(), 1 << 20, ConversionPool.SEQUENTIAL);
+		assertEquals(result.length, second.getDiskBytes());
+		assertArrayEquals(result, second.get(image, OPTIONS, FORMAT));
+		assertEquals(1, second.getDiskHits());
+		assertEquals(0, second.getMisses());
+		// and from memory after that
+		second.get(image, OPTIONS, FORMAT);
+		assertEquals(1, second.getHits());
+		assertEquals(1, second.getDiskHits());
+	}
+
+	@Test
+	void overwritingAKeyDoesNotGrowTheDiskCount() throws Exception {
+		BufferedImage image = image(3);
+		Gate gate = new Gate();
+		ConversionCache slow = new ConversionCache(1 << 20, this.dir.toFile(), 1 << 20, gate.pool);
+		// misses the disk, then waits while another instance writes the same key
+		Future<byte[]> pending = this.threads.submit(() -> slow.get(image, OPTIONS, FORMAT));
+		assertTrue(gate.entered.await(30, TimeUnit.SECONDS));
+		ConversionCache fast = new ConversionCache(1 << 20, this.dir.toFile(), 1 << 20, ConversionPool.SEQUENTIAL);
+		byte[] result = fast.get(image, OPTIONS, FORMAT);
+		assertEquals(result.length, fast.getDiskBytes());
+
+		long before = slow.getDiskBytes();
+		gate.open.countDown();
+		assertArrayEquals(result, pending.get(30, TimeUnit.SECONDS));
+		assertEquals(1, slow.getMisses());
+		assertEquals(before, slow.getDiskBytes());
+		assertEquals(1, this.files().size());
+		assertEquals(result.length, Files.size(this.files().get(0)));
+	}
+
+	@Test
+	void diskStaysNearItsLimit() throws IOException {
+		int size = new ConversionCache(0).get(image(0), OPTIONS, FORMAT).length;
+		long limit = 4L * size;
+		ConversionCache cache = new ConversionCache(0, this.dir.toFile(), limit, ConversionPool.SEQUENTIAL);
+		for (int i = 0; i < 10; i++) {
+			cache.get(image(i), OPTIONS, FORMAT);
+			assertTrue(cache.getDiskBytes() <= limit, cache.getDiskBytes() + " bytes after " + (i + 1));
+			long onDisk = 0;
+			for (Path file : this.files()) onDisk += Files.size(file);
+			assertEquals(onDisk, cache.getDiskBytes());
+		}
+		assertTrue(cache.getDiskEvictions() > 0);
+	}
+}
@@ -0,0 +1,99 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * Checks that converting row bands in parallel gives exactly the grid a
+ * sequential conversion gives, however the rows are split.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class ConversionPoolTest {
+
+	private static ExecutorService executor;
+	private static BufferedImage image;
+
+	@BeforeAll
+	static void setUp() {
+		executor = Executors.newFixedThreadPool(4);
+		// a gradient with noise, so neighboring cells differ
+		image = new BufferedImage(613, 457, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(7);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				int r = (x * 255 / image.getWidth()) ^ random.nextInt(32);
+				int g = (y * 255 / image.getHeight()) ^ random.nextInt(32);
+				int b = ((x + y) & 0xff) ^ random.nextInt(32);
+				image.setRGB(x, y, r << 16 | g << 8 | b);
+			}
+		}
+	}
+
+	@AfterAll
+	static void tearDown() {
+		executor.shutdown();
+	}
+
+	private static ConversionPool[] pools() {
+		return new ConversionPool[] {
+			ConversionPool.COMMON,
+			// bands of a single pixel's worth: as many bands as rows allow
+			new ConversionPool(executor, 4, 1),
+			// odd band sizes that split rows unevenly
+			new ConversionPool(executor, 3, 777),
+			new ConversionPool(executor, 2, 12_345),
+		};
+	}
+
+	private static void assertSameGrid(AsciiGrid expected, AsciiGrid actual, String what) {
+		assertEquals(expected.getWidth(), actual.getWidth(), what);
+		assertEquals(expected.getHeight(), actual.getHeight(), what);
+		assertArrayEquals(expected.chars(), actual.chars(), what);
+		assertArrayEquals(expected.colors(), actual.colors(), what);
+		assertArrayEquals(expected.backgrounds(), actual.backgrounds(), what);
+	}
+
+	@Test
+	void parallelConversionsMatchSequential() {
+		ConversionOptions[] options = {
+			ConversionOptions.DEFAULT,
+			ConversionOptions.DEFAULT.withScale(0.37),
+			ConversionOptions.DEFAULT.withScale(0.5, 0.29).with(Flag.INVERT).with(Flag.GRAYSCALE),
+			ConversionOptions.DEFAULT.withScale(0.4).withResampling(Resampler.Mode.NEAREST),
+			ConversionOptions.DEFAULT.withScale(0.4).withResampling(Resampler.Mode.BILINEAR),
+			ConversionOptions.DEFAULT.withScale(0.3).withShapeMatching(ShapeMatcher.Layout.CELLS_2X4),
+			ConversionOptions.DEFAULT.withScale(0.3).withUnicode(UnicodeMapper.Mode.BRAILLE),
+		};
+		for (ConversionOptions o : options) {
+			AsciiGrid expected = Image2Ascii.AsciiImage.convert(image, o, ConversionPool.SEQUENTIAL);
+			for (ConversionPool pool : pools()) {
+				assertSameGrid(expected, Image2Ascii.AsciiImage.convert(image, o, pool), o.toString());
+			}
+		}
+	}
+
+	@Test
+	void everyRowIsConvertedOnce() {
+		for (ConversionPool pool : pools()) {
+			for (int height : new int[] { 1, 2, 7, 97, 1000 }) {
+				AtomicIntegerArray counts = new AtomicIntegerArray(height);
+				pool.convert(1000, height, (y0, y1) -> {
+					for (int y = y0; y < y1; y++) counts.incrementAndGet(y);
+				});
+				for (int y = 0; y < height; y++) assertEquals(1, counts.get(y), "row " + y + " of " + height);
+			}
+		}
+	}
+}
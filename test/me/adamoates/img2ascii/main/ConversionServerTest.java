@@ -0,0 +1,176 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the conversion service end to end over plain HTTP, on a free
+ * port of the loopback address.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class ConversionServerTest {
+
+	private static final HttpClient CLIENT = HttpClient.newHttpClient();
+	private static final ConversionOptions OPTIONS = ConversionOptions.DEFAULT.withScale(0.25);
+
+	private ConversionServer server;
+
+	@AfterEach
+	void tearDown() {
+		if (this.server != null) this.server.stop(0);
+	}
+
+	private void start(int maxConcurrent, int maxQueued, long maxUploadBytes) throws IOException {
+		this.server = new ConversionServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), OPTIONS,
+				maxConcurrent, maxQueued, ConversionServer.DEFAULT_QUEUE_TIMEOUT, maxUploadBytes, ConversionServer.DEFAULT_MAX_PIXELS);
+		this.server.start();
+	}
+
+	private URI uri(String path) {
+		InetSocketAddress address = this.server.getAddress();
+		return URI.create("http://" + address.getHostString() + ":" + address.getPort() + path);
+	}
+
+	private HttpResponse<String> post(String path, byte[] body) throws IOException, InterruptedException {
+		HttpRequest request = HttpRequest.newBuilder(this.uri(path)).POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+		return CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+	}
+
+	private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+		return CLIENT.send(HttpRequest.newBuilder(this.uri(path)).GET().build(), HttpResponse.BodyHandlers.ofString());
+	}
+
+	private static BufferedImage image() {
+		BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) image.setRGB(x, y, (x * 4) << 16 | (y * 5) << 8 | 0x40);
+		}
+		return image;
+	}
+
+	private static byte[] png(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Sends a request by hand and reads the status line of the answer.
+	 */
+	private int raw(String request) throws IOException {
+		InetSocketAddress address = this.server.getAddress();
+		try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+			socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+			socket.getOutputStream().flush();
+			String status = new String(socket.getInputStream().readNBytes(12), StandardCharsets.ISO_8859_1);
+			return Integer.parseInt(status.substring(9, 12));
+		}
+	}
+
+	@Test
+	void convertsSmallImages() throws Exception {
+		this.start(2, 2, ConversionServer.DEFAULT_MAX_UPLOAD_BYTES);
+		BufferedImage image = image();
+		HttpResponse<String> response = this.post("/convert", png(image));
+		assertEquals(200, response.statusCode());
+		assertEquals("text/plain; charset=utf-8", response.headers().firstValue("Content-Type").orElse(null));
+		AsciiGrid expected = StreamingConverter.DEFAULT.convert(new ByteArrayInputStream(png(image)), OPTIONS, ConversionPool.SEQUENTIAL);
+		assertEquals(new Image2Ascii.AsciiImage(expected).toString(), response.body());
+
+		HttpRequest request = HttpRequest.newBuilder(this.uri("/convert?format=png&scale=0.5")).POST(HttpRequest.BodyPublishers.ofByteArray(png(image))).build();
+		HttpResponse<byte[]> rendered = CLIENT.send(request, HttpResponse.BodyHandlers.ofByteArray());
+		assertEquals(200, rendered.statusCode());
+		assertEquals("image/png", rendered.headers().firstValue("Content-Type").orElse(null));
+		assertArrayEquals(new byte[] { (byte) 0x89, 'P', 'N', 'G' }, Arrays.copyOf(rendered.body(), 4));
+	}
+
+	@Test
+	void refusesBadRequests() throws Exception {
+		this.start(2, 2, 4096);
+		HttpResponse<String> get = this.get("/convert");
+		assertEquals(405, get.statusCode());
+		assertEquals("POST", get.headers().firstValue("Allow").orElse(null));
+		assertEquals(400, this.post("/convert?format=jpeg", png(image())).statusCode());
+		assertEquals(400, this.post("/convert?scale=big", png(image())).statusCode());
+		assertEquals(413, this.post("/convert", new byte[8192]).statusCode());
+		assertEquals(415, this.post("/convert", "not an image".getBytes(StandardCharsets.UTF_8)).statusCode());
+		// refused by the JDK's server or by the handler, but never a server error
+		assertEquals(400, this.raw("POST /convert HTTP/1.1\r\nHost: localhost\r\nContent-Length: 12abc\r\nConnection: close\r\n\r\n"));
+	}
+
+	@Test
+	void refusesRequestsBeyondTheQueue() throws Exception {
+		this.start(1, 0, ConversionServer.DEFAULT_MAX_UPLOAD_BYTES);
+		byte[] png = png(image());
+		InetSocketAddress address = this.server.getAddress();
+		// the first request sends its headers and half its body, then holds its turn
+		try (Socket held = new Socket(address.getAddress(), address.getPort())) {
+			OutputStream out = held.getOutputStream();
+			out.write(("POST /convert HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + png.length + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			out.write(png, 0, png.length / 2);
+			out.flush();
+			for (int i = 0; i < 500 && this.server.getInFlight() == 0; i++) Thread.sleep(10);
+			assertEquals(1, this.server.getInFlight());
+
+			HttpResponse<String> busy = this.post("/convert", png);
+			assertEquals(429, busy.statusCode());
+			assertEquals("1", busy.headers().firstValue("Retry-After").orElse(null));
+
+			out.write(png, png.length / 2, png.length - png.length / 2);
+			out.flush();
+			String answer = new String(held.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+			assertTrue(answer.startsWith("HTTP/1.1 200"), answer);
+		}
+		// the turn is given back just after the answer is sent
+		int status;
+		for (int i = 0; (status = this.post("/convert", png).statusCode()) == 429 && i < 500; i++) Thread.sleep(10);
+		assertEquals(200, status);
+	}
+
+	@Test
+	void reportsMetrics() throws Exception {
+		this.start(3, 5, ConversionServer.DEFAULT_MAX_UPLOAD_BYTES);
+		assertEquals(200, this.post("/convert", png(image())).statusCode());
+		assertEquals(400, this.post("/convert?format=jpeg", png(image())).statusCode());
+		HttpResponse<String> metrics = this.get("/metrics");
+		assertEquals(200, metrics.statusCode());
+		assertTrue(metrics.headers().firstValue("Content-Type").orElse("").startsWith("text/plain; version=0.0.4"));
+		String body = metrics.body();
+		for (String line : new String[] {
+			"# TYPE img2ascii_requests_total counter",
+			"img2ascii_requests_total 2",
+			"img2ascii_converted_total 1",
+			"img2ascii_client_errors_total 1",
+			"img2ascii_server_errors_total 0",
+			"img2ascii_rejected_busy_total 0",
+			"img2ascii_pixels_total " + 64 * 48,
+			"img2ascii_in_flight 0",
+			"img2ascii_max_concurrent 3",
+			"img2ascii_max_queued 5",
+			"img2ascii_latency_seconds_count 2",
+		}) {
+			assertTrue(body.contains(line + "\n"), line + " in\n" + body);
+		}
+	}
+}
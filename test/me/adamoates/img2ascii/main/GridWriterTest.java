@@ -0,0 +1,133 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import me.adamoates.img2ascii.main.Image2Ascii.AsciiImage;
+
+/**
+ * Checks that the streaming writers produce exactly the text and HTML the
+ * original string-building toString() and toHtml() did.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class GridWriterTest {
+
+	/**
+	 * Makes an image of blocks of flat color with some noisy rows, so the
+	 * HTML has both long runs sharing a span and a span per cell.
+	 */
+	private static BufferedImage image(int w, int h) {
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(w * 7 + h);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				int rgb = ((x / 16) * 40 % 256) << 16 | ((y / 8) * 60 % 256) << 8 | 0x80;
+				if (y % 5 == 3) rgb = random.nextInt() & 0x00ffffff;
+				image.setRGB(x, y, rgb);
+			}
+		}
+		return image;
+	}
+
+	private static AsciiImage[] images() {
+		return new AsciiImage[] {
+			new AsciiImage(image(40, 40)),
+			new AsciiImage(image(97, 60)),
+			// wide enough that a row is larger than the writers' buffers
+			new AsciiImage(image(9000, 24)),
+		};
+	}
+
+	// the original AsciiImage#toString()
+	private static String baselineText(AsciiImage image) {
+		StringBuilder sb = new StringBuilder();
+		AsciiGrid grid = image.getGrid();
+		for (int y = 0; y < grid.getHeight(); y++) {
+			for (int x = 0; x < grid.getWidth(); x++) {
+				sb.append(grid.get(x, y));
+			}
+			sb.append('\n');
+		}
+		return sb.toString();
+	}
+
+	// the original AsciiImage#toHtml()
+	private static String baselineHtml(AsciiImage image) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<style>span { font-size: 6px; font-family: monospace; }</style>");
+		AsciiGrid grid = image.getGrid();
+		Integer last = null;
+		for (int y = 0; y < grid.getHeight(); y++) {
+			for (int x = 0; x < grid.getWidth(); x++) {
+				int rgb = grid.getRgb(x, y) & 0x00ffffff;
+				char ch = grid.get(x, y);
+				if (last != null && rgb == last) {	// add repeating color characters to the same DOM element
+					sb.append(ch);
+				} else {
+					if (!(last==null)) sb.append("</span>");
+					String htmlElem = "<span style=\"color: rgb(" + (rgb >> 16) + ", " + ((rgb >> 8) & 0xff) + ", " + (rgb & 0xff) + ");\">" + ch;
+					sb.append(htmlElem);
+				}
+				last = rgb;
+			}
+			sb.append("<br>");
+		}
+		return sb.toString();
+	}
+
+	@Test
+	void textMatchesOriginalToString() throws IOException {
+		for (AsciiImage image : images()) {
+			String expected = baselineText(image);
+			assertEquals(expected, image.toString());
+
+			StringWriter writer = new StringWriter();
+			image.write(writer);
+			assertEquals(expected, writer.toString());
+
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			image.write(stream, StandardCharsets.UTF_8);
+			assertEquals(expected, stream.toString(StandardCharsets.UTF_8));
+
+			ByteArrayOutputStream channel = new ByteArrayOutputStream();
+			image.write(Channels.newChannel(channel), StandardCharsets.UTF_8);
+			assertEquals(expected, channel.toString(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	void htmlMatchesOriginalToHtml() throws IOException {
+		for (AsciiImage image : images()) {
+			String expected = baselineHtml(image);
+			assertEquals(expected, image.toHtml());
+
+			StringWriter writer = new StringWriter();
+			image.writeHtml(writer);
+			assertEquals(expected, writer.toString());
+
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			image.writeHtml(stream, StandardCharsets.UTF_8);
+			assertEquals(expected, stream.toString(StandardCharsets.UTF_8));
+
+			ByteArrayOutputStream channel = new ByteArrayOutputStream();
+			image.writeHtml(Channels.newChannel(channel), StandardCharsets.UTF_8);
+			assertEquals(expected, channel.toString(StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	void emptyGridsWriteNoSpans() throws IOException {
+		StringWriter writer = new StringWriter();
+		GridWriter.writeHtml(new AsciiGrid(0, 3), writer);
+		assertEquals("<style>span { font-size: 6px; font-family: monospace; }</style><br><br><br>", writer.toString());
+	}
+}
@@ -0,0 +1,193 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import me.adamoates.img2ascii.main.Image2Ascii.Flag;
+
+/**
+ * Checks that grids written by MappedGrid map back unchanged, and that
+ * files that are not whole grid files are refused.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class MappedGridTest {
+
+	@TempDir
+	Path dir;
+
+	private static final ConversionOptions OPTIONS = ConversionOptions.DEFAULT
+			.withFlags(EnumSet.of(Flag.INVERT, Flag.PACK))
+			.withRamp(new RampMapper("#%+=-:. "))
+			.withScale(0.25, 0.125)
+			.withResampling(Resampler.Mode.BILINEAR)
+			.withFontSize(12)
+			.withPackedSize(6)
+			.withAdjustForStretching(false);
+
+	private static AsciiGrid grid(int w, int h, boolean backgrounds) {
+		AsciiGrid grid = new AsciiGrid(w, h, backgrounds);
+		Random random = new Random(w * 31 + h);
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) {
+				grid.set(x, y, (char) (' ' + random.nextInt(95)), random.nextInt());
+				if (backgrounds) grid.setBackground(x, y, random.nextInt());
+			}
+		}
+		return grid;
+	}
+
+	private Path write(GridView grid, ConversionOptions options) throws IOException {
+		Path file = this.dir.resolve("grid" + grid.getWidth() + "x" + grid.getHeight() + ".grid");
+		MappedGrid.write(grid, options, file);
+		return file;
+	}
+
+	private static void assertSameCells(GridView expected, GridView actual) {
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+		assertEquals(expected.hasBackgrounds(), actual.hasBackgrounds());
+		int w = expected.getWidth();
+		for (int y = 0; y < expected.getHeight(); y++) {
+			char[] expectedChars = new char[w], chars = new char[w];
+			int[] expectedColors = new int[w], colors = new int[w];
+			expected.copyRow(y, 0, w, expectedChars, expectedColors, 0);
+			actual.copyRow(y, 0, w, chars, colors, 0);
+			assertArrayEquals(expectedChars, chars, "row " + y);
+			assertArrayEquals(expectedColors, colors, "row " + y);
+			assertEquals(expected.getRow(y), actual.getRow(y), "row " + y);
+			if (expected.hasBackgrounds()) {
+				int[] expectedBgs = new int[w], bgs = new int[w];
+				expected.copyRowBackgrounds(y, 0, w, expectedBgs, 0);
+				actual.copyRowBackgrounds(y, 0, w, bgs, 0);
+				assertArrayEquals(expectedBgs, bgs, "row " + y);
+			}
+			for (int x = 0; x < w; x++) {
+				assertEquals(expected.get(x, y), actual.get(x, y));
+				assertEquals(expected.getRgb(x, y), actual.getRgb(x, y));
+			}
+		}
+	}
+
+	@Test
+	void roundTripsCells() throws IOException {
+		AsciiGrid grid = grid(41, 17, false);
+		MappedGrid mapped = MappedGrid.open(this.write(grid, OPTIONS));
+		assertFalse(mapped.hasBackgrounds());
+		assertSameCells(grid, mapped);
+	}
+
+	@Test
+	void roundTripsBackgrounds() throws IOException {
+		AsciiGrid grid = grid(23, 9, true);
+		MappedGrid mapped = MappedGrid.open(this.write(grid, OPTIONS));
+		assertTrue(mapped.hasBackgrounds());
+		assertSameCells(grid, mapped);
+		for (int y = 0; y < grid.getHeight(); y++) {
+			for (int x = 0; x < grid.getWidth(); x++) assertEquals(grid.getBackground(x, y), mapped.getBackground(x, y));
+		}
+	}
+
+	@Test
+	void roundTripsHeaderOptions() throws IOException {
+		ConversionOptions options = MappedGrid.open(this.write(grid(3, 2, false), OPTIONS)).getOptions();
+		assertEquals(OPTIONS.getFlags(), options.getFlags());
+		assertArrayEquals(OPTIONS.getRamp().getRamp(), options.getRamp().getRamp());
+		assertEquals(OPTIONS.getScaleX(), options.getScaleX());
+		assertEquals(OPTIONS.getScaleY(), options.getScaleY());
+		assertEquals(OPTIONS.getResampling(), options.getResampling());
+		assertEquals(OPTIONS.getFontSize(), options.getFontSize());
+		assertEquals(OPTIONS.getPackedSize(), options.getPackedSize());
+		assertEquals(OPTIONS.isAdjustForStretching(), options.isAdjustForStretching());
+		assertEquals(OPTIONS.key(), options.key());
+	}
+
+	@Test
+	void roundTripsShapeAndUnicodeModes() throws IOException {
+		ConversionOptions[] modes = {
+			OPTIONS.withShapeMatching(ShapeMatcher.Layout.CELLS_2X4),
+			OPTIONS.withShapeMatching(ShapeMatcher.Layout.CELLS_4X4),
+			OPTIONS.withUnicode(UnicodeMapper.Mode.HALF_BLOCKS),
+			OPTIONS.withUnicode(UnicodeMapper.Mode.QUADRANTS),
+			OPTIONS.withShapeMatching(ShapeMatcher.Layout.CELLS_4X4).withUnicode(UnicodeMapper.Mode.BRAILLE),
+		};
+		for (ConversionOptions expected : modes) {
+			ConversionOptions options = MappedGrid.open(this.write(grid(3, 2, true), expected)).getOptions();
+			assertEquals(expected.getShapeMatching(), options.getShapeMatching());
+			assertEquals(expected.getUnicode(), options.getUnicode());
+			assertEquals(expected.key(), options.key());
+		}
+	}
+
+	@Test
+	void roundTripsUnicodeConversions() throws IOException {
+		BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) image.setRGB(x, y, (x * 4) << 16 | (y * 5) << 8 | ((x ^ y) * 8 & 0xff));
+		}
+		ConversionOptions braille = ConversionOptions.DEFAULT.withScale(0.5).withUnicode(UnicodeMapper.Mode.BRAILLE);
+		AsciiGrid grid = Image2Ascii.AsciiImage.convert(image, braille, ConversionPool.SEQUENTIAL);
+		MappedGrid mapped = MappedGrid.open(this.write(grid, braille));
+		assertSameCells(grid, mapped);
+		assertEquals(braille.key(), mapped.getOptions().key());
+	}
+
+	@Test
+	void roundTripsEmptyGrids() throws IOException {
+		for (int[] size : new int[][] { { 7, 0 }, { 0, 5 }, { 0, 0 } }) {
+			AsciiGrid grid = new AsciiGrid(size[0], size[1]);
+			MappedGrid mapped = MappedGrid.open(this.write(grid, ConversionOptions.DEFAULT));
+			assertSameCells(grid, mapped);
+		}
+	}
+
+	@Test
+	void refusesTruncatedFiles() throws IOException {
+		Path file = this.write(grid(12, 8, true), OPTIONS);
+		byte[] bytes = Files.readAllBytes(file);
+		// inside the header, inside the ramp, inside each plane
+		for (int size : new int[] { 0, 3, 20, MappedGrid.HEADER_SIZE - 1, MappedGrid.HEADER_SIZE + 3, bytes.length / 2, bytes.length - 1 }) {
+			Path truncated = this.dir.resolve("truncated" + size + ".grid");
+			Files.write(truncated, Arrays.copyOf(bytes, size));
+			assertThrows(IOException.class, () -> MappedGrid.open(truncated), size + " bytes");
+		}
+	}
+
+	@Test
+	void refusesCorruptHeaders() throws IOException {
+		Path file = this.write(grid(12, 8, false), OPTIONS);
+		// magic, version, width, height, resampling mode, font size, shape layout, Unicode mode and ramp length
+		int[][] corruptions = {
+			{ 0, 0x12345678 }, { 4, 1 }, { 8, -1 }, { 12, -1 }, { 36, 99 }, { 40, 0 }, { 52, 99 }, { 56, -1 }, { 60, 0 }, { 60, 1000 }
+		};
+		for (int i = 0; i < corruptions.length; i++) {
+			int[] corruption = corruptions[i];
+			Path corrupt = this.dir.resolve("corrupt" + i + ".grid");
+			Files.copy(file, corrupt);
+			try (FileChannel channel = FileChannel.open(corrupt, StandardOpenOption.WRITE)) {
+				ByteBuffer value = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				if (corruption[0] == 4) value.putShort((short) corruption[1]).flip();
+				else value.putInt(corruption[1]).flip();
+				channel.write(value, corruption[0]);
+			}
+			assertThrows(IOException.class, () -> MappedGrid.open(corrupt), "field at " + corruption[0]);
+		}
+	}
+}
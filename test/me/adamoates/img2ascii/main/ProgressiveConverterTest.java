@@ -0,0 +1,162 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the passes of a progressive conversion, and that deadlines and
+ * cancellation stop it while still leaving the best grid so far.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class ProgressiveConverterTest {
+
+	private static final ProgressiveConverter CONVERTER = new ProgressiveConverter(Runnable::run, ConversionPool.SEQUENTIAL, ProgressiveConverter.DEFAULT_STEP);
+
+	// about 20 pixels a cell, so there are three passes
+	private static final ConversionOptions OPTIONS = ConversionOptions.DEFAULT.withScale(0.05);
+
+	private static BufferedImage image;
+
+	@BeforeAll
+	static void setUp() {
+		image = new BufferedImage(1200, 900, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(3);
+		for (int y = 0; y < image.getHeight(); y++) {
+			for (int x = 0; x < image.getWidth(); x++) {
+				int r = (x * 255 / image.getWidth()) ^ random.nextInt(64);
+				int g = (y * 255 / image.getHeight()) ^ random.nextInt(64);
+				image.setRGB(x, y, r << 16 | g << 8 | ((x + y) & 0xff));
+			}
+		}
+	}
+
+	private static long later() {
+		return System.nanoTime() + TimeUnit.HOURS.toNanos(1);
+	}
+
+	private static void assertSameGrid(AsciiGrid expected, AsciiGrid actual, String what) {
+		assertEquals(expected.getWidth(), actual.getWidth(), what);
+		assertEquals(expected.getHeight(), actual.getHeight(), what);
+		assertArrayEquals(expected.chars(), actual.chars(), what);
+		assertArrayEquals(expected.colors(), actual.colors(), what);
+		assertArrayEquals(expected.backgrounds(), actual.backgrounds(), what);
+	}
+
+	/**
+	 * Records the passes a listener is given.
+	 */
+	private static class Passes implements ProgressiveConverter.Listener {
+		final List<AsciiGrid> grids = new ArrayList<>();
+		final List<Integer> passes = new ArrayList<>();
+		final List<Boolean> complete = new ArrayList<>();
+
+		@Override
+		public void pass(AsciiGrid grid, int pass, boolean complete) {
+			this.grids.add(grid);
+			this.passes.add(pass);
+			this.complete.add(complete);
+		}
+	}
+
+	@Test
+	void lastPassMatchesAsciiImage() {
+		ConversionOptions[] options = {
+			ConversionOptions.DEFAULT,
+			OPTIONS,
+			ConversionOptions.DEFAULT.withScale(0.3, 0.2).with(Image2Ascii.Flag.INVERT),
+			ConversionOptions.DEFAULT.withScale(0.25).withShapeMatching(ShapeMatcher.Layout.CELLS_2X4),
+			ConversionOptions.DEFAULT.withScale(0.1).withUnicode(UnicodeMapper.Mode.BRAILLE),
+		};
+		for (ConversionOptions o : options) {
+			AsciiGrid expected = new Image2Ascii.AsciiImage(image, o, ConversionPool.SEQUENTIAL).getGrid();
+			assertSameGrid(expected, CONVERTER.convert(image, o, later(), () -> false, null), o.toString());
+		}
+	}
+
+	@Test
+	void listenerGetsEveryPassInOrder() {
+		ConversionOptions options = OPTIONS;
+		int passes = CONVERTER.passes(image.getWidth(), image.getHeight(), options);
+		assertTrue(passes >= 3, passes + " passes");
+		Passes listener = new Passes();
+		AsciiGrid grid = CONVERTER.convert(image, options, later(), () -> false, listener);
+		assertEquals(passes, listener.passes.size());
+		for (int i = 0; i < passes; i++) {
+			assertEquals(i, listener.passes.get(i));
+			assertEquals(i == passes - 1, listener.complete.get(i), "pass " + i);
+		}
+		assertSame(grid, listener.grids.get(passes - 1));
+	}
+
+	@Test
+	void passedDeadlineStillGivesTheFirstPass() {
+		ConversionOptions options = OPTIONS;
+		assertTrue(CONVERTER.passes(image.getWidth(), image.getHeight(), options) > 1);
+		Passes listener = new Passes();
+		AsciiGrid grid = CONVERTER.convert(image, options, System.nanoTime() - TimeUnit.SECONDS.toNanos(1), () -> false, listener);
+		assertEquals(List.of(0), listener.passes);
+		assertEquals(List.of(false), listener.complete);
+		assertSame(listener.grids.get(0), grid);
+	}
+
+	@Test
+	void cancellingKeepsTheBestGridSoFar() {
+		ConversionOptions options = OPTIONS;
+		assertTrue(CONVERTER.passes(image.getWidth(), image.getHeight(), options) > 1);
+		assertNull(CONVERTER.convert(image, options, later(), () -> true, null));
+
+		// cancelled as soon as the first pass is in
+		Passes listener = new Passes();
+		AsciiGrid grid = CONVERTER.convert(image, options, later(), () -> !listener.grids.isEmpty(), listener);
+		assertEquals(List.of(0), listener.passes);
+		assertSame(listener.grids.get(0), grid);
+	}
+
+	@Test
+	void cancellingTheFutureStopsTheWork() throws InterruptedException {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		ProgressiveConverter converter = new ProgressiveConverter(executor, ConversionPool.SEQUENTIAL, ProgressiveConverter.DEFAULT_STEP);
+		CountDownLatch firstPass = new CountDownLatch(1), cancelled = new CountDownLatch(1);
+		AtomicInteger calls = new AtomicInteger();
+		CompletableFuture<AsciiGrid> future = converter.submit(image, OPTIONS, 1, TimeUnit.HOURS, (grid, pass, complete) -> {
+			calls.incrementAndGet();
+			firstPass.countDown();
+			try {
+				cancelled.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		try {
+			assertTrue(firstPass.await(30, TimeUnit.SECONDS));
+			assertTrue(future.cancel(true));
+		} finally {
+			cancelled.countDown();
+			executor.shutdown();
+		}
+		// the conversion sees the cancelled future at its next check and ends
+		assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+		assertEquals(1, calls.get());
+		assertTrue(future.isCancelled());
+		assertThrows(CancellationException.class, future::join);
+	}
+}
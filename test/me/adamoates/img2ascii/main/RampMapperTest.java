@@ -0,0 +1,97 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the table-driven RampMapper against the double precision
+ * conversion AsciiImage used before it.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class RampMapperTest {
+
+	/** Colors whose fixed point luminance rounds to the next gray level. */
+	private static final int MAX_OFF_BY_ONE = 7;
+
+	// the original RGB#grayscale(), with the sRGB-to-linear curve tabulated per channel
+	private static final double[] LINEAR = new double[256];
+	static {
+		for (int v = 0; v < 256; v++) LINEAR[v] = srgbToLinear(v / 255.0);
+	}
+
+	private static double srgbToLinear(double x) {
+		if (x < 0.04045) return x/12.92;
+		return Math.pow((x+0.055)/1.055, 2.4);
+	}
+
+	private static double linearToSrgb(double y) {
+		if (y <= 0.0031308) return 12.92 * y;
+		return 1.055 * Math.pow(y, 1/2.4) - 0.055;
+	}
+
+	private static int baselineGray(int rgb) {
+		double gray_linear = 0.2126 * LINEAR[(rgb >> 16) & 0xff] + 0.7152 * LINEAR[(rgb >> 8) & 0xff] + 0.0722 * LINEAR[rgb & 0xff];
+		return (int) Math.round(linearToSrgb(gray_linear) * 255);
+	}
+
+	// the original rgbToAsciiTable()
+	private static int baselineIndex(int rgb, int length) {
+		return (int) Math.round(baselineGray(rgb) / 255.0 * (length - 1));
+	}
+
+	@Test
+	void everyGrayLevelMatches() {
+		for (int v = 0; v < 256; v++) {
+			int rgb = v << 16 | v << 8 | v;
+			assertEquals(baselineGray(rgb), RampMapper.luminance(rgb), "gray " + v);
+			assertEquals(baselineIndex(rgb, Image2Ascii.asciiTable.length), RampMapper.DEFAULT.index(rgb), "gray " + v);
+		}
+	}
+
+	@Test
+	void everyColorMatchesToWithinOneGrayLevel() {
+		int off = 0;
+		for (int rgb = 0; rgb < 1 << 24; rgb++) {
+			int expected = baselineGray(rgb), actual = RampMapper.luminance(rgb);
+			if (expected == actual) continue;
+			assertEquals(1, Math.abs(expected - actual), String.format("color %06x", rgb));
+			off++;
+		}
+		assertTrue(off <= MAX_OFF_BY_ONE, off + " colors differ");
+	}
+
+	@Test
+	void rowsMatchWithAndWithoutFlags() {
+		Random random = new Random(42);
+		int n = 4096;
+		int[] src = new int[n];
+		for (int i = 0; i < n; i++) src[i] = random.nextInt();
+		RampMapper[] mappers = { RampMapper.DEFAULT, new RampMapper(" .:-=+*#%@"), new RampMapper("#") };
+		for (RampMapper mapper : mappers) {
+			char[] ramp = mapper.getRamp();
+			for (boolean invert : new boolean[] { false, true }) {
+				for (boolean grayscale : new boolean[] { false, true }) {
+					char[] expectedChars = new char[n], chars = new char[n];
+					int[] expectedColors = new int[n], colors = new int[n];
+					for (int i = 0; i < n; i++) {
+						int rgb = src[i] & 0x00ffffff;
+						if (invert) rgb ^= 0x00ffffff;
+						int gray = baselineGray(rgb);
+						if (grayscale) rgb = gray << 16 | gray << 8 | gray;
+						expectedChars[i] = ramp[baselineIndex(rgb, ramp.length)];
+						expectedColors[i] = 0xff000000 | rgb;
+					}
+					mapper.mapRow(src, 0, n, invert, grayscale, chars, colors, 0);
+					String what = new String(ramp) + (invert ? " inverted" : "") + (grayscale ? " grayscale" : "");
+					assertArrayEquals(expectedChars, chars, what);
+					assertArrayEquals(expectedColors, colors, what);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Checks that RasterReader reads the same pixels as
+ * <code>BufferedImage.getRGB(x, y)</code>, on the types it reads straight
+ * from the raster and on those it reads through getRGB.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class RasterReaderTest {
+
+	private static final int WIDTH = 37, HEIGHT = 23;
+
+	/**
+	 * Makes an image of a type filled with random pixels, including
+	 * translucent ones where the type keeps alpha.
+	 */
+	private static BufferedImage image(int type, long seed) {
+		BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+		Random random = new Random(seed);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) image.setRGB(x, y, random.nextInt());
+		}
+		return image;
+	}
+
+	private static void assertReadsLikeGetRgb(BufferedImage image) {
+		RasterReader reader = new RasterReader(image);
+		int w = image.getWidth();
+		int[] row = new int[w + 3];
+		for (int y = 0; y < image.getHeight(); y++) {
+			int[] expected = new int[w];
+			for (int x = 0; x < w; x++) expected[x] = image.getRGB(x, y);
+
+			reader.readRow(y, row, 3);
+			int[] actual = new int[w];
+			System.arraycopy(row, 3, actual, 0, w);
+			assertArrayEquals(expected, actual, "row " + y);
+
+			// part of a row, away from both edges
+			int x0 = w / 3, n = w / 2;
+			int[] part = new int[n];
+			reader.readRow(x0, y, n, part, 0);
+			int[] expectedPart = new int[n];
+			System.arraycopy(expected, x0, expectedPart, 0, n);
+			assertArrayEquals(expectedPart, part, "row " + y + " from " + x0);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {
+		BufferedImage.TYPE_INT_RGB,
+		BufferedImage.TYPE_INT_ARGB,
+		BufferedImage.TYPE_INT_ARGB_PRE,
+		BufferedImage.TYPE_INT_BGR,
+		BufferedImage.TYPE_3BYTE_BGR,
+		BufferedImage.TYPE_4BYTE_ABGR,
+		BufferedImage.TYPE_BYTE_GRAY,
+		BufferedImage.TYPE_USHORT_GRAY,
+		BufferedImage.TYPE_USHORT_565_RGB,
+		BufferedImage.TYPE_BYTE_INDEXED,
+		BufferedImage.TYPE_BYTE_BINARY
+	})
+	void readsLikeGetRgb(int type) {
+		assertReadsLikeGetRgb(image(type, type));
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = {
+		BufferedImage.TYPE_INT_RGB,
+		BufferedImage.TYPE_INT_ARGB,
+		BufferedImage.TYPE_3BYTE_BGR,
+		BufferedImage.TYPE_BYTE_GRAY,
+		BufferedImage.TYPE_BYTE_INDEXED
+	})
+	void readsSubimagesLikeGetRgb(int type) {
+		// a subimage shares its parent's array, starting part way into it
+		assertReadsLikeGetRgb(image(type, type).getSubimage(5, 3, WIDTH - 9, HEIGHT - 7));
+	}
+
+	@ParameterizedTest
+	@ValueSource(ints = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_BYTE_INDEXED })
+	void refusesRowsOutsideTheImage(int type) {
+		RasterReader reader = new RasterReader(image(type, 1));
+		int[] row = new int[WIDTH + 1];
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> reader.readRow(HEIGHT, row, 0));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> reader.readRow(-1, row, 0));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> reader.readRow(1, 0, WIDTH + 1, row, 0));
+	}
+}
@@ -0,0 +1,112 @@
+package me.adamoates.img2ascii.main;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the tile pyramid off-screen: that full size views match the
+ * renderer, which level a zoom draws from, and how tiles are cached.
+ * @author Adam Oates adam.oates@criptext.com
+ */
+class TilePyramidTest {
+
+	private static final AsciiRenderer RENDERER = new AsciiRenderer(ConversionOptions.DEFAULT);
+
+	private static AsciiGrid grid(int w, int h) {
+		AsciiGrid grid = new AsciiGrid(w, h);
+		Random random = new Random(w * 17 + h);
+		char[] ramp = RampMapper.DEFAULT.getRamp();
+		for (int y = 0; y < h; y++) {
+			for (int x = 0; x < w; x++) grid.set(x, y, ramp[random.nextInt(ramp.length)], 0xff000000 | random.nextInt());
+		}
+		return grid;
+	}
+
+	private static int[] pixels(BufferedImage image) {
+		return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+	}
+
+	@Test
+	void fullSizeViewsMatchTheRenderer() {
+		AsciiGrid grid = grid(53, 29);
+		// a tile size that does not divide the rendering, so edge tiles are partial
+		TilePyramid pyramid = new TilePyramid(grid, RENDERER, 100, TilePyramid.DEFAULT_MAX_BYTES);
+		BufferedImage expected = RENDERER.render(grid);
+		Rectangle[] views = {
+			new Rectangle(0, 0, pyramid.getWidth(), pyramid.getHeight()),
+			new Rectangle(37, 91, 150, 120),
+			new Rectangle(95, 95, 10, 10),
+		};
+		for (Rectangle view : views) {
+			BufferedImage actual = pyramid.render(view, 1.0);
+			assertEquals(view.width, actual.getWidth());
+			assertEquals(view.height, actual.getHeight());
+			assertArrayEquals(pixels(expected.getSubimage(view.x, view.y, view.width, view.height)), pixels(actual), view.toString());
+		}
+	}
+
+	@Test
+	void repeatedZoomsReuseTiles() {
+		TilePyramid pyramid = new TilePyramid(grid(120, 80), RENDERER, 64, TilePyramid.DEFAULT_MAX_BYTES);
+		for (double zoom : new double[] { 1.0, 0.3, 0.07 }) {
+			Rectangle view = new Rectangle(0, 0, (int) Math.ceil(pyramid.getWidth() * zoom), (int) Math.ceil(pyramid.getHeight() * zoom));
+			BufferedImage first = pyramid.render(view, zoom);
+			long misses = pyramid.getMisses(), hits = pyramid.getHits();
+			BufferedImage again = pyramid.render(view, zoom);
+			assertEquals(misses, pyramid.getMisses(), "zoom " + zoom);
+			assertTrue(pyramid.getHits() > hits, "zoom " + zoom);
+			assertArrayEquals(pixels(first), pixels(again), "zoom " + zoom);
+		}
+		assertEquals(0, pyramid.getEvictions());
+	}
+
+	@Test
+	void zoomsDrawFromTheSmallestLargeEnoughLevel() {
+		TilePyramid pyramid = new TilePyramid(grid(200, 100), RENDERER, 64, TilePyramid.DEFAULT_MAX_BYTES);
+		int last = pyramid.getLevels() - 1;
+		assertTrue(last >= 3, "levels " + pyramid.getLevels());
+		assertEquals(0, pyramid.level(4.0));
+		assertEquals(0, pyramid.level(1.0));
+		assertEquals(0, pyramid.level(Math.nextUp(0.5)));
+		assertEquals(1, pyramid.level(0.5));
+		assertEquals(1, pyramid.level(Math.nextUp(0.25)));
+		assertEquals(2, pyramid.level(0.25));
+		assertEquals(3, pyramid.level(0.125));
+		assertEquals(last, pyramid.level(1.0 / (1L << last)));
+		assertEquals(last, pyramid.level(1e-9));
+		assertThrows(IllegalArgumentException.class, () -> pyramid.level(0));
+		assertThrows(IllegalArgumentException.class, () -> pyramid.level(Double.NaN));
+	}
+
+	@Test
+	void evictsTheLeastRecentlyUsedTiles() {
+		int tileSize = 32;
+		long tileBytes = (long) tileSize * tileSize * Integer.BYTES;
+		TilePyramid pyramid = new TilePyramid(grid(60, 40), RENDERER, tileSize, 3 * tileBytes);
+		Rectangle all = new Rectangle(0, 0, pyramid.getWidth(), pyramid.getHeight());
+		pyramid.render(all, 1.0);
+		assertTrue(pyramid.getEvictions() > 0);
+		assertTrue(pyramid.getBytes() <= 3 * tileBytes, pyramid.getBytes() + " bytes");
+
+		// the first tile was evicted long ago and is rasterized again
+		long misses = pyramid.getMisses();
+		pyramid.render(new Rectangle(0, 0, tileSize, tileSize), 1.0);
+		assertEquals(misses + 1, pyramid.getMisses());
+		// and is now the most recently used, so drawing it again hits
+		long hits = pyramid.getHits();
+		pyramid.render(new Rectangle(0, 0, tileSize, tileSize), 1.0);
+		assertEquals(hits + 1, pyramid.getHits());
+		assertTrue(pyramid.getBytes() <= 3 * tileBytes, pyramid.getBytes() + " bytes");
+
+		pyramid.clear();
+		assertEquals(0, pyramid.getBytes());
+	}
+}